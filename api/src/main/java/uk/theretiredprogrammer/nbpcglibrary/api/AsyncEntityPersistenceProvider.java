@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous access to an EntityPersistenceProvider.
+ *
+ * Each request is executed on the executor of the provider's
+ * PersistenceUnitProvider (see EntityPersistenceProviderManager.getExecutor),
+ * so that the calling thread (eg the EDT) is not blocked, and the returned
+ * future is completed with the result (or exceptionally with the failure). A
+ * request which the executor cannot accept (its queue is full, or it has been
+ * shut down) is not executed - the future is completed exceptionally with a
+ * RejectedExecutionException.
+ *
+ * Requests are executed on the executor's threads, so they are never part of
+ * a transaction begun on the calling thread. A Cancellation current on the
+ * calling thread when a request is made is also current while the request is
+ * executed.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key type
+ */
+public class AsyncEntityPersistenceProvider<K> {
+
+    private final EntityPersistenceProvider<K> epp;
+    private final Executor executor;
+
+    /**
+     * Constructor - using the executor of the provider's
+     * PersistenceUnitProvider.
+     *
+     * @param epp the EntityPersistenceProvider
+     */
+    public AsyncEntityPersistenceProvider(EntityPersistenceProvider<K> epp) {
+        this(epp, EntityPersistenceProviderManager.getExecutor(epp.getPersistenceUnitProvider()));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param epp the EntityPersistenceProvider
+     * @param executor the executor used to execute requests
+     */
+    public AsyncEntityPersistenceProvider(EntityPersistenceProvider<K> epp, Executor executor) {
+        this.epp = epp;
+        this.executor = executor;
+    }
+
+    /**
+     * Get the underlying (blocking) EntityPersistenceProvider.
+     *
+     * @return the EntityPersistenceProvider
+     */
+    public EntityPersistenceProvider<K> getEntityPersistenceProvider() {
+        return epp;
+    }
+
+    /**
+     * Get the executor used to execute requests.
+     *
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Execute a request on the executor (within the Cancellation current on
+     * the calling thread).
+     *
+     * @param <R> the result type
+     * @param request the request
+     * @return the future result
+     */
+    public <R> CompletableFuture<R> submit(Supplier<R> request) {
+        Cancellation cancellation = Cancellation.current();
+        try {
+            if (cancellation == null) {
+                return CompletableFuture.supplyAsync(request, executor);
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                Cancellation.Scope scope = cancellation.enter();
+                try {
+                    Cancellation.checkCurrent("Request");
+                    return request.get();
+                } finally {
+                    scope.close();
+                }
+            }, executor);
+        } catch (RejectedExecutionException ex) {
+            CompletableFuture<R> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(ex);
+            return rejected;
+        }
+    }
+
+    private <R> CompletableFuture<R> async(Supplier<R> request) {
+        return submit(request);
+    }
+
+    private CompletableFuture<Void> async(Runnable request) {
+        return submit(() -> {
+            request.run();
+            return null;
+        });
+    }
+
+    /**
+     * Get the set of entity Primary Keys for all stored entities.
+     *
+     * @return the future set of entity primary keys
+     */
+    public CompletableFuture<List<K>> findAsync() {
+        return async(() -> epp.find());
+    }
+
+    /**
+     * Get the entity primary keys selected by a column filter.
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @return the future list of entity primary keys
+     */
+    public CompletableFuture<List<K>> findAsync(String parametername, Object parametervalue) {
+        return async(() -> epp.find(parametername, parametervalue));
+    }
+
+    /**
+     * Get the entity primary keys selected by a query.
+     *
+     * @param query the query
+     * @return the future list of entity primary keys
+     */
+    public CompletableFuture<List<K>> findAsync(Query query) {
+        return async(() -> epp.find(query));
+    }
+
+    /**
+     * Get the entity primary key for a single entity selected by a column
+     * filter.
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @return the future entity primary key
+     */
+    public CompletableFuture<K> findOneAsync(String parametername, Object parametervalue) {
+        return async(() -> epp.findOne(parametername, parametervalue));
+    }
+
+    /**
+     * Get the entity data for all stored entities.
+     *
+     * @return the future list of entity data objects
+     */
+    public CompletableFuture<List<EntityFields>> getAsync() {
+        return async(() -> epp.get());
+    }
+
+    /**
+     * Get the entity data for entities selected by a column filter.
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @return the future list of entity data objects
+     */
+    public CompletableFuture<List<EntityFields>> getAsync(String parametername, Object parametervalue) {
+        return async(() -> epp.get(parametername, parametervalue));
+    }
+
+    /**
+     * Get the entity data for entities selected by a query.
+     *
+     * @param query the query
+     * @return the future list of entity data objects
+     */
+    public CompletableFuture<List<EntityFields>> getAsync(Query query) {
+        return async(() -> epp.get(query));
+    }
+
+    /**
+     * Get the entity data for a single entity selected by a column filter.
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @return the future entity data
+     */
+    public CompletableFuture<EntityFields> getOneAsync(String parametername, Object parametervalue) {
+        return async(() -> epp.getOne(parametername, parametervalue));
+    }
+
+    /**
+     * Get the entity data - using primary key.
+     *
+     * @param pk the entity primary key
+     * @return the future entity data
+     */
+    public CompletableFuture<EntityFields> getAsync(K pk) {
+        return async(() -> epp.get(pk));
+    }
+
+    /**
+     * Get the entity data for a set of entities - using primary keys, as a
+     * single bulk operation.
+     *
+     * @param pks the entity primary keys
+     * @return the future entity data, keyed by entity primary key
+     */
+    public CompletableFuture<Map<K, EntityFields>> getAsync(Collection<K> pks) {
+        return async(() -> epp.get(pks));
+    }
+
+    /**
+     * Get the number of stored entities.
+     *
+     * @return the future count of entities
+     */
+    public CompletableFuture<Long> countAsync() {
+        return async(() -> epp.count());
+    }
+
+    /**
+     * Get the number of stored entities selected by a column filter.
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @return the future count of entities
+     */
+    public CompletableFuture<Long> countAsync(String parametername, Object parametervalue) {
+        return async(() -> epp.count(parametername, parametervalue));
+    }
+
+    /**
+     * Insert a new entity into entity storage.
+     *
+     * @param values the set of values
+     * @return the future full set of entity fields
+     */
+    public CompletableFuture<EntityFields> insertAsync(EntityFields values) {
+        return async(() -> epp.insert(values));
+    }
+
+    /**
+     * Update an existing entity in entity storage.
+     *
+     * @param pk the entity primary key
+     * @param diff the set of values to be updated
+     * @return the future full set of entity fields
+     */
+    public CompletableFuture<EntityFields> updateAsync(K pk, EntityFields diff) {
+        return async(() -> epp.update(pk, diff));
+    }
+
+    /**
+     * Delete an entity from entity storage.
+     *
+     * @param pk the entity primary key
+     * @return the future completion
+     */
+    public CompletableFuture<Void> deleteAsync(K pk) {
+        return async(() -> epp.delete(pk));
+    }
+
+    /**
+     * Delete an entity from entity storage, provided that it has not been
+     * changed since the given version was read.
+     *
+     * @param pk the entity primary key
+     * @param version the version of the entity as last read
+     * @return the future completion
+     */
+    public CompletableFuture<Void> deleteAsync(K pk, Object version) {
+        return async(() -> epp.delete(pk, version));
+    }
+
+    /**
+     * Insert a set of new entities into entity storage, as a single bulk
+     * operation.
+     *
+     * @param values the list of entity value sets
+     * @return the future full sets of entity fields
+     */
+    public CompletableFuture<List<EntityFields>> insertAllAsync(List<EntityFields> values) {
+        return async(() -> epp.insertAll(values));
+    }
+
+    /**
+     * Update a set of existing entities in entity storage, as a single bulk
+     * operation.
+     *
+     * @param diffs the sets of values to be updated, keyed by entity primary
+     * key
+     * @return the future full sets of entity fields, keyed by entity primary
+     * key
+     */
+    public CompletableFuture<Map<K, EntityFields>> updateAllAsync(Map<K, EntityFields> diffs) {
+        return async(() -> epp.updateAll(diffs));
+    }
+
+    /**
+     * Delete a set of entities from entity storage, as a single bulk
+     * operation.
+     *
+     * @param pks the entity primary keys
+     * @return the future completion
+     */
+    public CompletableFuture<Void> deleteAllAsync(Collection<K> pks) {
+        return async(() -> epp.deleteAll(pks));
+    }
+}
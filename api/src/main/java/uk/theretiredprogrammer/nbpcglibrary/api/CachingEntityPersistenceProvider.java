@@ -0,0 +1,337 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An EntityPersistenceProvider which caches the results of the simple queries
+ * (find, get and count - unfiltered or filtered by a column, and exists) of
+ * another EntityPersistenceProvider.
+ *
+ * The cache is shared by all providers for the table, and is invalidated by
+ * every insert, update or delete made through any of them. Writes made by
+ * other clients of the entity storage are only seen when the cached results
+ * expire, so caching should be used for read-mostly tables (eg reference
+ * data). Queries by primary key, Query objects, pages and streams are not
+ * cached. The results of a provider for an ordered entity are held apart from
+ * those of other providers for the table, as their order differs.
+ *
+ * Within a transaction the cache is bypassed, so that uncommitted rows are
+ * never cached (nor seen by other threads); a write made within a transaction
+ * invalidates the cache again when the transaction ends, as results cached by
+ * other threads meanwhile do not include it.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key type
+ */
+public class CachingEntityPersistenceProvider<K> implements EntityPersistenceProvider<K> {
+
+    private final EntityPersistenceProvider<K> epp;
+    private final QueryResultCache cache;
+    private final String idx;
+
+    /**
+     * Constructor.
+     *
+     * @param epp the EntityPersistenceProvider whose results are cached
+     * @param cache the query result cache for the table
+     */
+    public CachingEntityPersistenceProvider(EntityPersistenceProvider<K> epp, QueryResultCache cache) {
+        this(epp, cache, null);
+    }
+
+    /**
+     * Constructor - for an ordered entity.
+     *
+     * @param epp the EntityPersistenceProvider whose results are cached
+     * @param cache the query result cache for the table
+     * @param idx the index column ordering the results (or null if not
+     * ordered)
+     */
+    public CachingEntityPersistenceProvider(EntityPersistenceProvider<K> epp, QueryResultCache cache, String idx) {
+        this.epp = epp;
+        this.cache = cache;
+        this.idx = idx;
+    }
+
+    /**
+     * Get the underlying EntityPersistenceProvider.
+     *
+     * @return the EntityPersistenceProvider
+     */
+    public EntityPersistenceProvider<K> getEntityPersistenceProvider() {
+        return epp;
+    }
+
+    /**
+     * Get the query result cache (eg for its statistics).
+     *
+     * @return the query result cache
+     */
+    public QueryResultCache getQueryResultCache() {
+        return cache;
+    }
+
+    @Override
+    public String instanceDescription() {
+        return epp.instanceDescription();
+    }
+
+    @Override
+    public void init(String tablename, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        epp.init(tablename, properties, pup);
+    }
+
+    @Override
+    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        epp.init(tablename, idx, properties, pup);
+    }
+
+    @Override
+    public void close() {
+        epp.close();
+    }
+
+    @Override
+    public K getPK(EntityFields ef) {
+        return epp.getPK(ef);
+    }
+
+    @Override
+    public void autoGenPrimaryKeyHook(EntityFields ef) {
+        epp.autoGenPrimaryKeyHook(ef);
+    }
+
+    @Override
+    public void addTimestampInfo(EntityFields ef) {
+        epp.addTimestampInfo(ef);
+    }
+
+    @Override
+    public void updateTimestampInfo(EntityFields ef) {
+        epp.updateTimestampInfo(ef);
+    }
+
+    @Override
+    public List<K> find() {
+        return new ArrayList<>(cached(() -> epp.find(), "find"));
+    }
+
+    @Override
+    public List<K> find(String parametername, Object parametervalue) {
+        return new ArrayList<>(cached(() -> epp.find(parametername, parametervalue), "find", parametername, parametervalue));
+    }
+
+    @Override
+    public K findOne(String parametername, Object parametervalue) {
+        return cached(() -> epp.findOne(parametername, parametervalue), "findOne", parametername, parametervalue);
+    }
+
+    @Override
+    public List<K> find(Query query) {
+        return epp.find(query);
+    }
+
+    @Override
+    public List<EntityFields> get() {
+        return copy(cached(() -> epp.get(), "get"));
+    }
+
+    @Override
+    public Stream<EntityFields> stream() {
+        return epp.stream();
+    }
+
+    @Override
+    public Stream<EntityFields> stream(String parametername, Object parametervalue) {
+        return epp.stream(parametername, parametervalue);
+    }
+
+    @Override
+    public List<EntityFields> get(String parametername, Object parametervalue) {
+        return copy(cached(() -> epp.get(parametername, parametervalue), "get", parametername, parametervalue));
+    }
+
+    @Override
+    public List<EntityFields> get(Query query) {
+        return epp.get(query);
+    }
+
+    @Override
+    public List<EntityFields> get(String parametername, Object parametervalue, Set<String> columns) {
+        return copy(cached(() -> epp.get(parametername, parametervalue, columns), "getColumns", parametername, parametervalue, columns));
+    }
+
+    @Override
+    public List<EntityFields> get(Query query, Set<String> columns) {
+        return epp.get(query, columns);
+    }
+
+    @Override
+    public Page<EntityFields> get(String parametername, Object parametervalue, K afterKey, int limit) {
+        return epp.get(parametername, parametervalue, afterKey, limit);
+    }
+
+    @Override
+    public EntityFields getOne(String parametername, Object parametervalue) {
+        return copy(cached(() -> epp.getOne(parametername, parametervalue), "getOne", parametername, parametervalue));
+    }
+
+    @Override
+    public long count() {
+        return cached(() -> epp.count(), "count");
+    }
+
+    @Override
+    public long count(String parametername, Object parametervalue) {
+        return cached(() -> epp.count(parametername, parametervalue), "count", parametername, parametervalue);
+    }
+
+    @Override
+    public boolean exists(String parametername, Object parametervalue, K excludingPk) {
+        return cached(() -> epp.exists(parametername, parametervalue, excludingPk), "exists", parametername, parametervalue, excludingPk);
+    }
+
+    @Override
+    public int findNextIdx() {
+        return epp.findNextIdx();
+    }
+
+    @Override
+    public int reserveIdx(int count) {
+        return epp.reserveIdx(count);
+    }
+
+    @Override
+    public EntityFields get(K pk) {
+        return epp.get(pk);
+    }
+
+    @Override
+    public Map<K, EntityFields> get(Collection<K> pks) {
+        return epp.get(pks);
+    }
+
+    @Override
+    public EntityFields insert(EntityFields values) {
+        try {
+            return epp.insert(values);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public EntityFields update(K pk, EntityFields diff) {
+        try {
+            return epp.update(pk, diff);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void delete(K pk) {
+        try {
+            epp.delete(pk);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void delete(K pk, Object version) {
+        try {
+            epp.delete(pk, version);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public String getVersionColumn() {
+        return epp.getVersionColumn();
+    }
+
+    @Override
+    public PersistenceUnitProvider getPersistenceUnitProvider() {
+        return epp.getPersistenceUnitProvider();
+    }
+
+    @Override
+    public List<EntityFields> insertAll(List<EntityFields> values) {
+        try {
+            return epp.insertAll(values);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public Map<K, EntityFields> updateAll(Map<K, EntityFields> diffs) {
+        try {
+            return epp.updateAll(diffs);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<K> pks) {
+        try {
+            epp.deleteAll(pks);
+        } finally {
+            invalidate();
+        }
+    }
+
+    private <R> R cached(Supplier<R> query, String shape, Object... parameters) {
+        return epp.getPersistenceUnitProvider().isInTransaction() ? query.get()
+                : cache.get(query, idx == null ? shape : shape + ":" + idx, parameters);
+    }
+
+    private void invalidate() {
+        cache.invalidate();
+        PersistenceUnitProvider pup = epp.getPersistenceUnitProvider();
+        if (pup.isInTransaction()) {
+            pup.afterTransaction(() -> cache.invalidate());
+        }
+    }
+
+    // cached results are shared, so each caller is given its own copy
+    private List<EntityFields> copy(List<EntityFields> efs) {
+        return efs.stream().map((ef) -> copy(ef)).collect(Collectors.toList());
+    }
+
+    private EntityFields copy(EntityFields ef) {
+        if (ef == null) {
+            return null;
+        }
+        EntityFields copy = new EntityFields();
+        copy.putAll(ef);
+        return copy;
+    }
+}
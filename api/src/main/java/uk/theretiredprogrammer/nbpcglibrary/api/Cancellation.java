@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cancellation handle for operations on entity storage (eg all the loads
+ * made for a view, which can be cancelled when the view is closed).
+ *
+ * Operations are made cancellable by entering the cancellation on the thread
+ * which makes them:
+ *
+ * Cancellation.Scope scope = cancellation.enter();
+ * try { ... } finally { scope.close(); }
+ *
+ * Asynchronous requests (see AsyncEntityPersistenceProvider) made within the
+ * scope are also cancellable. When cancelled, a running operation is aborted
+ * (eg the SQL statement or http request is cancelled) and any further
+ * operation fails immediately, with a PersistenceCancelledException.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class Cancellation {
+
+    private static final ThreadLocal<Cancellation> current = new ThreadLocal<>();
+
+    private final List<Runnable> actions = new ArrayList<>();
+    private boolean cancelled = false;
+
+    /**
+     * A scope in which a cancellation is current on a thread.
+     */
+    public interface Scope extends AutoCloseable {
+
+        /**
+         * End the scope, restoring the previously current cancellation.
+         */
+        @Override
+        public void close();
+    }
+
+    /**
+     * A registration of an abort action, for the duration of an operation.
+     */
+    public interface Registration extends AutoCloseable {
+
+        /**
+         * Remove the registration (the operation has completed).
+         */
+        @Override
+        public void close();
+    }
+
+    /**
+     * Get the cancellation current on this thread.
+     *
+     * @return the cancellation, or null if none
+     */
+    public static Cancellation current() {
+        return current.get();
+    }
+
+    /**
+     * Test if the cancellation current on this thread has been cancelled.
+     *
+     * @return true if cancelled
+     */
+    public static boolean isCurrentCancelled() {
+        Cancellation cancellation = current.get();
+        return cancellation != null && cancellation.isCancelled();
+    }
+
+    /**
+     * Check that the cancellation current on this thread has not been
+     * cancelled.
+     *
+     * @param operation the operation description (for the exception message)
+     * @throws PersistenceCancelledException if cancelled
+     */
+    public static void checkCurrent(String operation) {
+        if (isCurrentCancelled()) {
+            throw new PersistenceCancelledException(operation + " cancelled");
+        }
+    }
+
+    /**
+     * Register an action which aborts an operation, with the cancellation
+     * current on this thread (if any). If already cancelled, the action is
+     * run immediately.
+     *
+     * @param abort the abort action
+     * @return the registration, to be closed when the operation completes
+     */
+    public static Registration registerCurrent(Runnable abort) {
+        Cancellation cancellation = current.get();
+        return cancellation == null ? () -> {
+        } : cancellation.register(abort);
+    }
+
+    /**
+     * Make this cancellation current on this thread.
+     *
+     * @return the scope, to be closed to restore the previously current
+     * cancellation
+     */
+    public Scope enter() {
+        Cancellation previous = current.get();
+        current.set(this);
+        return () -> {
+            if (previous == null) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Register an action which aborts an operation. If already cancelled, the
+     * action is run immediately.
+     *
+     * @param abort the abort action
+     * @return the registration, to be closed when the operation completes
+     */
+    public Registration register(Runnable abort) {
+        synchronized (this) {
+            if (!cancelled) {
+                actions.add(abort);
+                return () -> {
+                    synchronized (Cancellation.this) {
+                        actions.remove(abort);
+                    }
+                };
+            }
+        }
+        abort.run();
+        return () -> {
+        };
+    }
+
+    /**
+     * Cancel - abort all running operations and fail any further operations.
+     */
+    public void cancel() {
+        List<Runnable> aborts;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            aborts = new ArrayList<>(actions);
+            actions.clear();
+        }
+        aborts.forEach((abort) -> abort.run());
+    }
+
+    /**
+     * Test if cancelled.
+     *
+     * @return true if cancelled
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The change data capture feed of a PersistenceUnitProvider - every committed
+ * insert, update and delete is published, in order, as a sequence numbered
+ * ChangeRecord.
+ *
+ * Records are delivered to subscribers synchronously, on the thread which
+ * committed the change, in sequence order; subscribers should therefore be
+ * quick (eg invalidating a cache) or hand the record on to another thread.
+ * An exception thrown by a subscriber is logged and does not affect the
+ * change or the other subscribers.
+ *
+ * The most recent records can be held in a bounded replay buffer, so that a
+ * subscriber can catch up from the last sequence number it processed.
+ *
+ * A feed can relay its records to other feeds (eg the feed of a sharded
+ * persistence unit), which publish them with their own sequence numbers.
+ *
+ * Entity persistence providers only create change records if the feed is
+ * active (it, or a feed it relays to, has subscribers or a replay buffer), so
+ * an unused feed costs nothing.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class ChangeFeed {
+
+    private static final String LOG = "nbpcglib.changefeed";
+
+    private final String source;
+    private final List<Consumer<ChangeRecord>> subscribers = new CopyOnWriteArrayList<>();
+    private final Deque<ChangeRecord> replay = new ArrayDeque<>();
+    private final List<ChangeFeed> relays = new CopyOnWriteArrayList<>();
+    private int replaysize = 0;
+    private long sequence = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param source the name of the PersistenceUnitProvider
+     */
+    public ChangeFeed(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Set the size of the replay buffer (the number of most recent records
+     * held).
+     *
+     * @param replaysize the replay buffer size (0 if no replay buffer)
+     */
+    public synchronized void setReplaySize(int replaysize) {
+        this.replaysize = Math.max(0, replaysize);
+        while (replay.size() > this.replaysize) {
+            replay.removeFirst();
+        }
+    }
+
+    /**
+     * Test if this feed is active - ie if change records are required.
+     *
+     * @return true if active
+     */
+    public boolean isActive() {
+        return !subscribers.isEmpty() || replaysize > 0 || relays.stream().anyMatch((relay) -> relay.isActive());
+    }
+
+    /**
+     * Relay all records published from now on to another feed.
+     *
+     * @param feed the feed to which records are relayed
+     */
+    public void relayTo(ChangeFeed feed) {
+        relays.add(feed);
+    }
+
+    /**
+     * Add a subscriber, which will receive all records published from now
+     * on.
+     *
+     * @param subscriber the subscriber
+     */
+    public void subscribe(Consumer<ChangeRecord> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Add a subscriber, first replaying the buffered records which follow the
+     * given sequence number. No record is missed or duplicated between the
+     * replay and the records published from now on.
+     *
+     * @param subscriber the subscriber
+     * @param after the sequence number of the last record already processed
+     * by the subscriber
+     * @return true if all records following the sequence number were
+     * replayed; false if some are no longer buffered (the subscriber should
+     * then resynchronise from entity storage)
+     */
+    public synchronized boolean subscribe(Consumer<ChangeRecord> subscriber, long after) {
+        List<ChangeRecord> records = getReplay(after);
+        boolean complete = after >= sequence
+                || (!records.isEmpty() && records.get(0).getSequence() == after + 1);
+        records.stream().forEach((record) -> {
+            deliver(subscriber, record);
+        });
+        subscribers.add(subscriber);
+        return complete;
+    }
+
+    /**
+     * Remove a subscriber.
+     *
+     * @param subscriber the subscriber
+     */
+    public void unsubscribe(Consumer<ChangeRecord> subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Get the buffered records which follow the given sequence number.
+     *
+     * @param after the sequence number
+     * @return the records, in sequence order
+     */
+    public synchronized List<ChangeRecord> getReplay(long after) {
+        List<ChangeRecord> records = new ArrayList<>();
+        replay.stream().filter((record) -> record.getSequence() > after).forEach((record) -> {
+            records.add(record);
+        });
+        return records;
+    }
+
+    /**
+     * Get the sequence number of the last record published.
+     *
+     * @return the sequence number (0 if none published)
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Publish a committed change.
+     *
+     * @param change the change record (unpublished)
+     */
+    public void publish(ChangeRecord change) {
+        publish(Collections.singletonList(change));
+    }
+
+    /**
+     * Publish the changes committed together (eg by a transaction) - the
+     * records are given consecutive sequence numbers.
+     *
+     * @param changes the change records (unpublished)
+     */
+    public synchronized void publish(List<ChangeRecord> changes) {
+        long now = System.currentTimeMillis();
+        changes.stream().map((change) -> change.publish(++sequence, now, source)).forEach((record) -> {
+            if (replaysize > 0) {
+                if (replay.size() == replaysize) {
+                    replay.removeFirst();
+                }
+                replay.addLast(record);
+            }
+            subscribers.stream().forEach((subscriber) -> {
+                deliver(subscriber, record);
+            });
+        });
+        relays.stream().filter((relay) -> relay.isActive()).forEach((relay) -> {
+            relay.publish(changes);
+        });
+    }
+
+    private void deliver(Consumer<ChangeRecord> subscriber, ChangeRecord record) {
+        try {
+            subscriber.accept(record);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(LOG).log(Level.WARNING, "Change subscriber failed on {0} - {1}", new Object[]{record, ex.getMessage()});
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A record of a committed change (insert, update or delete) to a single
+ * entity, as published on a ChangeFeed.
+ *
+ * Records are created unpublished (with a sequence of 0) by the entity
+ * persistence providers, and are given their sequence number and timestamp
+ * when published. The before values are only included if known to the
+ * provider without re-reading the entity (they are null otherwise).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public final class ChangeRecord {
+
+    /**
+     * The change operations
+     */
+    public enum Operation {
+
+        /**
+         * entity inserted
+         */
+        INSERT,
+        /**
+         * entity updated
+         */
+        UPDATE,
+        /**
+         * entity deleted
+         */
+        DELETE
+    }
+
+    private final long sequence;
+    private final long timestamp;
+    private final String source;
+    private final String table;
+    private final Object pkey;
+    private final Operation operation;
+    private final EntityFields before;
+    private final EntityFields after;
+    private final Set<String> changed;
+
+    private ChangeRecord(long sequence, long timestamp, String source, String table, Object pkey, Operation operation,
+            EntityFields before, EntityFields after, Set<String> changed) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.source = source;
+        this.table = table;
+        this.pkey = pkey;
+        this.operation = operation;
+        this.before = before;
+        this.after = after;
+        this.changed = changed;
+    }
+
+    /**
+     * Create the record of an insert.
+     *
+     * @param table the table name
+     * @param pkey the primary key
+     * @param after the inserted values
+     * @return the change record
+     */
+    public static ChangeRecord insert(String table, Object pkey, EntityFields after) {
+        return new ChangeRecord(0, 0, null, table, pkey, Operation.INSERT, null, copy(after), fieldnames(after.keySet()));
+    }
+
+    /**
+     * Create the record of an update.
+     *
+     * @param table the table name
+     * @param pkey the primary key
+     * @param before the values before the update (or null if not known)
+     * @param after the values after the update
+     * @param changed the names of the fields written by the update
+     * @return the change record
+     */
+    public static ChangeRecord update(String table, Object pkey, EntityFields before, EntityFields after, Collection<String> changed) {
+        return new ChangeRecord(0, 0, null, table, pkey, Operation.UPDATE, copy(before), copy(after), fieldnames(changed));
+    }
+
+    /**
+     * Create the record of a delete.
+     *
+     * @param table the table name
+     * @param pkey the primary key
+     * @param before the values before the delete (or null if not known)
+     * @return the change record
+     */
+    public static ChangeRecord delete(String table, Object pkey, EntityFields before) {
+        return new ChangeRecord(0, 0, null, table, pkey, Operation.DELETE, copy(before), null,
+                before == null ? Collections.emptySet() : fieldnames(before.keySet()));
+    }
+
+    /**
+     * Create the published copy of this record.
+     *
+     * @param sequence the sequence number
+     * @param timestamp the time of publication
+     * @param source the name of the publishing PersistenceUnitProvider
+     * @return the published record
+     */
+    ChangeRecord publish(long sequence, long timestamp, String source) {
+        return new ChangeRecord(sequence, timestamp, source, table, pkey, operation, before, after, changed);
+    }
+
+    private static EntityFields copy(EntityFields ef) {
+        if (ef == null) {
+            return null;
+        }
+        EntityFields efc = new EntityFields();
+        efc.putAll(ef);
+        return efc;
+    }
+
+    private static Set<String> fieldnames(Collection<String> names) {
+        return Collections.unmodifiableSet(new TreeSet<>(names));
+    }
+
+    /**
+     * Get the sequence number - consecutive for the records published by a
+     * ChangeFeed.
+     *
+     * @return the sequence number (or 0 if unpublished)
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the time of publication.
+     *
+     * @return the time (ms since the epoch)
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the name of the PersistenceUnitProvider publishing the change.
+     *
+     * @return the source name
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Get the table name.
+     *
+     * @return the table name
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * Get the primary key of the changed entity.
+     *
+     * @return the primary key
+     */
+    public Object getPkey() {
+        return pkey;
+    }
+
+    /**
+     * Get the change operation.
+     *
+     * @return the operation
+     */
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Get the values before the change. The returned fields must not be
+     * altered.
+     *
+     * @return the values (or null if an insert, or not known)
+     */
+    public EntityFields getBefore() {
+        return before;
+    }
+
+    /**
+     * Get the values after the change. The returned fields must not be
+     * altered.
+     *
+     * @return the values (or null if a delete)
+     */
+    public EntityFields getAfter() {
+        return after;
+    }
+
+    /**
+     * Get the names of the fields changed.
+     *
+     * @return the field names
+     */
+    public Set<String> getChanged() {
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + ":" + source + ":" + operation + " " + table + " (" + pkey + ") " + changed;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * An EntityPersistenceProvider which coalesces rapid successive updates of an
+ * entity (eg field by field edits, or reordering) made through another
+ * EntityPersistenceProvider - see UpdateCoalescer.
+ *
+ * Pending updates are written before any read of the table, so reads always
+ * see the latest values; deleting an entity discards its pending update.
+ * Updates of versioned tables are not coalesced, as the version must be
+ * advanced by each update; nor are updates made within a transaction, which
+ * must be written within it (the entity's pending update is written first,
+ * as part of the transaction).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key type
+ */
+public class CoalescingEntityPersistenceProvider<K> implements EntityPersistenceProvider<K> {
+
+    private final EntityPersistenceProvider<K> epp;
+    private final UpdateCoalescer coalescer;
+
+    /**
+     * Constructor.
+     *
+     * @param epp the EntityPersistenceProvider whose updates are coalesced
+     * @param coalescer the update coalescer for the table
+     */
+    public CoalescingEntityPersistenceProvider(EntityPersistenceProvider<K> epp, UpdateCoalescer coalescer) {
+        this.epp = epp;
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Get the underlying EntityPersistenceProvider.
+     *
+     * @return the EntityPersistenceProvider
+     */
+    public EntityPersistenceProvider<K> getEntityPersistenceProvider() {
+        return epp;
+    }
+
+    /**
+     * Get the update coalescer (eg for its statistics).
+     *
+     * @return the update coalescer
+     */
+    public UpdateCoalescer getUpdateCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Write all pending updates of the table.
+     */
+    public void flush() {
+        coalescer.flush();
+    }
+
+    @Override
+    public String instanceDescription() {
+        return epp.instanceDescription();
+    }
+
+    @Override
+    public void init(String tablename, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        epp.init(tablename, properties, pup);
+    }
+
+    @Override
+    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        epp.init(tablename, idx, properties, pup);
+    }
+
+    @Override
+    public void close() {
+        try {
+            coalescer.flush();
+        } finally {
+            epp.close();
+        }
+    }
+
+    @Override
+    public K getPK(EntityFields ef) {
+        return epp.getPK(ef);
+    }
+
+    @Override
+    public void autoGenPrimaryKeyHook(EntityFields ef) {
+        epp.autoGenPrimaryKeyHook(ef);
+    }
+
+    @Override
+    public void addTimestampInfo(EntityFields ef) {
+        epp.addTimestampInfo(ef);
+    }
+
+    @Override
+    public void updateTimestampInfo(EntityFields ef) {
+        epp.updateTimestampInfo(ef);
+    }
+
+    @Override
+    public List<K> find() {
+        coalescer.flush();
+        return epp.find();
+    }
+
+    @Override
+    public List<K> find(String parametername, Object parametervalue) {
+        coalescer.flush();
+        return epp.find(parametername, parametervalue);
+    }
+
+    @Override
+    public K findOne(String parametername, Object parametervalue) {
+        coalescer.flush();
+        return epp.findOne(parametername, parametervalue);
+    }
+
+    @Override
+    public List<K> find(Query query) {
+        coalescer.flush();
+        return epp.find(query);
+    }
+
+    @Override
+    public List<EntityFields> get() {
+        coalescer.flush();
+        return epp.get();
+    }
+
+    @Override
+    public Stream<EntityFields> stream() {
+        coalescer.flush();
+        return epp.stream();
+    }
+
+    @Override
+    public Stream<EntityFields> stream(String parametername, Object parametervalue) {
+        coalescer.flush();
+        return epp.stream(parametername, parametervalue);
+    }
+
+    @Override
+    public List<EntityFields> get(String parametername, Object parametervalue) {
+        coalescer.flush();
+        return epp.get(parametername, parametervalue);
+    }
+
+    @Override
+    public List<EntityFields> get(Query query) {
+        coalescer.flush();
+        return epp.get(query);
+    }
+
+    @Override
+    public List<EntityFields> get(String parametername, Object parametervalue, Set<String> columns) {
+        coalescer.flush();
+        return epp.get(parametername, parametervalue, columns);
+    }
+
+    @Override
+    public List<EntityFields> get(Query query, Set<String> columns) {
+        coalescer.flush();
+        return epp.get(query, columns);
+    }
+
+    @Override
+    public Page<EntityFields> get(String parametername, Object parametervalue, K afterKey, int limit) {
+        coalescer.flush();
+        return epp.get(parametername, parametervalue, afterKey, limit);
+    }
+
+    @Override
+    public EntityFields getOne(String parametername, Object parametervalue) {
+        coalescer.flush();
+        return epp.getOne(parametername, parametervalue);
+    }
+
+    @Override
+    public long count() {
+        // updates do not change the number of entities
+        return epp.count();
+    }
+
+    @Override
+    public long count(String parametername, Object parametervalue) {
+        coalescer.flush();
+        return epp.count(parametername, parametervalue);
+    }
+
+    @Override
+    public boolean exists(String parametername, Object parametervalue, K excludingPk) {
+        coalescer.flush();
+        return epp.exists(parametername, parametervalue, excludingPk);
+    }
+
+    @Override
+    public int findNextIdx() {
+        coalescer.flush();
+        return epp.findNextIdx();
+    }
+
+    @Override
+    public int reserveIdx(int count) {
+        coalescer.flush();
+        return epp.reserveIdx(count);
+    }
+
+    @Override
+    public EntityFields get(K pk) {
+        coalescer.flush(pk);
+        return epp.get(pk);
+    }
+
+    @Override
+    public Map<K, EntityFields> get(Collection<K> pks) {
+        coalescer.flush(pks);
+        return epp.get(pks);
+    }
+
+    @Override
+    public EntityFields insert(EntityFields values) {
+        return epp.insert(values);
+    }
+
+    @Override
+    public EntityFields update(K pk, EntityFields diff) {
+        if (epp.getVersionColumn() != null || epp.getPersistenceUnitProvider().isInTransaction()) {
+            coalescer.flush(pk);
+            return epp.update(pk, diff);
+        }
+        return coalescer.update(epp, pk, diff);
+    }
+
+    @Override
+    public void delete(K pk) {
+        coalescer.discard(pk);
+        epp.delete(pk);
+    }
+
+    @Override
+    public void delete(K pk, Object version) {
+        coalescer.discard(pk);
+        epp.delete(pk, version);
+    }
+
+    @Override
+    public String getVersionColumn() {
+        return epp.getVersionColumn();
+    }
+
+    @Override
+    public PersistenceUnitProvider getPersistenceUnitProvider() {
+        return epp.getPersistenceUnitProvider();
+    }
+
+    @Override
+    public List<EntityFields> insertAll(List<EntityFields> values) {
+        return epp.insertAll(values);
+    }
+
+    @Override
+    public Map<K, EntityFields> updateAll(Map<K, EntityFields> diffs) {
+        coalescer.flush(diffs.keySet());
+        return epp.updateAll(diffs);
+    }
+
+    @Override
+    public void deleteAll(Collection<K> pks) {
+        pks.stream().forEach((pk) -> {
+            coalescer.discard(pk);
+        });
+        epp.deleteAll(pks);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A condition used to select entities in a Query.
+ *
+ * A condition is either a column test (comparison, IN or IS NULL) or a
+ * combination (AND / OR) of other conditions. Conditions are created using
+ * the static factory methods, and are compiled by each EntityPersistenceProvider
+ * into the form used by its entity storage.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class Condition {
+
+    private static final Pattern COLUMNNAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /**
+     * The condition operators
+     */
+    public enum Operator {
+
+        /**
+         * column equals value
+         */
+        EQ("="),
+        /**
+         * column not equal to value
+         */
+        NE("<>"),
+        /**
+         * column less than value
+         */
+        LT("<"),
+        /**
+         * column less than or equal to value
+         */
+        LE("<="),
+        /**
+         * column greater than value
+         */
+        GT(">"),
+        /**
+         * column greater than or equal to value
+         */
+        GE(">="),
+        /**
+         * column equal to one of the values
+         */
+        IN("IN"),
+        /**
+         * column is null
+         */
+        ISNULL("IS NULL"),
+        /**
+         * column is not null
+         */
+        ISNOTNULL("IS NOT NULL"),
+        /**
+         * all conditions are true
+         */
+        AND("AND"),
+        /**
+         * any condition is true
+         */
+        OR("OR");
+
+        private final String sql;
+
+        private Operator(String sql) {
+            this.sql = sql;
+        }
+
+        /**
+         * Get the SQL operator.
+         *
+         * @return the SQL operator
+         */
+        public String toSQL() {
+            return sql;
+        }
+    }
+
+    private final Operator operator;
+    private final String columnname;
+    private final Object value;
+    private final List<Object> values;
+    private final List<Condition> conditions;
+
+    private Condition(Operator operator, String columnname, Object value, List<Object> values, List<Condition> conditions) {
+        if (columnname != null) {
+            checkColumnName(columnname);
+        }
+        this.operator = operator;
+        this.columnname = columnname;
+        this.value = value;
+        this.values = values;
+        this.conditions = conditions;
+    }
+
+    /**
+     * Check that a column name is a plain identifier (column names are
+     * inserted directly into SQL).
+     *
+     * @param columnname the column name
+     */
+    public static void checkColumnName(String columnname) {
+        if (!COLUMNNAME.matcher(columnname).matches()) {
+            throw new LogicException("Illegal column name in query: " + columnname);
+        }
+    }
+
+    private static Condition compare(Operator operator, String columnname, Object value) {
+        return new Condition(operator, columnname, value, null, null);
+    }
+
+    /**
+     * Create an equality condition.
+     *
+     * @param columnname the column name
+     * @param value the value
+     * @return the condition
+     */
+    public static Condition eq(String columnname, Object value) {
+        return compare(Operator.EQ, columnname, value);
+    }
+
+    /**
+     * Create an inequality condition.
+     *
+     * @param columnname the column name
+     * @param value the value
+     * @return the condition
+     */
+    public static Condition ne(String columnname, Object value) {
+        return compare(Operator.NE, columnname, value);
+    }
+
+    /**
+     * Create a less than condition.
+     *
+     * @param columnname the column name
+     * @param value the value
+     * @return the condition
+     */
+    public static Condition lt(String columnname, Object value) {
+        return compare(Operator.LT, columnname, value);
+    }
+
+    /**
+     * Create a less than or equal condition.
+     *
+     * @param columnname the column name
+     * @param value the value
+     * @return the condition
+     */
+    public static Condition le(String columnname, Object value) {
+        return compare(Operator.LE, columnname, value);
+    }
+
+    /**
+     * Create a greater than condition.
+     *
+     * @param columnname the column name
+     * @param value the value
+     * @return the condition
+     */
+    public static Condition gt(String columnname, Object value) {
+        return compare(Operator.GT, columnname, value);
+    }
+
+    /**
+     * Create a greater than or equal condition.
+     *
+     * @param columnname the column name
+     * @param value the value
+     * @return the condition
+     */
+    public static Condition ge(String columnname, Object value) {
+        return compare(Operator.GE, columnname, value);
+    }
+
+    /**
+     * Create an IN condition.
+     *
+     * @param columnname the column name
+     * @param values the values
+     * @return the condition
+     */
+    public static Condition in(String columnname, Collection<?> values) {
+        return new Condition(Operator.IN, columnname, null, Collections.unmodifiableList(new ArrayList<>(values)), null);
+    }
+
+    /**
+     * Create an IS NULL condition.
+     *
+     * @param columnname the column name
+     * @return the condition
+     */
+    public static Condition isNull(String columnname) {
+        return compare(Operator.ISNULL, columnname, null);
+    }
+
+    /**
+     * Create an IS NOT NULL condition.
+     *
+     * @param columnname the column name
+     * @return the condition
+     */
+    public static Condition isNotNull(String columnname) {
+        return compare(Operator.ISNOTNULL, columnname, null);
+    }
+
+    /**
+     * Create a condition which is true if all of the conditions are true.
+     *
+     * @param conditions the conditions
+     * @return the condition
+     */
+    public static Condition and(Condition... conditions) {
+        return new Condition(Operator.AND, null, null, null, Collections.unmodifiableList(Arrays.asList(conditions)));
+    }
+
+    /**
+     * Create a condition which is true if any of the conditions are true.
+     *
+     * @param conditions the conditions
+     * @return the condition
+     */
+    public static Condition or(Condition... conditions) {
+        return new Condition(Operator.OR, null, null, null, Collections.unmodifiableList(Arrays.asList(conditions)));
+    }
+
+    /**
+     * Get the operator.
+     *
+     * @return the operator
+     */
+    public Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * Get the column name (column tests only).
+     *
+     * @return the column name
+     */
+    public String getColumnName() {
+        return columnname;
+    }
+
+    /**
+     * Get the value (comparisons only).
+     *
+     * @return the value
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Get the values (IN only).
+     *
+     * @return the values
+     */
+    public List<Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Get the combined conditions (AND / OR only).
+     *
+     * @return the conditions
+     */
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    /**
+     * Test if a set of entity fields satisfies this condition (for use by
+     * entity storage held in memory). As with SQL, a comparison involving a
+     * null value is false.
+     *
+     * @param ef the entity fields
+     * @return true if the condition is satisfied
+     */
+    public boolean test(EntityFields ef) {
+        switch (operator) {
+            case AND:
+                return conditions.stream().allMatch((c) -> c.test(ef));
+            case OR:
+                return conditions.stream().anyMatch((c) -> c.test(ef));
+            case ISNULL:
+                return ef.get(columnname) == null;
+            case ISNOTNULL:
+                return ef.get(columnname) != null;
+            case IN:
+                Object fieldvalue = ef.get(columnname);
+                return fieldvalue != null && values.stream().anyMatch((v) -> v != null && compareValues(fieldvalue, v) == 0);
+            default:
+                Object field = ef.get(columnname);
+                if (field == null || value == null) {
+                    return false;
+                }
+                int c = compareValues(field, value);
+                switch (operator) {
+                    case EQ:
+                        return c == 0;
+                    case NE:
+                        return c != 0;
+                    case LT:
+                        return c < 0;
+                    case LE:
+                        return c <= 0;
+                    case GT:
+                        return c > 0;
+                    default:
+                        return c >= 0;
+                }
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (operator) {
+            case AND:
+            case OR:
+                StringBuilder sb = new StringBuilder("(");
+                for (Condition c : conditions) {
+                    if (sb.length() > 1) {
+                        sb.append(' ').append(operator.toSQL()).append(' ');
+                    }
+                    sb.append(c);
+                }
+                return sb.append(')').toString();
+            case ISNULL:
+            case ISNOTNULL:
+                return columnname + " " + operator.toSQL();
+            case IN:
+                return columnname + " IN " + values;
+            default:
+                return columnname + " " + operator.toSQL() + " " + value;
+        }
+    }
+
+    // compare two non null values - also used to order merged query results
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object v1, Object v2) {
+        if (v1 instanceof Number && v2 instanceof Number) {
+            return new BigDecimal(v1.toString()).compareTo(new BigDecimal(v2.toString()));
+        }
+        if (v1 instanceof Comparable && v1.getClass().isInstance(v2)) {
+            return ((Comparable<Object>) v1).compareTo(v2);
+        }
+        return v1.equals(v2) ? 0 : v1.toString().compareTo(v2.toString());
+    }
+}
@@ -16,8 +16,12 @@
 package uk.theretiredprogrammer.nbpcglibrary.api;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Stream;
 
 /**
  * Provider of a EntityPersistence Service for a particular entity
@@ -109,6 +113,15 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      */
     public K findOne(String parametername, Object parametervalue);
 
+    /**
+     * Get the entity primary keys for many (0 to many) entities - selected by
+     * a query.
+     *
+     * @param query the query
+     * @return the list of entity primary keys
+     */
+    public List<K> find(Query query);
+
    /**
      * Get the set of entity for all stored entities.
      *
@@ -116,6 +129,29 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      */
     public List<EntityFields> get();
 
+    /**
+     * Get all stored entities as a stream, reading the entities as the stream
+     * is consumed rather than holding them all in memory.
+     *
+     * The stream must be closed after use (eg by using try-with-resources).
+     *
+     * @return the stream of entities
+     */
+    public Stream<EntityFields> stream();
+
+    /**
+     * Get the entities selected by a column filter as a stream, reading the
+     * entities as the stream is consumed rather than holding them all in
+     * memory.
+     *
+     * The stream must be closed after use (eg by using try-with-resources).
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @return the stream of entities
+     */
+    public Stream<EntityFields> stream(String parametername, Object parametervalue);
+
     /**
      * Get entity data for a many (0 to many) entities - using selected by an
      * column filter.
@@ -125,6 +161,56 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      * @return the array of entity data objects
      */
     public List<EntityFields> get(String parametername, Object parametervalue);
+
+    /**
+     * Get entity data for many (0 to many) entities - selected by a query.
+     *
+     * @param query the query
+     * @return the list of entity data objects
+     */
+    public List<EntityFields> get(Query query);
+
+    /**
+     * Get partial entity data (only the requested columns, plus the primary
+     * key) for many (0 to many) entities - selected by a column filter.
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @param columns the requested column names
+     * @return the list of partial entity data objects
+     */
+    public List<EntityFields> get(String parametername, Object parametervalue, Set<String> columns);
+
+    /**
+     * Get partial entity data (only the requested columns, plus the primary
+     * key) for many (0 to many) entities - selected by a query (use a query
+     * with a null condition to select all entities).
+     *
+     * @param query the query
+     * @param columns the requested column names
+     * @return the list of partial entity data objects
+     */
+    public List<EntityFields> get(Query query, Set<String> columns);
+
+    /**
+     * Get a page of entity data - optionally selected by a column filter.
+     *
+     * Entities are returned in index order (if the entity is ordered) and then
+     * primary key order. The first page is requested with a null afterKey; the
+     * following pages are requested using the primary key of the last entity
+     * in the previous page; if that entity has since been deleted the request
+     * fails with a LogicException (rather than returning an empty last page),
+     * and paging must be restarted.
+     *
+     * @param parametername the filter column name (or null if all entities)
+     * @param parametervalue the filter value
+     * @param afterKey the primary key of the entity preceding this page (or
+     * null if first page)
+     * @param limit the maximum number of entities in the page (at least 1, else
+     * the request fails with a LogicException)
+     * @return the page of entity data objects
+     */
+    public Page<EntityFields> get(String parametername, Object parametervalue, K afterKey, int limit);
     
     /**
      * Get entity data for a single entity - using selected by an column filter.
@@ -135,6 +221,34 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      */
     public EntityFields getOne(String parametername, Object parametervalue);
 
+    /**
+     * Get the number of stored entities.
+     *
+     * @return the count of entities
+     */
+    public long count();
+
+    /**
+     * Get the number of stored entities - selected by a column filter.
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @return the count of entities
+     */
+    public long count(String parametername, Object parametervalue);
+
+    /**
+     * Test if any stored entity, other than the excluded entity, is selected
+     * by a column filter (eg to check column uniqueness).
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @param excludingPk the primary key of the entity to be excluded (or null
+     * if none excluded)
+     * @return true if a matching entity exists
+     */
+    public boolean exists(String parametername, Object parametervalue, K excludingPk);
+
     /**
      * Get the next index value for entities which have an explicit ordering
      * column defined.
@@ -143,6 +257,17 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      */
     public int findNextIdx();
 
+    /**
+     * Reserve a block of consecutive index values for entities which have an
+     * explicit ordering column defined. The values are not returned by any
+     * other reservation. A count of zero reserves no values, and returns the
+     * value which the next reservation will start at (or later).
+     *
+     * @param count the number of values to reserve
+     * @return the first value of the reserved block
+     */
+    public int reserveIdx(int count);
+
     /**
      * Get entity data - using primary key
      *
@@ -151,6 +276,16 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      */
     public EntityFields get(K pk);
 
+    /**
+     * Get entity data for a set of entities - using primary keys, as a single
+     * bulk operation.
+     *
+     * @param pks the entity primary keys
+     * @return the Objects containing field values, keyed by entity primary key
+     * (any primary keys not found in entity storage are not included)
+     */
+    public Map<K, EntityFields> get(Collection<K> pks);
+
     /**
      * Insert a new entity (set of values) into entity storage.
      *
@@ -162,9 +297,15 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
     /**
      * Update an existing entity in entity storage with a new set of values.
      *
+     * If the entity has a version column, the diff should include the version
+     * of the entity as last read; the update is then rejected if the entity
+     * has since been changed or deleted, and the version is advanced.
+     *
      * @param pk the entity primary key
      * @param diff the set of values to be updated
      * @return the full set of entity fields
+     * @throws ConcurrentUpdateException if the entity has been changed or
+     * deleted since the version was read
      */
     public EntityFields update(K pk, EntityFields diff);
 
@@ -174,4 +315,56 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      * @param pk the entity primary key
      */
     public void delete(K pk) ;
+
+    /**
+     * Delete an entity from entity storage, provided that it has not been
+     * changed since the given version was read.
+     *
+     * @param pk the entity primary key
+     * @param version the version of the entity as last read
+     * @throws ConcurrentUpdateException if the entity has been changed or
+     * deleted since the version was read
+     */
+    public void delete(K pk, Object version);
+
+    /**
+     * Get the name of the version column used for optimistic locking.
+     *
+     * @return the version column name, or null if the entity is not versioned
+     */
+    public String getVersionColumn();
+
+    /**
+     * Get the PersistenceUnitProvider used by this provider.
+     *
+     * @return the PersistenceUnitProvider
+     */
+    public PersistenceUnitProvider getPersistenceUnitProvider();
+
+    /**
+     * Insert a set of new entities into entity storage, as a single bulk
+     * operation.
+     *
+     * @param values the list of entity value sets
+     * @return the full sets of entity fields (in the same order as the values)
+     */
+    public List<EntityFields> insertAll(List<EntityFields> values);
+
+    /**
+     * Update a set of existing entities in entity storage, as a single bulk
+     * operation.
+     *
+     * @param diffs the sets of values to be updated, keyed by entity primary
+     * key
+     * @return the full sets of entity fields, keyed by entity primary key
+     */
+    public Map<K, EntityFields> updateAll(Map<K, EntityFields> diffs);
+
+    /**
+     * Delete a set of entities from entity storage, as a single bulk
+     * operation.
+     *
+     * @param pks the entity primary keys
+     */
+    public void deleteAll(Collection<K> pks);
 }
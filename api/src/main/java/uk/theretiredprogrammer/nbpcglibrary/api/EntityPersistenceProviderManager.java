@@ -17,10 +17,22 @@ package uk.theretiredprogrammer.nbpcglibrary.api;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.openide.util.Lookup;
 
 /**
@@ -29,15 +41,36 @@ import org.openide.util.Lookup;
  * Store of all required EntityPersistenceProviders and their associated
  * PersistenceUnitProviders
  *
+ * If the persistence properties include instrumentation=true, the operations
+ * of all entities are recorded in the PersistenceStatistics
+ * (slowquerythreshold sets the slow query threshold in ms).
+ *
+ * If the persistence properties include coalescewindow (or
+ * entityname.coalescewindow), rapid successive updates of an entity are
+ * coalesced; pending updates are written by flush().
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  */
 public class EntityPersistenceProviderManager {
 
     private final static Map<String, PersistenceUnitProvider> persistenceUnitProviders = new HashMap<>();
     private final static Map<String, Properties> dbproperties = new HashMap<>();
+    private final static Map<PersistenceUnitProvider, ThreadPoolExecutor> executors = new ConcurrentHashMap<>();
+    private final static Map<List<String>, QueryResultCache> querycaches = new ConcurrentHashMap<>();
+    private final static Map<List<String>, UpdateCoalescer> coalescers = new ConcurrentHashMap<>();
+    private final static Map<List<String>, EntityPersistenceProvider> entityPersistenceProviders = new ConcurrentHashMap<>();
+    private final static Map<String, EntityPersistenceProviderFactory> eppfactories = new HashMap<>();
+    private static Lookup.Result<EntityPersistenceProviderFactory> eppfactoryresult;
+
+    private static final String LOG = "nbpcglib.entitypersistenceprovidermanager";
 
     private static final String DEFAULTUSER = "nbplatform";
     private static final String DEFAULTPASSWORD = "netbeans";
+    private static final int DEFAULTASYNCTHREADS = 4;
+    private static final int DEFAULTASYNCQUEUESIZE = 1000;
+    private static final long ASYNCIDLETIMEOUT = 60; // seconds
+    private static final String DEFAULTQUERYCACHESIZE = "100";
+    private static final String DEFAULTQUERYCACHETTL = "60000"; // ms
 
     /**
      * Setup EntityPersistenceProviders and associated PersistenceUnitProviders.
@@ -69,12 +102,18 @@ public class EntityPersistenceProviderManager {
             props.setProperty("password", DEFAULTPASSWORD);
         }
         dbproperties.put(dbkey, props);
+        invalidate(dbkey);
+        if (props.containsKey("slowquerythreshold")) {
+            PersistenceStatistics.setSlowQueryThreshold(Long.parseLong(props.getProperty("slowquerythreshold")));
+        }
+        PersistenceStatistics.registerMBean();
         String puptype = props.getProperty("persistenceunitprovidertype");
         Collection<? extends PersistenceUnitProviderFactory> pupfactories = Lookup.getDefault().lookupResult(PersistenceUnitProviderFactory.class).allInstances();
         for (PersistenceUnitProviderFactory pupfactory : pupfactories) {
             if (pupfactory.getType().equals(puptype)) {
                 PersistenceUnitProvider pup = pupfactory.createPersistenceUnitProvider(props);
                 persistenceUnitProviders.put(dbkey, pup);
+                executors.put(pup, createExecutor(pup.getName(), props));
                 return;
             }
         }
@@ -98,7 +137,8 @@ public class EntityPersistenceProviderManager {
     }
 
     /**
-     * Get an Entity Persistence Provider.
+     * Get an Entity Persistence Provider. The provider for a particular
+     * dbkey and entity is a singleton and is cached in this module.
      *
      * @param dbkey the EntityPersistenceUnitProvider key.
      * @param entityname the entity name
@@ -106,52 +146,243 @@ public class EntityPersistenceProviderManager {
      * cannot be found.
      */
     public static EntityPersistenceProvider getEntityPersistenceProvider(String dbkey, String entityname) {
-        Properties props = dbproperties.get(dbkey);
-        if (props == null) {
-            throw new LogicException("Properties for " + dbkey + " are not available");
-        }
-        String puptype = props.getProperty("entitypersistenceprovidertype");
-        Collection<? extends EntityPersistenceProviderFactory> eppfactories = Lookup.getDefault().lookupResult(EntityPersistenceProviderFactory.class).allInstances();
-        for (EntityPersistenceProviderFactory eppfactory : eppfactories) {
-            if (eppfactory.getType().equals(puptype)) {
-                try {
-                    return eppfactory.createEntityPersistenceProvider(entityname, props, getPersistenceUnitProvider(dbkey));
-                } catch (IOException ex) {
-                    throw new LogicException("getEntityPersistenceProvide() failed: " + ex.getMessage());
-                }
-            }
-        }
-        throw new LogicException("Unknown EntityPersistenceProvider type used in Persistence Properties");
+        return getEntityPersistenceProvider(dbkey, entityname, null);
     }
-    
+
     /**
-     * Get an Entity Persistence Provider for an ordered entity.
+     * Get an Entity Persistence Provider for an ordered entity. The provider
+     * for a particular dbkey, entity and index column is a singleton and is
+     * cached in this module.
      *
      * @param dbkey the EntityPersistenceUnitProvider key.
      * @param entityname the entity name
-     * @param idx the index column name
+     * @param idx the index column name (or null if not ordered)
      * @return the EntityPersistenceProvider
      * cannot be found.
      */
     public static EntityPersistenceProvider getEntityPersistenceProvider(String dbkey, String entityname, String idx) {
+        List<String> key = Arrays.asList(dbkey, entityname, idx);
+        EntityPersistenceProvider epp = entityPersistenceProviders.get(key);
+        if (epp != null) {
+            return epp;
+        }
+        synchronized (entityPersistenceProviders) {
+            epp = entityPersistenceProviders.get(key);
+            if (epp == null) {
+                epp = createEntityPersistenceProvider(dbkey, entityname, idx);
+                entityPersistenceProviders.put(key, epp);
+            }
+            return epp;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EntityPersistenceProvider createEntityPersistenceProvider(String dbkey, String entityname, String idx) {
         Properties props = dbproperties.get(dbkey);
         if (props == null) {
             throw new LogicException("Properties for " + dbkey + " are not available");
         }
-        String puptype = props.getProperty("entitypersistenceprovidertype");
-        Collection<? extends EntityPersistenceProviderFactory> eppfactories = Lookup.getDefault().lookupResult(EntityPersistenceProviderFactory.class).allInstances();
-        for (EntityPersistenceProviderFactory eppfactory : eppfactories) {
-            if (eppfactory.getType().equals(puptype)) {
-                try {
-                    return eppfactory.createEntityPersistenceProvider(entityname, props, getPersistenceUnitProvider(dbkey), idx);
-                } catch (IOException ex) {
-                    throw new LogicException("getEntityPersistenceProvide() failed: " + ex.getMessage());
+        EntityPersistenceProviderFactory eppfactory = getEntityPersistenceProviderFactory(dbkey, props);
+        try {
+            return wrap(dbkey, entityname, idx, props, idx == null
+                    ? eppfactory.createEntityPersistenceProvider(entityname, props, getPersistenceUnitProvider(dbkey))
+                    : eppfactory.createEntityPersistenceProvider(entityname, props, getPersistenceUnitProvider(dbkey), idx));
+        } catch (IOException ex) {
+            throw new LogicException("getEntityPersistenceProvide() failed: " + ex.getMessage());
+        }
+    }
+
+    private static EntityPersistenceProviderFactory getEntityPersistenceProviderFactory(String dbkey, Properties props) {
+        synchronized (entityPersistenceProviders) {
+            if (eppfactoryresult == null) {
+                eppfactoryresult = Lookup.getDefault().lookupResult(EntityPersistenceProviderFactory.class);
+                // modules loaded or unloaded - factories must be resolved again
+                eppfactoryresult.addLookupListener((ev) -> invalidate(null));
+            }
+            EntityPersistenceProviderFactory eppfactory = eppfactories.get(dbkey);
+            if (eppfactory != null) {
+                return eppfactory;
+            }
+            String epptype = props.getProperty("entitypersistenceprovidertype");
+            for (EntityPersistenceProviderFactory f : eppfactoryresult.allInstances()) {
+                if (f.getType().equals(epptype)) {
+                    eppfactories.put(dbkey, f);
+                    return f;
                 }
             }
         }
         throw new LogicException("Unknown EntityPersistenceProvider type used in Persistence Properties");
     }
 
+    // drop the cached factories, providers, query caches and coalescers (of a
+    // dbkey, or all if null); pending coalesced updates are first written, and
+    // the dropped providers are then closed (closing writes out a provider's
+    // state, but leaves it usable by any holder of it)
+    private static void invalidate(String dbkey) {
+        List<EntityPersistenceProvider> dropped = new ArrayList<>();
+        List<UpdateCoalescer> droppedcoalescers = new ArrayList<>();
+        synchronized (entityPersistenceProviders) {
+            Iterator<Map.Entry<List<String>, EntityPersistenceProvider>> i = entityPersistenceProviders.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<List<String>, EntityPersistenceProvider> e = i.next();
+                if (dbkey == null || dbkey.equals(e.getKey().get(0))) {
+                    dropped.add(e.getValue());
+                    i.remove();
+                }
+            }
+            Iterator<Map.Entry<List<String>, UpdateCoalescer>> c = coalescers.entrySet().iterator();
+            while (c.hasNext()) {
+                Map.Entry<List<String>, UpdateCoalescer> e = c.next();
+                if (dbkey == null || dbkey.equals(e.getKey().get(0))) {
+                    droppedcoalescers.add(e.getValue());
+                    c.remove();
+                }
+            }
+            querycaches.keySet().removeIf((key) -> dbkey == null || dbkey.equals(key.get(0)));
+            if (dbkey == null) {
+                eppfactories.clear();
+            } else {
+                eppfactories.remove(dbkey);
+            }
+        }
+        droppedcoalescers.stream().forEach((coalescer) -> {
+            try {
+                coalescer.flush();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(LOG).log(Level.WARNING, "Pending updates could not be written - {0}", ex.getMessage());
+            }
+        });
+        close(dropped);
+    }
+
+    /**
+     * Close down - write any pending coalesced updates, close all
+     * EntityPersistenceProviders and stop the asynchronous request executors.
+     */
+    public static void close() {
+        List<EntityPersistenceProvider> closing = new ArrayList<>();
+        synchronized (entityPersistenceProviders) {
+            closing.addAll(entityPersistenceProviders.values());
+            entityPersistenceProviders.clear();
+            eppfactories.clear();
+        }
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(LOG).log(Level.WARNING, "Pending updates could not be written - {0}", ex.getMessage());
+        }
+        close(closing);
+        executors.values().stream().forEach((executor) -> {
+            executor.shutdown();
+        });
+    }
+
+    private static void close(List<EntityPersistenceProvider> closing) {
+        closing.stream().forEach((epp) -> {
+            try {
+                epp.close();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(LOG).log(Level.WARNING, "Close of {0} failed - {1}", new Object[]{epp.instanceDescription(), ex.getMessage()});
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EntityPersistenceProvider wrap(String dbkey, String entityname, String idx, Properties props, EntityPersistenceProvider epp) {
+        if (Boolean.parseBoolean(props.getProperty("instrumentation", "false"))) {
+            epp = new InstrumentedEntityPersistenceProvider(epp, entityname);
+        }
+        long window = Long.parseLong(props.getProperty(entityname + ".coalescewindow", props.getProperty("coalescewindow", "0")));
+        if (window > 0) {
+            epp = new CoalescingEntityPersistenceProvider(epp,
+                    coalescers.computeIfAbsent(Arrays.asList(dbkey, entityname), (k) -> new UpdateCoalescer(entityname, window)));
+        }
+        if (!Boolean.parseBoolean(props.getProperty(entityname + ".querycache", "false"))) {
+            return epp;
+        }
+        QueryResultCache cache = querycaches.computeIfAbsent(Arrays.asList(dbkey, entityname),
+                (k) -> new QueryResultCache(entityname,
+                        Integer.parseInt(props.getProperty("querycachesize", DEFAULTQUERYCACHESIZE)),
+                        Long.parseLong(props.getProperty("querycachettl", DEFAULTQUERYCACHETTL))));
+        return new CachingEntityPersistenceProvider(epp, cache, idx);
+    }
+
+    /**
+     * Get the query result cache for an entity (see
+     * CachingEntityPersistenceProvider).
+     *
+     * The results of an entity's queries are cached if the persistence
+     * properties include entityname.querycache=true; the cache holds at most
+     * querycachesize results (default 100), each for at most querycachettl ms
+     * (default 60000).
+     *
+     * @param dbkey the EntityPersistenceUnitProvider key.
+     * @param entityname the entity name
+     * @return the query result cache, or null if the entity's query results
+     * are not cached
+     */
+    public static QueryResultCache getQueryResultCache(String dbkey, String entityname) {
+        return querycaches.get(Arrays.asList(dbkey, entityname));
+    }
+
+    /**
+     * Get the update coalescer for an entity (see
+     * CoalescingEntityPersistenceProvider).
+     *
+     * Rapid successive updates of an entity are coalesced if the persistence
+     * properties include entityname.coalescewindow (or coalescewindow for all
+     * entities) - the length of the coalescing window in ms.
+     *
+     * @param dbkey the EntityPersistenceUnitProvider key.
+     * @param entityname the entity name
+     * @return the update coalescer, or null if the entity's updates are not
+     * coalesced
+     */
+    public static UpdateCoalescer getUpdateCoalescer(String dbkey, String entityname) {
+        return coalescers.get(Arrays.asList(dbkey, entityname));
+    }
+
+    /**
+     * Write all pending coalesced updates (eg on close down).
+     */
+    public static void flush() {
+        coalescers.values().stream().forEach((coalescer) -> {
+            coalescer.flush();
+        });
+    }
+
+    /**
+     * Get the executor used for asynchronous requests to a
+     * PersistenceUnitProvider (see AsyncEntityPersistenceProvider).
+     *
+     * Each PersistenceUnitProvider has its own bounded executor, configured
+     * from the persistence properties: asyncthreads - the maximum number of
+     * concurrent requests (default 4); asyncqueuesize - the maximum number of
+     * queued requests (default 1000). When the queue is full, further requests
+     * are rejected (the requesting thread, eg the EDT, is never used to
+     * execute them) - see AsyncEntityPersistenceProvider.
+     *
+     * @param pup the PersistenceUnitProvider
+     * @return the executor
+     */
+    public static Executor getExecutor(PersistenceUnitProvider pup) {
+        return executors.computeIfAbsent(pup, (p) -> createExecutor(p.getName(), new Properties()));
+    }
+
+    private static ThreadPoolExecutor createExecutor(String name, Properties props) {
+        int threads = Integer.parseInt(props.getProperty("asyncthreads", Integer.toString(DEFAULTASYNCTHREADS)));
+        int queuesize = Integer.parseInt(props.getProperty("asyncqueuesize", Integer.toString(DEFAULTASYNCQUEUESIZE)));
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, ASYNCIDLETIMEOUT, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queuesize), (r) -> {
+                    Thread t = new Thread(r, "async-" + name + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Get all PersistenceUnitProviders
      *
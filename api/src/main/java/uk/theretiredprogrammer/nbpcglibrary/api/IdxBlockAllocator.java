@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+/**
+ * Allocator of index values (hi-lo) - index values are reserved from entity
+ * storage in blocks, and then handed out from the reserved block without any
+ * further access to entity storage.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class IdxBlockAllocator {
+
+    /**
+     * Reserver of blocks of index values from entity storage.
+     */
+    public interface BlockReserver {
+
+        /**
+         * Reserve a block of consecutive index values.
+         *
+         * @param count the number of values in the block
+         * @return the first value of the block
+         */
+        public int reserve(int count);
+    }
+
+    private final BlockReserver reserver;
+    private final int blocksize;
+    private int next = 0;
+    private int limit = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param reserver the reserver of blocks
+     * @param blocksize the number of values reserved in each block
+     */
+    public IdxBlockAllocator(BlockReserver reserver, int blocksize) {
+        this.reserver = reserver;
+        this.blocksize = Math.max(1, blocksize);
+    }
+
+    /**
+     * Get the next index value.
+     *
+     * @return the index value
+     */
+    public synchronized int next() {
+        if (next >= limit) {
+            next = reserver.reserve(blocksize);
+            limit = next + blocksize;
+        }
+        return next++;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * An EntityPersistenceProvider which records the latency and row count of
+ * every operation of another EntityPersistenceProvider in the
+ * PersistenceStatistics (with the entity table as the source).
+ *
+ * The latency of a stream is the time to open it (the rows are read as it is
+ * consumed, so are not counted).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key type
+ */
+public class InstrumentedEntityPersistenceProvider<K> implements EntityPersistenceProvider<K> {
+
+    private final EntityPersistenceProvider<K> epp;
+    private final String tablename;
+
+    /**
+     * Constructor.
+     *
+     * @param epp the EntityPersistenceProvider to be instrumented
+     * @param tablename the entity table name
+     */
+    public InstrumentedEntityPersistenceProvider(EntityPersistenceProvider<K> epp, String tablename) {
+        this.epp = epp;
+        this.tablename = tablename;
+    }
+
+    /**
+     * Get the underlying EntityPersistenceProvider.
+     *
+     * @return the EntityPersistenceProvider
+     */
+    public EntityPersistenceProvider<K> getEntityPersistenceProvider() {
+        return epp;
+    }
+
+    private <R> R timed(String operation, Supplier<R> request, ToLongFunction<R> rows, Object... parameters) {
+        long start = System.nanoTime();
+        R result = null;
+        try {
+            result = request.get();
+            return result;
+        } finally {
+            long count = result == null ? 0 : rows.applyAsLong(result);
+            PersistenceStatistics.record(tablename, operation, System.nanoTime() - start, count,
+                    () -> operation + " " + tablename + " " + Arrays.toString(parameters));
+        }
+    }
+
+    private void timedRun(String operation, Runnable request, long rows, Object... parameters) {
+        timed(operation, () -> {
+            request.run();
+            return rows;
+        }, (r) -> r, parameters);
+    }
+
+    @Override
+    public String instanceDescription() {
+        return epp.instanceDescription();
+    }
+
+    @Override
+    public void init(String tablename, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        epp.init(tablename, properties, pup);
+    }
+
+    @Override
+    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        epp.init(tablename, idx, properties, pup);
+    }
+
+    @Override
+    public void close() {
+        epp.close();
+    }
+
+    @Override
+    public K getPK(EntityFields ef) {
+        return epp.getPK(ef);
+    }
+
+    @Override
+    public void autoGenPrimaryKeyHook(EntityFields ef) {
+        epp.autoGenPrimaryKeyHook(ef);
+    }
+
+    @Override
+    public void addTimestampInfo(EntityFields ef) {
+        epp.addTimestampInfo(ef);
+    }
+
+    @Override
+    public void updateTimestampInfo(EntityFields ef) {
+        epp.updateTimestampInfo(ef);
+    }
+
+    @Override
+    public List<K> find() {
+        return timed("find", () -> epp.find(), List::size);
+    }
+
+    @Override
+    public List<K> find(String parametername, Object parametervalue) {
+        return timed("find", () -> epp.find(parametername, parametervalue), List::size, parametername, parametervalue);
+    }
+
+    @Override
+    public K findOne(String parametername, Object parametervalue) {
+        return timed("findOne", () -> epp.findOne(parametername, parametervalue), (k) -> 1, parametername, parametervalue);
+    }
+
+    @Override
+    public List<K> find(Query query) {
+        return timed("findQuery", () -> epp.find(query), List::size, query.getWhere());
+    }
+
+    @Override
+    public List<EntityFields> get() {
+        return timed("get", () -> epp.get(), List::size);
+    }
+
+    @Override
+    public Stream<EntityFields> stream() {
+        return timed("stream", () -> epp.stream(), (s) -> 0);
+    }
+
+    @Override
+    public Stream<EntityFields> stream(String parametername, Object parametervalue) {
+        return timed("stream", () -> epp.stream(parametername, parametervalue), (s) -> 0, parametername, parametervalue);
+    }
+
+    @Override
+    public List<EntityFields> get(String parametername, Object parametervalue) {
+        return timed("get", () -> epp.get(parametername, parametervalue), List::size, parametername, parametervalue);
+    }
+
+    @Override
+    public List<EntityFields> get(Query query) {
+        return timed("getQuery", () -> epp.get(query), List::size, query.getWhere());
+    }
+
+    @Override
+    public List<EntityFields> get(String parametername, Object parametervalue, Set<String> columns) {
+        return timed("getColumns", () -> epp.get(parametername, parametervalue, columns), List::size, parametername, parametervalue, columns);
+    }
+
+    @Override
+    public List<EntityFields> get(Query query, Set<String> columns) {
+        return timed("getColumns", () -> epp.get(query, columns), List::size, query.getWhere(), columns);
+    }
+
+    @Override
+    public Page<EntityFields> get(String parametername, Object parametervalue, K afterKey, int limit) {
+        return timed("getPage", () -> epp.get(parametername, parametervalue, afterKey, limit), (p) -> p.getItems().size(),
+                parametername, parametervalue, afterKey, limit);
+    }
+
+    @Override
+    public EntityFields getOne(String parametername, Object parametervalue) {
+        return timed("getOne", () -> epp.getOne(parametername, parametervalue), (ef) -> 1, parametername, parametervalue);
+    }
+
+    @Override
+    public long count() {
+        return timed("count", () -> epp.count(), (c) -> 1);
+    }
+
+    @Override
+    public long count(String parametername, Object parametervalue) {
+        return timed("count", () -> epp.count(parametername, parametervalue), (c) -> 1, parametername, parametervalue);
+    }
+
+    @Override
+    public boolean exists(String parametername, Object parametervalue, K excludingPk) {
+        return timed("exists", () -> epp.exists(parametername, parametervalue, excludingPk), (b) -> 1, parametername, parametervalue, excludingPk);
+    }
+
+    @Override
+    public int findNextIdx() {
+        return timed("findNextIdx", () -> epp.findNextIdx(), (i) -> 0);
+    }
+
+    @Override
+    public int reserveIdx(int count) {
+        return timed("reserveIdx", () -> epp.reserveIdx(count), (i) -> 0, count);
+    }
+
+    @Override
+    public EntityFields get(K pk) {
+        return timed("getByPK", () -> epp.get(pk), (ef) -> 1, pk);
+    }
+
+    @Override
+    public Map<K, EntityFields> get(Collection<K> pks) {
+        return timed("getByPKs", () -> epp.get(pks), Map::size, pks);
+    }
+
+    @Override
+    public EntityFields insert(EntityFields values) {
+        return timed("insert", () -> epp.insert(values), (ef) -> 1, values);
+    }
+
+    @Override
+    public EntityFields update(K pk, EntityFields diff) {
+        return timed("update", () -> epp.update(pk, diff), (ef) -> 1, pk, diff);
+    }
+
+    @Override
+    public void delete(K pk) {
+        timedRun("delete", () -> epp.delete(pk), 1, pk);
+    }
+
+    @Override
+    public void delete(K pk, Object version) {
+        timedRun("delete", () -> epp.delete(pk, version), 1, pk, version);
+    }
+
+    @Override
+    public String getVersionColumn() {
+        return epp.getVersionColumn();
+    }
+
+    @Override
+    public PersistenceUnitProvider getPersistenceUnitProvider() {
+        return epp.getPersistenceUnitProvider();
+    }
+
+    @Override
+    public List<EntityFields> insertAll(List<EntityFields> values) {
+        return timed("insertAll", () -> epp.insertAll(values), List::size, values.size());
+    }
+
+    @Override
+    public Map<K, EntityFields> updateAll(Map<K, EntityFields> diffs) {
+        return timed("updateAll", () -> epp.updateAll(diffs), Map::size, diffs.keySet());
+    }
+
+    @Override
+    public void deleteAll(Collection<K> pks) {
+        timedRun("deleteAll", () -> epp.deleteAll(pks), pks.size(), pks);
+    }
+}
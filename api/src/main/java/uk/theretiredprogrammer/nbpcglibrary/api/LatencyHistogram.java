@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, with log-linear buckets (as in an HDR histogram):
+ * each power of two range is divided into 16 equal buckets, so recorded
+ * values are held to within about 6%, with a fixed memory size and a lock
+ * free record.
+ *
+ * Latencies are recorded in microseconds, up to about 12 days.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class LatencyHistogram {
+
+    private static final int SUBBITS = 5;
+    private static final int SUB = 1 << SUBBITS;
+    private static final int HALF = SUB >> 1;
+    private static final int MAXBITS = 40;
+    private static final int BUCKETS = SUB + (MAXBITS - SUBBITS + 1) * HALF;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency (ns)
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        min.accumulateAndGet(micros, Math::min);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUBBITS - 1);
+        int index = SUB + (shift - 1) * HALF + (int) ((value >> shift) - HALF);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB) {
+            return bucket;
+        }
+        int k = bucket - SUB;
+        int shift = k / HALF + 1;
+        long m = k % HALF + HALF;
+        return ((m + 1) << shift) - 1;
+    }
+
+    /**
+     * Get the number of recorded latencies.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the minimum recorded latency.
+     *
+     * @return the latency (microseconds), or 0 if none recorded
+     */
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    /**
+     * Get the maximum recorded latency.
+     *
+     * @return the latency (microseconds)
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the mean recorded latency.
+     *
+     * @return the latency (microseconds), or 0 if none recorded
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * Get the latency at a percentile - the highest latency in the bucket
+     * containing the percentile (limited to the maximum recorded latency).
+     *
+     * @param percentile the percentile (0 to 100)
+     * @return the latency (microseconds), or 0 if none recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += buckets.get(i);
+            if (cumulative >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clear all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the statistics of one operation on one source (an entity
+ * table or a persistence unit) - see PersistenceStatistics.
+ *
+ * Latencies are in microseconds.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class OperationStatistics {
+
+    private final String source;
+    private final String operation;
+    private final long count;
+    private final long rows;
+    private final long slow;
+    private final long min;
+    private final long mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long max;
+
+    /**
+     * Constructor.
+     *
+     * @param source the source name
+     * @param operation the operation name
+     * @param count the number of operations
+     * @param rows the total number of rows read or written
+     * @param slow the number of slow operations
+     * @param min the minimum latency
+     * @param mean the mean latency
+     * @param p50 the median latency
+     * @param p90 the 90th percentile latency
+     * @param p99 the 99th percentile latency
+     * @param max the maximum latency
+     */
+    @ConstructorProperties({"source", "operation", "count", "rows", "slow", "min", "mean", "p50", "p90", "p99", "max"})
+    public OperationStatistics(String source, String operation, long count, long rows, long slow,
+            long min, long mean, long p50, long p90, long p99, long max) {
+        this.source = source;
+        this.operation = operation;
+        this.count = count;
+        this.rows = rows;
+        this.slow = slow;
+        this.min = min;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    /**
+     * Get the source name (entity table or persistence unit).
+     *
+     * @return the source name
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Get the operation name.
+     *
+     * @return the operation name
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Get the number of operations.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the total number of rows read or written by the operations.
+     *
+     * @return the row count
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the number of operations slower than the slow query threshold.
+     *
+     * @return the slow count
+     */
+    public long getSlow() {
+        return slow;
+    }
+
+    /**
+     * Get the minimum latency.
+     *
+     * @return the latency
+     */
+    public long getMin() {
+        return min;
+    }
+
+    /**
+     * Get the mean latency.
+     *
+     * @return the latency
+     */
+    public long getMean() {
+        return mean;
+    }
+
+    /**
+     * Get the median latency.
+     *
+     * @return the latency
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * Get the 90th percentile latency.
+     *
+     * @return the latency
+     */
+    public long getP90() {
+        return p90;
+    }
+
+    /**
+     * Get the 99th percentile latency.
+     *
+     * @return the latency
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * Get the maximum latency.
+     *
+     * @return the latency
+     */
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return source + " " + operation + ": count=" + count + ", rows=" + rows + ", slow=" + slow
+                + ", latency(us) min=" + min + " mean=" + mean + " p50=" + p50 + " p90=" + p90
+                + " p99=" + p99 + " max=" + max;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.List;
+
+/**
+ * A page of items returned by a paged request.
+ *
+ * The next page is requested using the primary key of the last item in this
+ * page as the "after" key.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <T> the item class
+ */
+public class Page<T> {
+
+    private final List<T> items;
+    private final boolean more;
+
+    /**
+     * Constructor.
+     *
+     * @param items the items in this page
+     * @param more true if there are further items after this page
+     */
+    public Page(List<T> items, boolean more) {
+        this.items = items;
+        this.more = more;
+    }
+
+    /**
+     * Get the items in this page.
+     *
+     * @return the items
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * Test if there are further items after this page.
+     *
+     * @return true if there are further items
+     */
+    public boolean hasMore() {
+        return more;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of the operations made on entity storage - latency histograms
+ * and row counts for each operation on each source (an entity table, see
+ * InstrumentedEntityPersistenceProvider, or a persistence unit, for the SQL
+ * statements or remote commands it executes).
+ *
+ * Any operation taking at least the slow query threshold (default 1000 ms) is
+ * logged, at WARNING level on the nbpcglib.slowquery log, with its full query
+ * or command text.
+ *
+ * The statistics are also available through JMX (see
+ * PersistenceStatisticsMXBean).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class PersistenceStatistics {
+
+    private static final String SLOWLOG = "nbpcglib.slowquery";
+    private static final String MBEANNAME = "uk.theretiredprogrammer.nbpcglibrary:type=PersistenceStatistics";
+
+    private static final Map<String, Collector> collectors = new ConcurrentHashMap<>();
+    private static volatile long slowquerythreshold = 1000; // ms
+    private static boolean registered = false;
+
+    private static class Collector {
+
+        final String source;
+        final String operation;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong slow = new AtomicLong();
+
+        Collector(String source, String operation) {
+            this.source = source;
+            this.operation = operation;
+        }
+
+        OperationStatistics snapshot() {
+            return new OperationStatistics(source, operation, latencies.getCount(), rows.get(), slow.get(),
+                    latencies.getMin(), latencies.getMean(), latencies.getValueAtPercentile(50),
+                    latencies.getValueAtPercentile(90), latencies.getValueAtPercentile(99), latencies.getMax());
+        }
+    }
+
+    private PersistenceStatistics() {
+    }
+
+    /**
+     * Record an operation.
+     *
+     * @param source the source name (entity table or persistence unit)
+     * @param operation the operation name
+     * @param nanos the latency of the operation (ns)
+     * @param rows the number of rows read or written by the operation
+     * @param text the supplier of the full query or command text (only used
+     * if the operation is slow)
+     */
+    public static void record(String source, String operation, long nanos, long rows, Supplier<String> text) {
+        Collector collector = collectors.computeIfAbsent(source + "/" + operation, (k) -> new Collector(source, operation));
+        collector.latencies.record(nanos);
+        collector.rows.addAndGet(rows);
+        long millis = nanos / 1000000;
+        if (millis >= slowquerythreshold) {
+            collector.slow.incrementAndGet();
+            Logger.getLogger(SLOWLOG).log(Level.WARNING, "Slow {0} on {1}: {2} ms, {3} rows - {4}",
+                    new Object[]{operation, source, Long.toString(millis), Long.toString(rows), text.get()});
+        }
+    }
+
+    /**
+     * Get a snapshot of the statistics of all operations (ordered by source
+     * and operation).
+     *
+     * @return the operation statistics
+     */
+    public static List<OperationStatistics> getSnapshot() {
+        List<OperationStatistics> snapshot = new ArrayList<>();
+        collectors.values().forEach((collector) -> snapshot.add(collector.snapshot()));
+        snapshot.sort(Comparator.comparing(OperationStatistics::getSource).thenComparing(OperationStatistics::getOperation));
+        return snapshot;
+    }
+
+    /**
+     * Get the slow query threshold.
+     *
+     * @return the threshold (ms)
+     */
+    public static long getSlowQueryThreshold() {
+        return slowquerythreshold;
+    }
+
+    /**
+     * Set the slow query threshold.
+     *
+     * @param threshold the threshold (ms)
+     */
+    public static void setSlowQueryThreshold(long threshold) {
+        slowquerythreshold = threshold;
+    }
+
+    /**
+     * Clear all statistics.
+     */
+    public static void reset() {
+        collectors.clear();
+    }
+
+    /**
+     * Register the statistics with the platform MBean server (if not already
+     * registered).
+     */
+    public static synchronized void registerMBean() {
+        if (!registered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Management(), new ObjectName(MBEANNAME));
+                registered = true;
+            } catch (JMException ex) {
+                Logger.getLogger(SLOWLOG).log(Level.WARNING, "Unable to register persistence statistics with JMX - {0}", ex.getMessage());
+            }
+        }
+    }
+
+    private static class Management implements PersistenceStatisticsMXBean {
+
+        @Override
+        public List<OperationStatistics> getOperations() {
+            return getSnapshot();
+        }
+
+        @Override
+        public long getSlowQueryThreshold() {
+            return PersistenceStatistics.getSlowQueryThreshold();
+        }
+
+        @Override
+        public void setSlowQueryThreshold(long threshold) {
+            PersistenceStatistics.setSlowQueryThreshold(threshold);
+        }
+
+        @Override
+        public void reset() {
+            PersistenceStatistics.reset();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.List;
+
+/**
+ * The JMX management interface of the persistence statistics (registered as
+ * uk.theretiredprogrammer.nbpcglibrary:type=PersistenceStatistics).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public interface PersistenceStatisticsMXBean {
+
+    /**
+     * Get a snapshot of the statistics of all operations.
+     *
+     * @return the operation statistics
+     */
+    public List<OperationStatistics> getOperations();
+
+    /**
+     * Get the slow query threshold.
+     *
+     * @return the threshold (ms)
+     */
+    public long getSlowQueryThreshold();
+
+    /**
+     * Set the slow query threshold - operations taking at least this long are
+     * logged with their full query or command text.
+     *
+     * @param threshold the threshold (ms)
+     */
+    public void setSlowQueryThreshold(long threshold);
+
+    /**
+     * Clear all statistics.
+     */
+    public void reset();
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+/**
+ * PersistenceTimeoutException Class, thrown when an operation on entity
+ * storage does not complete within its timeout (a query timeout, a remote
+ * request timeout, or a wait for a lock or a connection).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class PersistenceTimeoutException extends LogicException {
+
+    /**
+     * Constructor
+     *
+     * @param msg the exception message
+     */
+    public PersistenceTimeoutException(String msg) {
+        super(msg);
+    }
+}
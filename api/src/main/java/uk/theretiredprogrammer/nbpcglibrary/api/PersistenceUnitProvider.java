@@ -39,4 +39,30 @@ public interface PersistenceUnitProvider extends HasInstanceDescription {
      * @return the name
      */
     public String getName();
+
+    /**
+     * Get the change data capture feed of this PersistenceUnitProvider, on
+     * which every committed insert, update and delete is published.
+     *
+     * @return the change feed
+     */
+    public ChangeFeed getChangeFeed();
+
+    /**
+     * Test if the calling thread is within a transaction of this
+     * PersistenceUnitProvider - whose writes are not yet committed, and so
+     * must not be cached or shared with other threads.
+     *
+     * @return true if in transaction
+     */
+    public boolean isInTransaction();
+
+    /**
+     * Run an action when the calling thread's transaction ends (whether
+     * committed or rolled back), or immediately if it is not within a
+     * transaction.
+     *
+     * @param action the action
+     */
+    public void afterTransaction(Runnable action);
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query used to select entities - a condition and an ordering.
+ *
+ * If no ordering is defined, the entities are returned in the provider's
+ * default order (index order if the entity is ordered).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class Query {
+
+    /**
+     * An ordering column.
+     */
+    public static class OrderBy {
+
+        private final String columnname;
+        private final boolean descending;
+
+        private OrderBy(String columnname, boolean descending) {
+            this.columnname = columnname;
+            this.descending = descending;
+        }
+
+        /**
+         * Get the column name.
+         *
+         * @return the column name
+         */
+        public String getColumnName() {
+            return columnname;
+        }
+
+        /**
+         * Test if descending order.
+         *
+         * @return true if descending
+         */
+        public boolean isDescending() {
+            return descending;
+        }
+    }
+
+    private final Condition where;
+    private final List<OrderBy> orderby = new ArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param where the condition selecting the entities (or null if all
+     * entities)
+     */
+    public Query(Condition where) {
+        this.where = where;
+    }
+
+    /**
+     * Add an ascending ordering column.
+     *
+     * @param columnname the column name
+     * @return this query
+     */
+    public Query orderBy(String columnname) {
+        return orderBy(columnname, false);
+    }
+
+    /**
+     * Add an ordering column.
+     *
+     * @param columnname the column name
+     * @param descending true if descending order
+     * @return this query
+     */
+    public Query orderBy(String columnname, boolean descending) {
+        Condition.checkColumnName(columnname);
+        orderby.add(new OrderBy(columnname, descending));
+        return this;
+    }
+
+    /**
+     * Get the condition.
+     *
+     * @return the condition (or null if all entities)
+     */
+    public Condition getWhere() {
+        return where;
+    }
+
+    /**
+     * Get the ordering columns.
+     *
+     * @return the ordering columns
+     */
+    public List<OrderBy> getOrderBy() {
+        return Collections.unmodifiableList(orderby);
+    }
+
+    /**
+     * Test if a set of entity fields is selected by this query.
+     *
+     * @param ef the entity fields
+     * @return true if selected
+     */
+    public boolean test(EntityFields ef) {
+        return where == null || where.test(ef);
+    }
+}
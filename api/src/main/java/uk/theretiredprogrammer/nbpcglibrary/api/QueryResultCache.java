@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A cache of query results for a single entity table, shared by all the
+ * CachingEntityPersistenceProviders for the table.
+ *
+ * Results are keyed by the query shape (the provider method) and its
+ * parameters, and are held for at most the time to live; the least recently
+ * used result is discarded when the cache is full. Any write to the table
+ * invalidates all its cached results.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class QueryResultCache {
+
+    private static final float LOADFACTOR = (float) 0.9;
+
+    private final String tablename;
+    private final int maxsize;
+    private final long ttl;
+    private final Map<List<Object>, CachedResult> results;
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long expiries = 0;
+    private long invalidations = 0;
+
+    private static class CachedResult {
+
+        final Object result;
+        final long expires;
+
+        CachedResult(Object result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tablename the entity table name
+     * @param maxsize the maximum number of cached results
+     * @param ttl the time to live of a cached result (ms)
+     */
+    public QueryResultCache(String tablename, int maxsize, long ttl) {
+        this.tablename = tablename;
+        this.maxsize = maxsize;
+        this.ttl = ttl;
+        results = new LinkedHashMap<List<Object>, CachedResult>((int) (maxsize / LOADFACTOR) + 1, LOADFACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, CachedResult> eldest) {
+                return size() > QueryResultCache.this.maxsize;
+            }
+        };
+    }
+
+    /**
+     * Get a query result - from the cache if present, otherwise by executing
+     * the query (and caching its result, unless the table has been written
+     * while the query was executing).
+     *
+     * The cached result is shared, so the caller must not modify it (see
+     * CachingEntityPersistenceProvider, which returns copies).
+     *
+     * @param <R> the result type
+     * @param query the query executor
+     * @param shape the query shape
+     * @param parameters the query parameters
+     * @return the result
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R get(Supplier<R> query, String shape, Object... parameters) {
+        List<Object> key = Arrays.asList(shape, Arrays.asList(parameters));
+        long querygeneration;
+        synchronized (this) {
+            CachedResult cached = results.get(key);
+            if (cached != null) {
+                if (System.currentTimeMillis() < cached.expires) {
+                    hits++;
+                    return (R) cached.result;
+                }
+                results.remove(key);
+                expiries++;
+            }
+            misses++;
+            querygeneration = generation;
+        }
+        R result = query.get();
+        synchronized (this) {
+            if (querygeneration == generation) {
+                results.put(key, new CachedResult(result, System.currentTimeMillis() + ttl));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Invalidate all cached results (the table has been written).
+     */
+    public synchronized void invalidate() {
+        generation++;
+        if (!results.isEmpty()) {
+            results.clear();
+            invalidations++;
+        }
+    }
+
+    /**
+     * Get the entity table name.
+     *
+     * @return the table name
+     */
+    public String getTableName() {
+        return tablename;
+    }
+
+    /**
+     * Get the number of queries answered from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of queries executed because no result was cached.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of cached results discarded because their time to live
+     * had passed.
+     *
+     * @return the expiry count
+     */
+    public synchronized long getExpiries() {
+        return expiries;
+    }
+
+    /**
+     * Get the number of times cached results were discarded by writes to the
+     * table.
+     *
+     * @return the invalidation count
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Get the number of results currently cached.
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return tablename + " query cache: hits=" + hits + ", misses=" + misses + ", expiries=" + expiries
+                + ", invalidations=" + invalidations + ", size=" + results.size();
+    }
+}
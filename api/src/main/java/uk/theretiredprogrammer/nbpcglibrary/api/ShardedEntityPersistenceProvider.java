@@ -0,0 +1,519 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * EntityPersistenceProvider for a table held by a ShardedPersistenceUnitProvider
+ * - either the whole table on a single shard, or key ranges of the table on a
+ * number of shards.
+ *
+ * Requests for an entity (by primary key) are routed to the shard holding its
+ * key range. Requests for many entities are scattered to all of the table's
+ * shards, and the results gathered; lists are then ordered by the query's
+ * order, or by the index column for ordered entities (otherwise the results
+ * are in shard order). Pages are read from each shard in turn, so are in
+ * (index, primary key) order within a shard, and in shard order overall.
+ *
+ * New entities are inserted into the shard given by the property
+ * "&lt;tablename&gt;.insertshard", or into each shard in turn if not set.
+ * Primary keys are allocated by each shard, so the entity storage of each
+ * shard must be set up to allocate keys within its key range (eg the starting
+ * value of an auto increment column); a key allocated outside its shard's
+ * range is reported by a LogicException. Index values are allocated by the
+ * first shard holding the table; before its first allocation that shard's
+ * allocation is advanced past the index values of all of the shards, so an
+ * index value is never allocated which any shard already holds.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key type
+ */
+public class ShardedEntityPersistenceProvider<K> implements EntityPersistenceProvider<K> {
+
+    private String tablename;
+    private String idx;
+    private ShardedPersistenceUnitProvider pup;
+    private final List<String> shardnames = new ArrayList<>();
+    private final List<EntityPersistenceProvider<K>> shards = new ArrayList<>();
+    private long[] ranges;
+    private int insertshard;
+    private final AtomicInteger nextinsert = new AtomicInteger();
+    private boolean idxseeded = false;
+
+    @Override
+    public void init(String tablename, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        init(tablename, null, properties, pup);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        this.tablename = tablename;
+        this.idx = idx;
+        this.pup = (ShardedPersistenceUnitProvider) pup;
+        shardnames.addAll(this.pup.getShardNames(tablename));
+        for (String shard : shardnames) {
+            shards.add(this.pup.createEntityPersistenceProvider(shard, tablename, idx));
+        }
+        ranges = this.pup.getShardRanges(tablename);
+        String insert = properties.getProperty(tablename + ".insertshard");
+        insertshard = insert == null ? -1 : shardnames.indexOf(insert);
+        if (insert != null && insertshard < 0) {
+            throw new LogicException("Table " + tablename + " - insertshard " + insert + " does not hold the table");
+        }
+    }
+
+    @Override
+    public void close() {
+        shards.stream().forEach((epp) -> {
+            epp.close();
+        });
+    }
+
+    @Override
+    public String instanceDescription() {
+        return pup.instanceDescription() + "-" + tablename;
+    }
+
+    /**
+     * Get the EntityPersistenceProvider of the shard holding an entity.
+     *
+     * @param pk the entity primary key
+     * @return the shard's EntityPersistenceProvider
+     */
+    public EntityPersistenceProvider<K> getShard(K pk) {
+        return shards.get(shardOf(pk));
+    }
+
+    private int shardOf(Object pk) {
+        if (ranges == null) {
+            return 0;
+        }
+        if (!(pk instanceof Number)) {
+            throw new LogicException("Table " + tablename + " - key range sharding requires numeric primary keys");
+        }
+        long key = ((Number) pk).longValue();
+        if (key < ranges[0]) {
+            throw new LogicException("Table " + tablename + " - primary key " + pk + " is not in any shard range");
+        }
+        int shard = 0;
+        while (shard + 1 < ranges.length && key >= ranges[shard + 1]) {
+            shard++;
+        }
+        return shard;
+    }
+
+    private int insertShard(EntityFields values) {
+        Object pk = values.get("id");
+        if (pk != null) {
+            return shardOf(pk);
+        }
+        return insertshard >= 0 ? insertshard : (nextinsert.getAndIncrement() & Integer.MAX_VALUE) % shards.size();
+    }
+
+    private EntityFields checkRange(int shard, EntityFields inserted) {
+        if (shardOf(inserted.get("id")) != shard) {
+            throw new LogicException("Table " + tablename + " - key " + inserted.get("id") + " allocated by shard "
+                    + shardnames.get(shard) + " is outside its range");
+        }
+        return inserted;
+    }
+
+    @Override
+    public K getPK(EntityFields ef) {
+        return shards.get(0).getPK(ef);
+    }
+
+    @Override
+    public void autoGenPrimaryKeyHook(EntityFields ef) {
+        shards.get(insertShard(ef)).autoGenPrimaryKeyHook(ef);
+    }
+
+    @Override
+    public void addTimestampInfo(EntityFields ef) {
+        shards.get(0).addTimestampInfo(ef);
+    }
+
+    @Override
+    public void updateTimestampInfo(EntityFields ef) {
+        shards.get(0).updateTimestampInfo(ef);
+    }
+
+    @Override
+    public List<K> find() {
+        return idx == null ? gather((epp) -> epp.find()) : keys(get(new Query(null), Collections.emptySet()));
+    }
+
+    @Override
+    public List<K> find(String parametername, Object parametervalue) {
+        return idx == null
+                ? gather((epp) -> epp.find(parametername, parametervalue))
+                : keys(get(parametername, parametervalue, Collections.emptySet()));
+    }
+
+    @Override
+    public K findOne(String parametername, Object parametervalue) {
+        List<K> found = gather((epp) -> epp.find(parametername, parametervalue));
+        if (found.size() != 1) {
+            throw new LogicException("Single row expected");
+        }
+        return found.get(0);
+    }
+
+    @Override
+    public List<K> find(Query query) {
+        return query.getOrderBy().isEmpty() && idx == null
+                ? gather((epp) -> epp.find(query))
+                : keys(get(query, Collections.emptySet()));
+    }
+
+    @Override
+    public List<EntityFields> get() {
+        return ordered(gather((epp) -> epp.get()), null);
+    }
+
+    @Override
+    public Stream<EntityFields> stream() {
+        return concat((epp) -> epp.stream());
+    }
+
+    @Override
+    public Stream<EntityFields> stream(String parametername, Object parametervalue) {
+        return concat((epp) -> epp.stream(parametername, parametervalue));
+    }
+
+    @Override
+    public List<EntityFields> get(String parametername, Object parametervalue) {
+        return ordered(gather((epp) -> epp.get(parametername, parametervalue)), null);
+    }
+
+    @Override
+    public List<EntityFields> get(Query query) {
+        return ordered(gather((epp) -> epp.get(query)), query);
+    }
+
+    @Override
+    public List<EntityFields> get(String parametername, Object parametervalue, Set<String> columns) {
+        return get(new Query(Condition.eq(parametername, parametervalue)), columns);
+    }
+
+    @Override
+    public List<EntityFields> get(Query query, Set<String> columns) {
+        // the order columns are required to order the gathered results
+        Set<String> ordercolumns = new HashSet<>();
+        if (!query.getOrderBy().isEmpty()) {
+            query.getOrderBy().stream().forEach((orderby) -> {
+                ordercolumns.add(orderby.getColumnName());
+            });
+        } else if (idx != null) {
+            ordercolumns.add(idx);
+        }
+        Set<String> requested = new HashSet<>(columns);
+        requested.addAll(ordercolumns);
+        List<EntityFields> rows = ordered(gather((epp) -> epp.get(query, requested)), query);
+        ordercolumns.removeAll(columns);
+        ordercolumns.remove("id");
+        rows.stream().forEach((ef) -> {
+            ef.keySet().removeAll(ordercolumns);
+        });
+        return rows;
+    }
+
+    @Override
+    public Page<EntityFields> get(String parametername, Object parametervalue, K afterKey, int limit) {
+        List<EntityFields> rows = new ArrayList<>();
+        K after = afterKey;
+        for (int shard = afterKey == null ? 0 : shardOf(afterKey); shard < shards.size(); shard++) {
+            Page<EntityFields> page = shards.get(shard).get(parametername, parametervalue, after, limit - rows.size());
+            rows.addAll(page.getItems());
+            if (page.hasMore() || (rows.size() == limit && shard + 1 < shards.size())) {
+                // the following shards may have no more entities - the next page is then empty
+                return new Page<>(rows, true);
+            }
+            after = null;
+        }
+        return new Page<>(rows, false);
+    }
+
+    @Override
+    public EntityFields getOne(String parametername, Object parametervalue) {
+        List<EntityFields> found = gather((epp) -> epp.get(parametername, parametervalue));
+        if (found.size() != 1) {
+            throw new LogicException("Single row expected");
+        }
+        return found.get(0);
+    }
+
+    @Override
+    public long count() {
+        return shards.stream().mapToLong((epp) -> epp.count()).sum();
+    }
+
+    @Override
+    public long count(String parametername, Object parametervalue) {
+        return shards.stream().mapToLong((epp) -> epp.count(parametername, parametervalue)).sum();
+    }
+
+    @Override
+    public boolean exists(String parametername, Object parametervalue, K excludingPk) {
+        return shards.stream().anyMatch((epp) -> epp.exists(parametername, parametervalue, excludingPk));
+    }
+
+    @Override
+    public int findNextIdx() {
+        return reserveIdx(1);
+    }
+
+    @Override
+    public synchronized int reserveIdx(int count) {
+        int first = shards.get(0).reserveIdx(count);
+        if (!idxseeded) {
+            // a reservation of no values returns the next value of each shard
+            int floor = first;
+            for (int shard = 1; shard < shards.size(); shard++) {
+                floor = Math.max(floor, shards.get(shard).reserveIdx(0));
+            }
+            if (floor > first) {
+                // advance the first shard's allocation past the floor
+                int reserved = shards.get(0).reserveIdx(Math.max(floor - first, count));
+                first = Math.max(reserved, floor);
+            }
+            idxseeded = true;
+        }
+        return first;
+    }
+
+    @Override
+    public EntityFields get(K pk) {
+        return getShard(pk).get(pk);
+    }
+
+    @Override
+    public Map<K, EntityFields> get(Collection<K> pks) {
+        Map<K, EntityFields> found = new LinkedHashMap<>();
+        group(pks).entrySet().stream().forEach((e) -> {
+            found.putAll(shards.get(e.getKey()).get(e.getValue()));
+        });
+        Map<K, EntityFields> result = new LinkedHashMap<>();
+        pks.stream().filter((pk) -> found.containsKey(pk)).forEach((pk) -> {
+            result.put(pk, found.get(pk));
+        });
+        return result;
+    }
+
+    @Override
+    public EntityFields insert(EntityFields values) {
+        allocateIdx(values);
+        int shard = insertShard(values);
+        return checkRange(shard, shards.get(shard).insert(values));
+    }
+
+    @Override
+    public EntityFields update(K pk, EntityFields diff) {
+        return getShard(pk).update(pk, diff);
+    }
+
+    @Override
+    public void delete(K pk) {
+        getShard(pk).delete(pk);
+    }
+
+    @Override
+    public void delete(K pk, Object version) {
+        getShard(pk).delete(pk, version);
+    }
+
+    @Override
+    public String getVersionColumn() {
+        return shards.get(0).getVersionColumn();
+    }
+
+    @Override
+    public PersistenceUnitProvider getPersistenceUnitProvider() {
+        return pup;
+    }
+
+    @Override
+    public List<EntityFields> insertAll(List<EntityFields> values) {
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            allocateIdx(values.get(i));
+            groups.computeIfAbsent(insertShard(values.get(i)), (shard) -> new ArrayList<>()).add(i);
+        }
+        EntityFields[] inserted = new EntityFields[values.size()];
+        for (Map.Entry<Integer, List<Integer>> group : groups.entrySet()) {
+            List<EntityFields> shardvalues = new ArrayList<>();
+            group.getValue().stream().forEach((i) -> {
+                shardvalues.add(values.get(i));
+            });
+            List<EntityFields> shardinserted = shards.get(group.getKey()).insertAll(shardvalues);
+            for (int i = 0; i < shardinserted.size(); i++) {
+                inserted[group.getValue().get(i)] = checkRange(group.getKey(), shardinserted.get(i));
+            }
+        }
+        List<EntityFields> result = new ArrayList<>();
+        Collections.addAll(result, inserted);
+        return result;
+    }
+
+    @Override
+    public Map<K, EntityFields> updateAll(Map<K, EntityFields> diffs) {
+        Map<K, EntityFields> updated = new LinkedHashMap<>();
+        group(diffs.keySet()).entrySet().stream().forEach((e) -> {
+            Map<K, EntityFields> sharddiffs = new LinkedHashMap<>();
+            e.getValue().stream().forEach((pk) -> {
+                sharddiffs.put(pk, diffs.get(pk));
+            });
+            updated.putAll(shards.get(e.getKey()).updateAll(sharddiffs));
+        });
+        Map<K, EntityFields> result = new LinkedHashMap<>();
+        diffs.keySet().stream().filter((pk) -> updated.containsKey(pk)).forEach((pk) -> {
+            result.put(pk, updated.get(pk));
+        });
+        return result;
+    }
+
+    @Override
+    public void deleteAll(Collection<K> pks) {
+        group(pks).entrySet().stream().forEach((e) -> {
+            shards.get(e.getKey()).deleteAll(e.getValue());
+        });
+    }
+
+    private void allocateIdx(EntityFields values) {
+        if (idx != null && values.get(idx) == null) {
+            values.put(idx, reserveIdx(1));
+        }
+    }
+
+    private Map<Integer, List<K>> group(Collection<K> pks) {
+        Map<Integer, List<K>> groups = new LinkedHashMap<>();
+        pks.stream().forEach((pk) -> {
+            groups.computeIfAbsent(shardOf(pk), (shard) -> new ArrayList<>()).add(pk);
+        });
+        return groups;
+    }
+
+    private <R> List<R> gather(Function<EntityPersistenceProvider<K>, List<R>> request) {
+        List<R> results = new ArrayList<>();
+        shards.stream().forEach((epp) -> {
+            results.addAll(request.apply(epp));
+        });
+        return results;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<K> keys(List<EntityFields> rows) {
+        List<K> keys = new ArrayList<>();
+        rows.stream().forEach((ef) -> {
+            keys.add((K) ef.get("id"));
+        });
+        return keys;
+    }
+
+    // order the gathered results by the query order (if any) or the index
+    private List<EntityFields> ordered(List<EntityFields> rows, Query query) {
+        if (shards.size() == 1) {
+            return rows;
+        }
+        Comparator<EntityFields> order = null;
+        if (query != null && !query.getOrderBy().isEmpty()) {
+            for (Query.OrderBy orderby : query.getOrderBy()) {
+                Comparator<EntityFields> column = (ef1, ef2) -> compareColumn(ef1, ef2, orderby.getColumnName());
+                column = orderby.isDescending() ? column.reversed() : column;
+                order = order == null ? column : order.thenComparing(column);
+            }
+        } else if (idx != null) {
+            order = (ef1, ef2) -> compareColumn(ef1, ef2, idx);
+        }
+        if (order != null) {
+            rows.sort(order);
+        }
+        return rows;
+    }
+
+    private int compareColumn(EntityFields ef1, EntityFields ef2, String column) {
+        Object v1 = ef1.get(column);
+        Object v2 = ef2.get(column);
+        if (v1 == null || v2 == null) {
+            return v1 == null ? (v2 == null ? 0 : -1) : 1;
+        }
+        return Condition.compareValues(v1, v2);
+    }
+
+    // the streams of each shard in turn, each opened when the previous has been consumed
+    private Stream<EntityFields> concat(Function<EntityPersistenceProvider<K>, Stream<EntityFields>> request) {
+        ShardIterator iterator = new ShardIterator(request);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    private class ShardIterator implements Iterator<EntityFields> {
+
+        private final Function<EntityPersistenceProvider<K>, Stream<EntityFields>> request;
+        private int shard = 0;
+        private Stream<EntityFields> stream;
+        private Iterator<EntityFields> current = Collections.emptyIterator();
+
+        ShardIterator(Function<EntityPersistenceProvider<K>, Stream<EntityFields>> request) {
+            this.request = request;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && shard < shards.size()) {
+                close();
+                stream = request.apply(shards.get(shard++));
+                current = stream.iterator();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public EntityFields next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        void close() {
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.io.IOException;
+import java.util.Properties;
+import org.openide.util.lookup.ServiceProvider;
+
+/**
+ * A Factory to create EntityPersistenceProviders for tables held by a sharded
+ * persistence unit.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+@ServiceProvider(service = EntityPersistenceProviderFactory.class)
+public class ShardedEntityPersistenceProviderFactory implements EntityPersistenceProviderFactory<Object, ShardedPersistenceUnitProvider, ShardedPersistenceUnitProviderFactory> {
+
+    @Override
+    public String getType() {
+        return "sharded";
+    }
+
+    @Override
+    public EntityPersistenceProvider<Object> createEntityPersistenceProvider(String entityname, Properties p, ShardedPersistenceUnitProvider pup) throws IOException {
+        ShardedEntityPersistenceProvider<Object> epp = new ShardedEntityPersistenceProvider<>();
+        epp.init(entityname, p, pup);
+        return epp;
+    }
+
+    @Override
+    public EntityPersistenceProvider<Object> createEntityPersistenceProvider(String entityname, Properties p, ShardedPersistenceUnitProvider pup, String idx) throws IOException {
+        ShardedEntityPersistenceProvider<Object> epp = new ShardedEntityPersistenceProvider<>();
+        epp.init(entityname, idx, p, pup);
+        return epp;
+    }
+}
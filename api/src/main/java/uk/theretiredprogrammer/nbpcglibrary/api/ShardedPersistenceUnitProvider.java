@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import org.openide.util.Lookup;
+
+/**
+ * A PersistenceUnitProvider which spreads entity tables, or key ranges within
+ * a table, across a number of underlying persistence units (shards).
+ *
+ * The shards are defined in the persistence properties: shards - a comma
+ * separated list of the shard names; shard.&lt;name&gt;.&lt;property&gt; -
+ * the properties of a shard (including its persistenceunitprovidertype and
+ * entitypersistenceprovidertype). A shard inherits every other property from
+ * the sharded persistence unit, except key, which is suffixed with the shard
+ * name.
+ *
+ * The placement of each table is also defined in the persistence properties:
+ * &lt;tablename&gt;.shard - the shard holding the whole table; or
+ * &lt;tablename&gt;.shards and &lt;tablename&gt;.shardranges - the shards
+ * holding the table and the lowest primary key held by each (ascending). A
+ * table which is not placed is held on the first shard. See
+ * ShardedEntityPersistenceProvider.
+ *
+ * The change feed republishes the changes of all shards.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class ShardedPersistenceUnitProvider implements PersistenceUnitProvider {
+
+    private final String name;
+    private final Properties properties;
+    private final Map<String, PersistenceUnitProvider> shards = new LinkedHashMap<>();
+    private final Map<String, Properties> shardproperties = new LinkedHashMap<>();
+    private final ChangeFeed changefeed;
+
+    /**
+     * Constructor.
+     *
+     * @param p the persistence properties
+     */
+    @SuppressWarnings("LeakingThisInConstructor")
+    public ShardedPersistenceUnitProvider(Properties p) {
+        name = "sharded-" + p.getProperty("key");
+        properties = p;
+        changefeed = new ChangeFeed(name);
+        changefeed.setReplaySize(Integer.parseInt(p.getProperty("changereplaysize", "0")));
+        String shardnames = p.getProperty("shards", "").trim();
+        if (shardnames.isEmpty()) {
+            throw new LogicException("Sharded persistence unit " + name + " - shards not defined");
+        }
+        for (String shard : shardnames.split(",")) {
+            Properties sp = getShardProperties(p, shard.trim());
+            PersistenceUnitProvider pup = createPersistenceUnitProvider(sp);
+            pup.getChangeFeed().relayTo(changefeed);
+            shards.put(shard.trim(), pup);
+            shardproperties.put(shard.trim(), sp);
+        }
+    }
+
+    private Properties getShardProperties(Properties p, String shard) {
+        Properties sp = new Properties();
+        String prefix = "shard." + shard + ".";
+        p.stringPropertyNames().stream().filter((key) -> !key.startsWith("shard.")).forEach((key) -> {
+            sp.setProperty(key, p.getProperty(key));
+        });
+        sp.setProperty("key", p.getProperty("key") + "-" + shard);
+        p.stringPropertyNames().stream().filter((key) -> key.startsWith(prefix)).forEach((key) -> {
+            sp.setProperty(key.substring(prefix.length()), p.getProperty(key));
+        });
+        return sp;
+    }
+
+    private PersistenceUnitProvider createPersistenceUnitProvider(Properties sp) {
+        String puptype = sp.getProperty("persistenceunitprovidertype");
+        for (PersistenceUnitProviderFactory pupfactory : Lookup.getDefault().lookupResult(PersistenceUnitProviderFactory.class).allInstances()) {
+            if (pupfactory.getType().equals(puptype)) {
+                return pupfactory.createPersistenceUnitProvider(sp);
+            }
+        }
+        throw new LogicException("Unknown PersistenceUnitProvider requested for shard " + sp.getProperty("key"));
+    }
+
+    /**
+     * Get the names of all shards.
+     *
+     * @return the shard names
+     */
+    public List<String> getShardNames() {
+        return Collections.unmodifiableList(new ArrayList<>(shards.keySet()));
+    }
+
+    /**
+     * Get the names of the shards holding a table.
+     *
+     * @param tablename the table name
+     * @return the shard names (in key range order)
+     */
+    public List<String> getShardNames(String tablename) {
+        String placement = properties.getProperty(tablename + ".shards",
+                properties.getProperty(tablename + ".shard", shards.keySet().iterator().next()));
+        List<String> names = new ArrayList<>();
+        for (String shard : placement.split(",")) {
+            if (!shards.containsKey(shard.trim())) {
+                throw new LogicException("Table " + tablename + " placed on unknown shard " + shard.trim());
+            }
+            names.add(shard.trim());
+        }
+        return names;
+    }
+
+    /**
+     * Get the lowest primary key held by each shard holding a table.
+     *
+     * @param tablename the table name
+     * @return the lowest keys (in key range order), or null if the whole
+     * table is held by a single shard
+     */
+    public long[] getShardRanges(String tablename) {
+        int count = getShardNames(tablename).size();
+        if (count == 1) {
+            return null;
+        }
+        String ranges = properties.getProperty(tablename + ".shardranges", "");
+        long[] lowest = Arrays.stream(ranges.split(",")).map(String::trim).filter((r) -> !r.isEmpty()).mapToLong(Long::parseLong).toArray();
+        if (lowest.length != count) {
+            throw new LogicException("Table " + tablename + " - a shard range is required for each shard");
+        }
+        for (int i = 1; i < count; i++) {
+            if (lowest[i] <= lowest[i - 1]) {
+                throw new LogicException("Table " + tablename + " - shard ranges must be ascending");
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * Get the persistence properties of a shard.
+     *
+     * @param shard the shard name
+     * @return the properties
+     */
+    public Properties getShardProperties(String shard) {
+        return shardproperties.get(shard);
+    }
+
+    /**
+     * Get the PersistenceUnitProvider of a shard.
+     *
+     * @param shard the shard name
+     * @return the PersistenceUnitProvider
+     */
+    public PersistenceUnitProvider getShard(String shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * Create the EntityPersistenceProvider for the part of a table held by a
+     * shard.
+     *
+     * @param shard the shard name
+     * @param tablename the table name
+     * @param idx the index column name (or null if the entity is not ordered)
+     * @return the EntityPersistenceProvider
+     * @throws IOException if problems creating the provider
+     */
+    @SuppressWarnings("unchecked")
+    public EntityPersistenceProvider createEntityPersistenceProvider(String shard, String tablename, String idx) throws IOException {
+        Properties sp = shardproperties.get(shard);
+        String epptype = sp.getProperty("entitypersistenceprovidertype");
+        for (EntityPersistenceProviderFactory eppfactory : Lookup.getDefault().lookupResult(EntityPersistenceProviderFactory.class).allInstances()) {
+            if (eppfactory.getType().equals(epptype)) {
+                return idx == null
+                        ? eppfactory.createEntityPersistenceProvider(tablename, sp, shards.get(shard))
+                        : eppfactory.createEntityPersistenceProvider(tablename, sp, shards.get(shard), idx);
+            }
+        }
+        throw new LogicException("Unknown EntityPersistenceProvider requested for shard " + sp.getProperty("key"));
+    }
+
+    @Override
+    public boolean isOperational() {
+        return shards.values().stream().allMatch((pup) -> pup.isOperational());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return changefeed;
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return shards.values().stream().anyMatch((pup) -> pup.isInTransaction());
+    }
+
+    @Override
+    public void afterTransaction(Runnable action) {
+        // runs once the transactions of all shards have ended
+        Optional<PersistenceUnitProvider> intransaction = shards.values().stream().filter((pup) -> pup.isInTransaction()).findFirst();
+        if (intransaction.isPresent()) {
+            intransaction.get().afterTransaction(() -> afterTransaction(action));
+        } else {
+            action.run();
+        }
+    }
+
+    @Override
+    public String instanceDescription() {
+        return name + shards.keySet();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A coalescer of the updates of a single entity table, shared by all the
+ * CoalescingEntityPersistenceProviders for the table.
+ *
+ * The first update of an entity is written immediately, and opens a window
+ * (of the configured length) for the entity. Further updates of the entity
+ * made within the window are merged into a single pending diff, which is
+ * written when the window closes - so a burst of updates of an entity results
+ * in at most two writes. Pending diffs are also written at a barrier - a
+ * flush of the entity or of the table (eg before a read) or of all tables (eg
+ * on close down).
+ *
+ * All writes are made while holding the coalescer's lock, so the writes of an
+ * entity are always made in the order of its updates.
+ *
+ * A pending diff which fails when its window closes is held, and the failure
+ * is thrown by the next update or flush of the entity (or flush of the
+ * table), so that a lost update is always reported to the application.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class UpdateCoalescer {
+
+    private static final String LOG = "nbpcglib.updatecoalescer";
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "update-coalescer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String tablename;
+    private final long window;
+    private final Map<Object, Window> windows = new LinkedHashMap<>();
+    private final Map<Object, RuntimeException> failures = new LinkedHashMap<>();
+    private long updates = 0;
+    private long writes = 0;
+
+    private class Window {
+
+        final EntityPersistenceProvider<Object> epp;
+        final Object pk;
+        EntityFields image;
+        EntityFields pending;
+        ScheduledFuture<?> expiry;
+
+        Window(EntityPersistenceProvider<Object> epp, Object pk, EntityFields image) {
+            this.epp = epp;
+            this.pk = pk;
+            this.image = image;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tablename the entity table name
+     * @param window the length of the coalescing window (ms)
+     */
+    public UpdateCoalescer(String tablename, long window) {
+        this.tablename = tablename;
+        this.window = window;
+    }
+
+    /**
+     * Update an entity - either immediately or by merging the diff into the
+     * entity's pending diff.
+     *
+     * @param <K> the Primary Key type
+     * @param epp the EntityPersistenceProvider used to write the update
+     * @param pk the entity primary key
+     * @param diff the set of values to be updated
+     * @return the full set of entity fields (as they will be when the pending
+     * diff is written)
+     * @throws RuntimeException the failure of an earlier pending diff of the
+     * entity (in which case this update is not made)
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <K> EntityFields update(EntityPersistenceProvider<K> epp, K pk, EntityFields diff) {
+        rethrow(pk);
+        updates++;
+        Window w = windows.get(pk);
+        if (w == null) {
+            writes++;
+            EntityFields updated = epp.update(pk, diff);
+            w = new Window((EntityPersistenceProvider<Object>) epp, pk, copy(updated));
+            windows.put(pk, w);
+            Window expiring = w;
+            w.expiry = SCHEDULER.schedule(() -> expire(expiring), window, TimeUnit.MILLISECONDS);
+            return updated;
+        }
+        if (w.pending == null) {
+            w.pending = new EntityFields();
+        }
+        w.pending.putAll(diff);
+        EntityFields updated = copy(w.image);
+        updated.putAll(w.pending);
+        epp.updateTimestampInfo(updated);
+        return updated;
+    }
+
+    private EntityFields copy(EntityFields ef) {
+        EntityFields copy = new EntityFields();
+        copy.putAll(ef);
+        return copy;
+    }
+
+    private synchronized void expire(Window w) {
+        if (windows.get(w.pk) == w) {
+            windows.remove(w.pk);
+            try {
+                write(w);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(LOG).log(Level.WARNING, "Coalesced update of {0} {1} failed - {2}", new Object[]{tablename, w.pk, ex.getMessage()});
+                failures.put(w.pk, ex);
+            }
+        }
+    }
+
+    // report (once) the failure of an expired pending diff
+    private void rethrow(Object pk) {
+        RuntimeException failure = failures.remove(pk);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void write(Window w) {
+        w.expiry.cancel(false);
+        if (w.pending != null) {
+            writes++;
+            EntityFields diff = w.pending;
+            w.pending = null;
+            w.image = w.epp.update(w.pk, diff);
+        }
+    }
+
+    /**
+     * Write the pending diff of an entity (if any) and close its window.
+     *
+     * @param pk the entity primary key
+     * @throws RuntimeException if the write fails, or an earlier pending diff
+     * of the entity failed
+     */
+    public synchronized void flush(Object pk) {
+        rethrow(pk);
+        Window w = windows.remove(pk);
+        if (w != null) {
+            write(w);
+        }
+    }
+
+    /**
+     * Write the pending diffs of a set of entities and close their windows.
+     *
+     * @param pks the entity primary keys
+     * @throws RuntimeException the first failure (of a write, or of an earlier
+     * pending diff of the entities)
+     */
+    public synchronized void flush(Collection<?> pks) {
+        RuntimeException failure = null;
+        for (Object pk : pks) {
+            try {
+                flush(pk);
+            } catch (RuntimeException ex) {
+                failure = failure == null ? ex : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Write all pending diffs and close all windows.
+     *
+     * @throws RuntimeException the first failure (of a write, or of an earlier
+     * pending diff)
+     */
+    public synchronized void flush() {
+        List<Window> flushing = new ArrayList<>(windows.values());
+        windows.clear();
+        RuntimeException failure = failures.isEmpty() ? null : failures.values().iterator().next();
+        failures.clear();
+        for (Window w : flushing) {
+            try {
+                write(w);
+            } catch (RuntimeException ex) {
+                failure = failure == null ? ex : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Discard the pending diff of an entity (eg because it is being deleted).
+     *
+     * @param pk the entity primary key
+     */
+    public synchronized void discard(Object pk) {
+        failures.remove(pk);
+        Window w = windows.remove(pk);
+        if (w != null) {
+            w.expiry.cancel(false);
+        }
+    }
+
+    /**
+     * Test if there are any unwritten diffs.
+     *
+     * @return true if diffs are pending
+     */
+    public synchronized boolean isPending() {
+        return windows.values().stream().anyMatch((w) -> w.pending != null);
+    }
+
+    /**
+     * Get the number of updates requested.
+     *
+     * @return the update count
+     */
+    public synchronized long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Get the number of updates written to entity storage.
+     *
+     * @return the write count
+     */
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    @Override
+    public String toString() {
+        return "UpdateCoalescer " + tablename + " (" + window + "ms)";
+    }
+}
@@ -71,6 +71,7 @@ public abstract class Entity<K, E extends Entity<K, E, P, F>, P extends CoreEnti
     private final EntityManager<K, E, P> em;
     private final EntityStateChangeListener entitystatechangelistener;
     private final EntitySavable savable = new EntitySavable();
+    private Object version = null; // the version as last read, if the entity is versioned
 
     /**
      * Constructor.
@@ -348,10 +349,23 @@ public abstract class Entity<K, E extends Entity<K, E, P, F>, P extends CoreEnti
         }
     }
 
+    /**
+     * Load Data, already obtained from entity storage, into this entity and
+     * fire the field change at load listeners.
+     *
+     * @param data the entity data
+     */
+    protected void loadData(EntityFields data) {
+        if (isPersistent()) {
+            loader(data);
+        }
+    }
+
     private void loader(EntityFields data) {
         LogBuilder.writeLog("nbpcglibrary.data", this, "loader", data.toString());
         EntityState oldState = getState();
         entityLoad(data);
+        setVersion(data);
         setState(DBENTITY);
         fireStateChange(LOAD, oldState, DBENTITY);
         fireFieldChange();
@@ -377,9 +391,19 @@ public abstract class Entity<K, E extends Entity<K, E, P, F>, P extends CoreEnti
         primaryKeyChangeEvent.addListener(listener, mode);
     }
 
+    private void setVersion(EntityFields data) {
+        String versioncolumn = epp.getVersionColumn();
+        version = versioncolumn == null ? null : data.get(versioncolumn);
+    }
+
     /**
      * Save this entity to entity storage.
      *
+     * If the entity is versioned, the save fails with a
+     * ConcurrentUpdateException if the entity has been changed in entity
+     * storage since it was read - the entity should be reset and the edit
+     * repeated.
+     *
      * @param sb Stringbuilder object used to collect any failure messages
      * @return true if save is successful
      */
@@ -400,7 +424,9 @@ public abstract class Entity<K, E extends Entity<K, E, P, F>, P extends CoreEnti
                     return false;
                 }
                 em.removeFromCache((E) this);
-                entityLoad(epp.insert(ef));
+                EntityFields inserted = epp.insert(ef);
+                entityLoad(inserted);
+                setVersion(inserted);
                 K newPK = getPK();
                 em.insertIntoCache(newPK, (E) this);
                 primaryKeyChangeEvent.fire(new PrimaryKeyChangeEventParams<>(newPK));
@@ -414,7 +440,12 @@ public abstract class Entity<K, E extends Entity<K, E, P, F>, P extends CoreEnti
                     return false;
                 }
                 if (!ef.isEmpty()) {
-                    entityLoad(epp.update(getPK(), ef));
+                    if (version != null) {
+                        ef.put(epp.getVersionColumn(), version);
+                    }
+                    EntityFields updated = epp.update(getPK(), ef);
+                    entityLoad(updated);
+                    setVersion(updated);
                 }
                 setState(DBENTITY);
                 break;
@@ -443,8 +474,12 @@ public abstract class Entity<K, E extends Entity<K, E, P, F>, P extends CoreEnti
                 return;
             case DBENTITY:
             case DBENTITYEDITING:
+                if (version != null) {
+                    epp.delete(getPK(), version);
+                } else {
+                    epp.delete(getPK());
+                }
                 entityRemove();
-                epp.delete(getPK());
                 em.removeFromCache((E) this);
                 setState(REMOVED);
                 fireStateChange(REMOVE, oldState, REMOVED);
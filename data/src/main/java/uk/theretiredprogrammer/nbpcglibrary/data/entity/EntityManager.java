@@ -18,9 +18,16 @@ package uk.theretiredprogrammer.nbpcglibrary.data.entity;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.api.HasInstanceDescription;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
@@ -64,6 +71,7 @@ abstract public class EntityManager<K, E extends Entity<K, E, P, ?>, P extends C
      */
     protected final LRUCache<K, E> lrucache;
     private EntityPersistenceProvider<K> entityPersistenceProvider;
+    private AsyncEntityPersistenceProvider<K> asyncEntityPersistenceProvider;
     private final Map<K, E> transientCache;
 
     /**
@@ -105,29 +113,10 @@ abstract public class EntityManager<K, E extends Entity<K, E, P, ?>, P extends C
     public final synchronized E get(K pk) {
         if (isPersistent(pk)) {
             freeReleasedEntries();
-            E e = lrucache.get(pk);
+            E e = getFromCache(pk);
             if (e != null) {
-                LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
-                        .addMsg("hit on LRUCache for {0}", e.instanceDescription()).write();
                 return e;
             }
-            // not in lru cache - now look up the entity in the cache
-            SoftReference<E> ref = cache.get(pk);
-            if (ref != null) {
-                e = ref.get();
-                if (e != null) {
-                    lrucache.put(pk, e); // insert object into LRU cache
-                    LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
-                            .addMsg("hit on Cache (& reinserted into LRU cache) for {0}", e.instanceDescription()).write();
-                    return e;
-                } else {
-                    LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
-                            .addMsg("miss on Cache (SoftReference clear)").write();
-                }
-            } else {
-                LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
-                        .addMsg("miss on Cache").write();
-            }
             e = createNewEntity(pk);
             e.load(pk);
             insertIntoCache(pk, e);
@@ -135,14 +124,176 @@ abstract public class EntityManager<K, E extends Entity<K, E, P, ?>, P extends C
                     .addMsg("create new Entity {0} (and insert into Cache)", e.instanceDescription()).write();
             return e;
         } else {
-            E e = transientCache.get(pk);
+            return getTransient(pk);
+        }
+    }
+
+    /**
+     * Get a set of Entities. Lookup caches and create new entities for any not
+     * present; the data for all these new entities is obtained from entity
+     * storage in a single bulk request.
+     *
+     * @param pks the primary key values
+     * @return the entities (in the same order as the primary keys)
+     */
+    public final synchronized List<E> get(Collection<K> pks) {
+        freeReleasedEntries();
+        List<E> entities = new ArrayList<>();
+        List<K> missing = new ArrayList<>();
+        for (K pk : pks) {
+            E e = isPersistent(pk) ? getFromCache(pk) : getTransient(pk);
             if (e == null) {
-                throw new LogicException("Can't find transient entry in cache");
+                missing.add(pk);
+            }
+            entities.add(e);
+        }
+        if (!missing.isEmpty()) {
+            LogBuilder.writeLog("nbpcglibrary.data", this, "get", missing.size());
+            Map<K, EntityFields> data = getEntityPersistenceProvider().get(missing);
+            int i = 0;
+            for (K pk : pks) {
+                if (entities.get(i) == null) {
+                    E e = createNewEntity(pk);
+                    EntityFields ef = data.get(pk);
+                    if (ef == null) {
+                        e.load(pk); // not returned by the bulk request, so report as if requested singly
+                    } else {
+                        e.loadData(ef);
+                    }
+                    insertIntoCache(pk, e);
+                    entities.set(i, e);
+                }
+                i++;
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Get an Entity asynchronously. If the entity is held in memory the
+     * returned future is already complete; otherwise the entity data is
+     * obtained from entity storage on the persistence unit's executor (see
+     * AsyncEntityPersistenceProvider) and the future is completed on that
+     * executor's thread.
+     *
+     * @param pk the primary key value
+     * @return the future entity
+     */
+    public final CompletableFuture<E> getAsync(K pk) {
+        if (!isPersistent(pk)) {
+            return CompletableFuture.completedFuture(get(pk));
+        }
+        E e = getIfLoaded(pk);
+        if (e != null) {
+            return CompletableFuture.completedFuture(e);
+        }
+        return getAsyncEntityPersistenceProvider().getAsync(pk).thenApply((ef) -> loaded(pk, ef));
+    }
+
+    /**
+     * Get a set of Entities asynchronously. If all the entities are held in
+     * memory the returned future is already complete; otherwise the data of
+     * the entities not held is obtained from entity storage in a single bulk
+     * request on the persistence unit's executor, and the future is completed
+     * on that executor's thread.
+     *
+     * @param pks the primary key values
+     * @return the future entities (in the same order as the primary keys)
+     */
+    public final CompletableFuture<List<E>> getAsync(Collection<K> pks) {
+        List<E> entities = new ArrayList<>();
+        List<K> missing = new ArrayList<>();
+        for (K pk : pks) {
+            E e = getIfLoaded(pk);
+            if (e == null && isPersistent(pk)) {
+                missing.add(pk);
+            }
+            entities.add(e);
+        }
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(loaded(pks, entities, Collections.emptyMap()));
+        }
+        return getAsyncEntityPersistenceProvider().getAsync(missing).thenApply((data) -> loaded(pks, entities, data));
+    }
+
+    // complete a set of entities, from the entities already held and the data
+    // obtained for the others
+    private synchronized List<E> loaded(Collection<K> pks, List<E> held, Map<K, EntityFields> data) {
+        List<E> entities = new ArrayList<>();
+        int i = 0;
+        for (K pk : pks) {
+            E e = held.get(i++);
+            entities.add(e != null ? e : isPersistent(pk) ? loaded(pk, data.get(pk)) : getTransient(pk));
+        }
+        return entities;
+    }
+
+    // the entity may have been loaded by another request while this data was obtained
+    private synchronized E loaded(K pk, EntityFields ef) {
+        freeReleasedEntries();
+        E e = getFromCache(pk);
+        if (e == null) {
+            e = createNewEntity(pk);
+            if (ef == null) {
+                e.load(pk); // not found, so report as if requested synchronously
+            } else {
+                e.loadData(ef);
             }
+            insertIntoCache(pk, e);
+        }
+        return e;
+    }
+
+    /**
+     * Get an Entity only if it is currently held in memory (ie without
+     * loading it from entity storage).
+     *
+     * @param pk the primary key value
+     * @return the entity, or null if not held in memory
+     */
+    public final synchronized E getIfLoaded(K pk) {
+        if (isPersistent(pk)) {
+            freeReleasedEntries();
+            return getFromCache(pk);
+        }
+        return transientCache.get(pk);
+    }
+
+    private E getFromCache(K pk) {
+        E e = lrucache.get(pk);
+        if (e != null) {
             LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
-                    .addMsg("hit on Transient Cache for {0}", e.instanceDescription()).write();
+                    .addMsg("hit on LRUCache for {0}", e.instanceDescription()).write();
             return e;
         }
+        // not in lru cache - now look up the entity in the cache
+        SoftReference<E> ref = cache.get(pk);
+        if (ref != null) {
+            e = ref.get();
+            if (e != null) {
+                lrucache.put(pk, e); // insert object into LRU cache
+                LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
+                        .addMsg("hit on Cache (& reinserted into LRU cache) for {0}", e.instanceDescription()).write();
+                return e;
+            } else {
+                LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
+                        .addMsg("miss on Cache (SoftReference clear)").write();
+            }
+        } else {
+            LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
+                    .addMsg("miss on Cache").write();
+        }
+        return null;
+    }
+
+    private E getTransient(K pk) {
+        E e = transientCache.get(pk);
+        if (e == null) {
+            throw new LogicException("Can't find transient entry in cache");
+        }
+        LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
+                .addMsg("hit on Transient Cache for {0}", e.instanceDescription()).write();
+        return e;
     }
 
     /**
@@ -262,6 +413,19 @@ abstract public class EntityManager<K, E extends Entity<K, E, P, ?>, P extends C
         return entityPersistenceProvider;
     }
 
+    /**
+     * Get the asynchronous access to the EntityPersistenceProvider for this
+     * Entity Class.
+     *
+     * @return the AsyncEntityPersistenceProvider
+     */
+    public synchronized AsyncEntityPersistenceProvider<K> getAsyncEntityPersistenceProvider() {
+        if (asyncEntityPersistenceProvider == null) {
+            asyncEntityPersistenceProvider = new AsyncEntityPersistenceProvider<>(getEntityPersistenceProvider());
+        }
+        return asyncEntityPersistenceProvider;
+    }
+
     /**
      * Create the EntityPersistenceProvider for this Entity Class.
      *
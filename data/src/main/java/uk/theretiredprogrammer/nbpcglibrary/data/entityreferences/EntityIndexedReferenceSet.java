@@ -42,6 +42,20 @@ public class EntityIndexedReferenceSet<K, E extends Entity<K, E, P, ?>, P extend
         super(name, emclass);
     }
 
+    /**
+     * Add a new entity to the entity set - a new entity is given the next
+     * index value, so that it is ordered after the existing entities.
+     *
+     * @param e the new entity
+     */
+    @Override
+    public void add(E e) {
+        if (!e.isPersistent()) {
+            e.setIdx(epp.findNextIdx());
+        }
+        super.add(e);
+    }
+
     /**
      * Reorder the list of child entities
      *
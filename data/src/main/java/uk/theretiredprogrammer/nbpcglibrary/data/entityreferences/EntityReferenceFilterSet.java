@@ -16,6 +16,7 @@
 package uk.theretiredprogrammer.nbpcglibrary.data.entityreferences;
 
 import java.util.List;
+import uk.theretiredprogrammer.nbpcglibrary.api.Query;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.EntityManager;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.Entity;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.CoreEntity;
@@ -33,6 +34,7 @@ public class EntityReferenceFilterSet<K, E extends Entity<K, E, P, ?>, P extends
 
     private final String columnname;
     private final Object columnvalue;
+    private final Query query;
 
     /**
      * Constructor.
@@ -48,10 +50,25 @@ public class EntityReferenceFilterSet<K, E extends Entity<K, E, P, ?>, P extends
         super(name,emclass);
         this.columnvalue = columnvalue;
         this.columnname = columnname;
+        this.query = null;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the set name (for reporting)
+     * @param query the query used to select the set members
+     * @param emclass the associated entity manager class
+     */
+    public EntityReferenceFilterSet(String name, Query query, Class<? extends EntityManager> emclass) {
+        super(name, emclass);
+        this.columnvalue = null;
+        this.columnname = null;
+        this.query = query;
     }
     
     @Override
     protected List<K> getPrimaryKeySet() {
-        return epp.find(columnname, columnvalue);
+        return query == null ? epp.find(columnname, columnvalue) : epp.find(query);
     }
 }
@@ -153,10 +153,37 @@ public class EntityReferenceSet<K, E extends Entity<K,E,P,?>, P extends CoreEnti
      * @return the list of entities
      */
     public List<E> get() {
+        // bulk load any entities not currently loaded, rather than loading them singly
+        List<K> unloaded = new ArrayList<>();
+        childList.stream().filter((ref) -> (ref.getNoLoad() == null && ref.getPK() != null)).forEach((ref) -> {
+            unloaded.add(ref.getPK());
+        });
+        List<E> loaded = unloaded.size() > 1 ? em.get(unloaded) : new ArrayList<>();
         List<E> el = new ArrayList<>();
         childList.stream().forEach((ref) -> {
             el.add(ref.get());
         });
+        loaded.clear(); // loaded entities were held until now so they remain in the entity manager's cache
+        return el;
+    }
+
+    /**
+     * Get the list of Entities which are currently held in memory (and so may
+     * have unsaved changes), without loading any other entities.
+     *
+     * @return the list of entities held in memory
+     */
+    public List<E> getLoaded() {
+        List<E> el = new ArrayList<>();
+        childList.stream().forEach((ref) -> {
+            E e = ref.getNoLoad();
+            if (e == null && ref.getPK() != null) {
+                e = em.getIfLoaded(ref.getPK());
+            }
+            if (e != null) {
+                el.add(e);
+            }
+        });
         return el;
     }
 
@@ -21,10 +21,12 @@ import org.netbeans.api.actions.Savable;
 import uk.theretiredprogrammer.nbpcglibrary.common.ConfirmationDialog;
 import org.openide.modules.OnStop;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
 
 /**
  * The Standard On Stop action - tests if forms have error, and dialogs with
- * user to check if close is to continue.
+ * user to check if close is to continue. If close is to continue, any pending
+ * coalesced updates are written.
  *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  */
@@ -35,9 +37,17 @@ public class LibraryOnStop implements Callable<Boolean> {
 
     @Override
     public Boolean call() {
-        return hasErrors()
+        boolean close = hasErrors()
                 ? ConfirmationDialog.show("Close down request", "Do you want to continue with close down while you have entities with errors which cannot be saved at the present time?")
                 : true;
+        if (close) {
+            try {
+                EntityPersistenceProviderManager.flush();
+            } catch (RuntimeException ex) {
+                LogBuilder.writeExceptionLog("nbpcglibrary.data", ex, this, "call");
+            }
+        }
+        return close;
     }
 
     @SuppressWarnings("CallToThreadYield")
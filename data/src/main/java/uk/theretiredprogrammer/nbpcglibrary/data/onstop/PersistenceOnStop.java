@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.data.onstop;
+
+import org.openide.modules.OnStop;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
+
+/**
+ * The Persistence On Stop action - run once close down has been agreed, to
+ * close all EntityPersistenceProviders.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+@OnStop
+public class PersistenceOnStop implements Runnable {
+
+    @Override
+    public void run() {
+        EntityPersistenceProviderManager.close();
+    }
+}
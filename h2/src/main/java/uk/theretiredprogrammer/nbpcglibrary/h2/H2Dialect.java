@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.h2;
+
+import java.sql.SQLException;
+import java.util.Locale;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.SQLDialect;
+
+/**
+ * The SQL dialect of H2 databases.
+ *
+ * H2 stores unquoted identifiers in upper case, and so returns them as the
+ * column names of result sets; these are returned as lower case field names
+ * (the case used for unquoted identifiers by the entity providers). Quoted
+ * mixed case column names are returned unchanged.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class H2Dialect extends SQLDialect {
+
+    private static final int DUPLICATE_KEY = 23505;
+
+    @Override
+    public String columnName(String columnname) {
+        return columnname.equals(columnname.toUpperCase(Locale.ROOT)) ? columnname.toLowerCase(Locale.ROOT) : columnname;
+    }
+
+    @Override
+    public boolean supportsBatchGeneratedKeys() {
+        // H2 only returns the key generated by the last row of a batch
+        return false;
+    }
+
+    @Override
+    public boolean isDuplicateKey(SQLException ex) {
+        return ex.getErrorCode() == DUPLICATE_KEY || super.isDuplicateKey(ex);
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2015-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.h2;
+
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLEntityPersistenceProvider;
+
+/**
+ * EntityPersistenceProvider Class for access to embedded H2 databases.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the primary key class
+ */
+public abstract class LocalH2EntityPersistenceProvider<K> extends LocalSQLEntityPersistenceProvider<K> {
+}
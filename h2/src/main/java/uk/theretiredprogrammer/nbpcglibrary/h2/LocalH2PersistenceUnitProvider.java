@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.h2;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.logging.Level;
+import uk.theretiredprogrammer.nbpcglibrary.annotations.RegisterLog;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.ConnectionPool;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLPersistenceUnitProvider;
+
+/**
+ * The implementation of the DB class for embedded H2 Database connections.
+ *
+ * The database runs in process, and is held on disk in the file defined by
+ * the database parameter (or in memory if the connection parameter defines an
+ * in memory database).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+@RegisterLog("nbpcglibrary.h2")
+public class LocalH2PersistenceUnitProvider extends LocalSQLPersistenceUnitProvider {
+
+    /**
+     * Constructor
+     *
+     * @param p the db connection parameters - either connection (the full
+     * jdbc url) or database (the database file path), user and password
+     * (default sa and empty), the connection pool parameters - see
+     * ConnectionPool, the fetchsize used for streamed queries, the
+     * querytimeout in seconds (default 30), the streamtimeout for streamed
+     * queries in seconds (default 0 - no timeout), writebehind (default false - see
+     * LocalSQLPersistenceUnitProvider), the change feed changereplaysize
+     * (default 0), and the read
+     * replica parameters (H2 server mode only) - see
+     * LocalSQLPersistenceUnitProvider.configureReplicas
+     */
+    @SuppressWarnings("LeakingThisInConstructor")
+    public LocalH2PersistenceUnitProvider(Properties p) {
+        super("local-h2-" + p.getProperty("key"));
+        try {
+            Class.forName("org.h2.Driver");
+            String connection = p.getProperty("connection", "jdbc:h2:" + p.getProperty("database"));
+            setConnectionPool(new ConnectionPool(getName(), p,
+                    () -> DriverManager.getConnection(connection, p.getProperty("user", "sa"), p.getProperty("password", ""))));
+            configureReplicas(p, (replica) -> () -> DriverManager.getConnection(replica, p.getProperty("user", "sa"), p.getProperty("password", "")));
+            setDialect(new H2Dialect());
+            setFetchSize(Integer.parseInt(p.getProperty("fetchsize", "1000")));
+            setQueryTimeout(Integer.parseInt(p.getProperty("querytimeout", "30")));
+            setStreamTimeout(Integer.parseInt(p.getProperty("streamtimeout", "0")));
+            setWriteBehind(Boolean.parseBoolean(p.getProperty("writebehind", "false")));
+            setChangeReplaySize(Integer.parseInt(p.getProperty("changereplaysize", "0")));
+            setOperational();
+        } catch (ClassNotFoundException | SQLException ex) {
+            LogBuilder.create("nbpcglibrary.h2", Level.SEVERE).addConstructorName(this, p)
+                    .addExceptionMessage(ex).write();
+        }
+    }
+
+    @Override
+    public String instanceDescription() {
+        return LogBuilder.instanceDescription(this, getName());
+    }
+}
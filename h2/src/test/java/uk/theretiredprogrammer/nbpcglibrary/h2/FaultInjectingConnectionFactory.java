@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.h2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.ConnectionPool;
+
+/**
+ * A connection factory which wraps JDBC connections so that connection
+ * failures can be simulated - dropping all open connections, and refusing new
+ * connections - and so that commits can be failed.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class FaultInjectingConnectionFactory implements ConnectionPool.ConnectionFactory {
+
+    private final String url;
+    private int generation = 0;
+    private int refusals = 0;
+    private int commitfailures = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param url the jdbc url of the underlying database
+     */
+    public FaultInjectingConnectionFactory(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Drop all connections currently open - any further use of them fails.
+     */
+    public synchronized void drop() {
+        generation++;
+    }
+
+    /**
+     * Refuse the next attempts to open a connection.
+     *
+     * @param count the number of attempts to refuse
+     */
+    public synchronized void refuse(int count) {
+        refusals = count;
+    }
+
+    /**
+     * Fail the next commits (with an error which is not a connection
+     * failure); the connection remains usable.
+     *
+     * @param count the number of commits to fail
+     */
+    public synchronized void failCommits(int count) {
+        commitfailures = count;
+    }
+
+    private synchronized boolean isCommitFailed() {
+        if (commitfailures > 0) {
+            commitfailures--;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Connection create() throws SQLException {
+        if (refusals > 0) {
+            refusals--;
+            throw new SQLNonTransientConnectionException("Connection refused (injected)", "08001");
+        }
+        Connection conn = DriverManager.getConnection(url, "sa", "");
+        return (Connection) wrap(Connection.class, conn, generation);
+    }
+
+    private synchronized boolean isDropped(int connectiongeneration) {
+        return connectiongeneration != generation;
+    }
+
+    private Object wrap(Class<?> iface, Object target, int connectiongeneration) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            String name = method.getName();
+            if (isDropped(connectiongeneration) && !name.equals("close")) {
+                switch (name) {
+                    case "isClosed":
+                        return true;
+                    case "isValid":
+                        return false;
+                    default:
+                        throw new SQLNonTransientConnectionException("Communications link failure (injected)", "08S01");
+                }
+            }
+            if (name.equals("commit") && isCommitFailed()) {
+                throw new SQLException("Serialization failure (injected)", "40001");
+            }
+            try {
+                Object result = method.invoke(target, args);
+                return result instanceof PreparedStatement
+                        ? wrap(PreparedStatement.class, result, connectiongeneration)
+                        : result;
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        };
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{iface}, handler);
+    }
+}
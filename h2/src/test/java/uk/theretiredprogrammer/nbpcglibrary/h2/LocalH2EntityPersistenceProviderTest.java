@@ -0,0 +1,567 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.h2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.theretiredprogrammer.nbpcglibrary.api.CachingEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeRecord;
+import uk.theretiredprogrammer.nbpcglibrary.api.CoalescingEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.ConcurrentUpdateException;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.QueryResultCache;
+import uk.theretiredprogrammer.nbpcglibrary.api.UpdateCoalescer;
+
+/**
+ * The test package for the H2 EntityPersistenceProvider, using an in memory
+ * H2 database.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class LocalH2EntityPersistenceProviderTest {
+
+    private Properties p;
+    private LocalH2PersistenceUnitProvider pup;
+    private LocalH2AutoIDEntityPersistenceProvider instance;
+
+    /**
+     * Constructor
+     */
+    public LocalH2EntityPersistenceProviderTest() {
+    }
+
+    /**
+     * setup test
+     *
+     * @throws Exception if problems
+     */
+    @Before
+    public void setUp() throws Exception {
+        p = new Properties();
+        p.setProperty("key", "entitytest");
+        p.setProperty("connection", "jdbc:h2:mem:entitytest;DB_CLOSE_DELAY=-1");
+        pup = new LocalH2PersistenceUnitProvider(p);
+        pup.execute("CREATE TABLE TestEntity (id INT AUTO_INCREMENT PRIMARY KEY, description VARCHAR(100), idx INT, "
+                + "code VARCHAR(10) UNIQUE, version INT, createdby VARCHAR(20), createdon VARCHAR(14), updatedby VARCHAR(20), updatedon VARCHAR(14))");
+        instance = new LocalH2AutoIDEntityPersistenceProvider();
+        instance.init("TestEntity", "idx", p, pup);
+    }
+
+    /**
+     * tear down test
+     *
+     * @throws Exception if problems
+     */
+    @After
+    public void tearDown() throws Exception {
+        instance.close();
+        pup.execute("DROP TABLE TestEntity");
+        pup.disconnect();
+    }
+
+    // a provider for the test table with an additional property
+    private LocalH2AutoIDEntityPersistenceProvider create(String property, String value) {
+        return create(pup, property, value);
+    }
+
+    private LocalH2AutoIDEntityPersistenceProvider create(LocalH2PersistenceUnitProvider provider, String property, String value) {
+        Properties pp = new Properties();
+        pp.putAll(p);
+        pp.setProperty(property, value);
+        LocalH2AutoIDEntityPersistenceProvider epp = new LocalH2AutoIDEntityPersistenceProvider();
+        epp.init("TestEntity", "idx", pp, provider);
+        return epp;
+    }
+
+    // a second persistence unit on the same database, writing behind
+    private LocalH2PersistenceUnitProvider createWriteBehind() {
+        Properties pp = new Properties();
+        pp.putAll(p);
+        pp.setProperty("key", "writebehindtest");
+        pp.setProperty("writebehind", "true");
+        return new LocalH2PersistenceUnitProvider(pp);
+    }
+
+    private EntityFields insert(String description) {
+        EntityFields ef = new EntityFields();
+        ef.put("description", description);
+        return instance.insert(ef);
+    }
+
+    /**
+     * Test insert, and get by primary key.
+     */
+    @Test
+    public void testInsertAndGet() {
+        System.out.println("insertAndGet");
+        EntityFields inserted = insert("first");
+        Integer pk = instance.getPK(inserted);
+        assertNotNull(pk);
+        assertEquals(1, inserted.get("idx"));
+        EntityFields ef = instance.get(pk);
+        assertEquals(pk, ef.get("id"));
+        assertEquals("first", ef.get("description"));
+        assertEquals(pk, instance.findOne("description", "first"));
+    }
+
+    /**
+     * Test update.
+     */
+    @Test
+    public void testUpdate() {
+        System.out.println("update");
+        Integer pk = instance.getPK(insert("before"));
+        EntityFields diff = new EntityFields();
+        diff.put("description", "after");
+        EntityFields updated = instance.update(pk, diff);
+        assertEquals("after", updated.get("description"));
+        assertEquals("after", instance.get(pk).get("description"));
+    }
+
+    /**
+     * Test paging through all entities, in index order.
+     */
+    @Test
+    public void testPaging() {
+        System.out.println("paging");
+        List<Integer> inserted = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            inserted.add(instance.getPK(insert("row " + i)));
+        }
+        List<Integer> paged = new ArrayList<>();
+        Integer after = null;
+        int pages = 0;
+        Page<EntityFields> page;
+        do {
+            page = instance.get(null, null, after, 2);
+            page.getItems().stream().forEach((ef) -> {
+                paged.add(instance.getPK(ef));
+            });
+            after = paged.get(paged.size() - 1);
+            pages++;
+        } while (page.hasMore());
+        assertEquals(3, pages);
+        assertEquals(inserted, paged);
+    }
+
+    /**
+     * Test that an update of a versioned row advances its version.
+     */
+    @Test
+    public void testVersionedUpdate() {
+        System.out.println("versionedUpdate");
+        LocalH2AutoIDEntityPersistenceProvider epp = create("TestEntity.versioncolumn", "version");
+        try {
+            EntityFields ef = new EntityFields();
+            ef.put("description", "before");
+            Integer pk = epp.getPK(epp.insert(ef));
+            EntityFields diff = new EntityFields();
+            diff.put("description", "after");
+            EntityFields updated = epp.update(pk, diff);
+            assertEquals(2, updated.get("version"));
+            assertEquals(2, instance.get(pk).get("version"));
+            assertEquals("after", instance.get(pk).get("description"));
+        } finally {
+            epp.close();
+        }
+    }
+
+    /**
+     * Test that an update of a versioned row which has been changed by another
+     * user since it was read fails.
+     */
+    @Test
+    public void testVersionConflict() throws Exception {
+        System.out.println("versionConflict");
+        LocalH2AutoIDEntityPersistenceProvider epp = create("TestEntity.versioncolumn", "version");
+        try {
+            EntityFields ef = new EntityFields();
+            ef.put("description", "before");
+            Integer pk = epp.getPK(epp.insert(ef));
+            pup.execute("UPDATE TestEntity SET version = 5 WHERE id = ?", pk);
+            EntityFields diff = new EntityFields();
+            diff.put("description", "after");
+            try {
+                epp.update(pk, diff);
+                fail("ConcurrentUpdateException expected");
+            } catch (ConcurrentUpdateException ex) {
+            }
+            assertEquals("before", instance.get(pk).get("description"));
+        } finally {
+            epp.close();
+        }
+    }
+
+    /**
+     * Test that an update made without knowing the version of the row (eg
+     * once its snapshot has been evicted) still advances the version, so that
+     * a provider holding the earlier version detects the change.
+     */
+    @Test
+    public void testUnknownVersionAdvanced() {
+        System.out.println("unknownVersionAdvanced");
+        LocalH2AutoIDEntityPersistenceProvider reader = create("TestEntity.versioncolumn", "version");
+        LocalH2AutoIDEntityPersistenceProvider writer = create("TestEntity.versioncolumn", "version");
+        try {
+            EntityFields ef = new EntityFields();
+            ef.put("description", "before");
+            Integer pk = reader.getPK(reader.insert(ef));
+            // the writer has never seen the row
+            EntityFields diff = new EntityFields();
+            diff.put("description", "written");
+            EntityFields updated = writer.update(pk, diff);
+            assertEquals(2, updated.get("version"));
+            diff = new EntityFields();
+            diff.put("description", "lost update");
+            try {
+                reader.update(pk, diff);
+                fail("ConcurrentUpdateException expected");
+            } catch (ConcurrentUpdateException ex) {
+            }
+            assertEquals("written", instance.get(pk).get("description"));
+            // a delete without a known version still requires the row
+            instance.delete(pk);
+            LocalH2AutoIDEntityPersistenceProvider deleter = create("TestEntity.versioncolumn", "version");
+            try {
+                deleter.delete(pk);
+                fail("ConcurrentUpdateException expected");
+            } catch (ConcurrentUpdateException ex) {
+            } finally {
+                deleter.close();
+            }
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    /**
+     * Test that a page requested after a deleted entity fails, rather than
+     * reporting the end of the data.
+     */
+    @Test
+    public void testPageAfterDeletedKey() {
+        System.out.println("pageAfterDeletedKey");
+        for (int i = 0; i < 5; i++) {
+            insert("row " + i);
+        }
+        Page<EntityFields> page = instance.get(null, null, null, 2);
+        Integer after = instance.getPK(page.getItems().get(1));
+        instance.delete(after);
+        try {
+            instance.get(null, null, after, 2);
+            fail("LogicException expected");
+        } catch (LogicException ex) {
+            assertEquals("Page requested after an unknown key", ex.getMessage());
+        }
+    }
+
+    /**
+     * Test that the changes made within a transaction are published when it
+     * is committed, and not if it is rolled back.
+     */
+    @Test
+    public void testChangesPublishedOnCommit() {
+        System.out.println("changesPublishedOnCommit");
+        List<ChangeRecord> published = new ArrayList<>();
+        pup.getChangeFeed().subscribe(published::add);
+        pup.begin();
+        insert("rolled back");
+        pup.rollback();
+        assertTrue(published.isEmpty());
+        pup.begin();
+        insert("committed");
+        assertTrue(published.isEmpty());
+        pup.commit();
+        assertEquals(1, published.size());
+        assertEquals("committed", published.get(0).getAfter().get("description"));
+    }
+
+    /**
+     * Test that a buffered write which fails when flushed by a read rolls the
+     * transaction back, so that none of it can be committed.
+     */
+    @Test
+    public void testFlushFailureRollsBack() throws Exception {
+        System.out.println("flushFailureRollsBack");
+        LocalH2PersistenceUnitProvider wbpup = createWriteBehind();
+        LocalH2AutoIDEntityPersistenceProvider epp = create(wbpup, "TestEntity.versioncolumn", "version");
+        try {
+            EntityFields ef = new EntityFields();
+            ef.put("description", "first");
+            Integer pk = epp.getPK(epp.insert(ef));
+            Integer other = epp.getPK(insert("other"));
+            // a concurrent change by another user
+            pup.execute("UPDATE TestEntity SET version = 5 WHERE id = ?", pk);
+            wbpup.begin();
+            EntityFields diff = new EntityFields();
+            diff.put("description", "other changed");
+            epp.update(other, diff);
+            diff = new EntityFields();
+            diff.put("description", "second");
+            epp.update(pk, diff);
+            try {
+                epp.get(pk);
+                fail("ConcurrentUpdateException expected");
+            } catch (ConcurrentUpdateException ex) {
+            }
+            assertFalse(wbpup.isInTransaction());
+            try {
+                wbpup.commit();
+                fail("LogicException expected");
+            } catch (LogicException ex) {
+            }
+            assertEquals("first", instance.get(pk).get("description"));
+            assertEquals("other", instance.get(other).get("description"));
+        } finally {
+            epp.close();
+            wbpup.disconnect();
+        }
+    }
+
+    /**
+     * Test that buffered writes are flushed before an insert - here a
+     * buffered update frees the unique value used by the insert.
+     */
+    @Test
+    public void testFlushBeforeInsert() throws Exception {
+        System.out.println("flushBeforeInsert");
+        LocalH2PersistenceUnitProvider wbpup = createWriteBehind();
+        LocalH2AutoIDEntityPersistenceProvider epp = create(wbpup, "generatedkeys", "true");
+        try {
+            EntityFields ef = new EntityFields();
+            ef.put("code", "A");
+            Integer pk = epp.getPK(epp.insert(ef));
+            wbpup.begin();
+            EntityFields diff = new EntityFields();
+            diff.put("code", "B");
+            epp.update(pk, diff);
+            ef = new EntityFields();
+            ef.put("code", "A");
+            Integer inserted = epp.getPK(epp.insert(ef));
+            wbpup.commit();
+            assertEquals(pk, instance.findOne("code", "B"));
+            assertEquals(inserted, instance.findOne("code", "A"));
+        } finally {
+            epp.close();
+            wbpup.disconnect();
+        }
+    }
+
+    /**
+     * Test that buffered writes are applied in the order issued - here a
+     * buffered delete frees the unique value taken by a later update.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testUpdateAfterBufferedDelete() throws Exception {
+        System.out.println("updateAfterBufferedDelete");
+        LocalH2PersistenceUnitProvider wbpup = createWriteBehind();
+        LocalH2AutoIDEntityPersistenceProvider epp = create(wbpup, "generatedkeys", "true");
+        try {
+            EntityFields ef = new EntityFields();
+            ef.put("code", "X");
+            Integer deleted = epp.getPK(epp.insert(ef));
+            ef = new EntityFields();
+            ef.put("code", "Y");
+            Integer pk = epp.getPK(epp.insert(ef));
+            wbpup.begin();
+            epp.delete(deleted);
+            EntityFields diff = new EntityFields();
+            diff.put("code", "X");
+            epp.update(pk, diff);
+            wbpup.commit();
+            assertEquals(1, instance.count());
+            assertEquals(pk, instance.findOne("code", "X"));
+        } finally {
+            epp.close();
+            wbpup.disconnect();
+        }
+    }
+
+    /**
+     * Test that a sequence reservation within a transaction fails (rather than
+     * waiting for ever) if the pool allows only one connection.
+     */
+    @Test
+    public void testReservationNeedsSecondConnection() throws Exception {
+        System.out.println("reservationNeedsSecondConnection");
+        Properties pp = new Properties();
+        pp.putAll(p);
+        pp.setProperty("key", "singleconnectiontest");
+        pp.setProperty("poolmaxsize", "1");
+        LocalH2PersistenceUnitProvider single = new LocalH2PersistenceUnitProvider(pp);
+        try {
+            single.begin();
+            try {
+                single.reserveBlock("TestSequence", "test", 1, "SELECT 1");
+                fail("LogicException expected");
+            } catch (LogicException ex) {
+            } finally {
+                single.rollback();
+            }
+        } finally {
+            single.disconnect();
+        }
+    }
+
+    /**
+     * Test that query results read within a transaction (which may include
+     * uncommitted rows) are not cached.
+     */
+    @Test
+    public void testCacheBypassedInTransaction() {
+        System.out.println("cacheBypassedInTransaction");
+        QueryResultCache cache = new QueryResultCache("TestEntity", 100, 60000);
+        CachingEntityPersistenceProvider<Integer> caching = new CachingEntityPersistenceProvider<>(instance, cache);
+        assertEquals(0, caching.count());
+        assertEquals(1, cache.size());
+        pup.begin();
+        EntityFields ef = new EntityFields();
+        ef.put("description", "uncommitted");
+        caching.insert(ef);
+        assertEquals(1, caching.count());
+        assertEquals(0, cache.size());
+        pup.rollback();
+        assertEquals(0, caching.count());
+        assertEquals(0, instance.count());
+    }
+
+    /**
+     * Test that the cached query results of an ordered provider and of an
+     * unordered provider for the same table are each returned in their own
+     * order.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCacheKeepsOrder() throws Exception {
+        System.out.println("cacheKeepsOrder");
+        Properties pp = new Properties();
+        pp.putAll(p);
+        pp.setProperty("key", "cachetest");
+        pp.setProperty("persistenceunitprovidertype", "h2");
+        pp.setProperty("entitypersistenceprovidertype", "local-h2");
+        pp.setProperty("TestEntity.querycache", "true");
+        EntityPersistenceProviderManager.init(pp);
+        EntityPersistenceProvider<Integer> unordered = EntityPersistenceProviderManager.getEntityPersistenceProvider("cachetest", "TestEntity");
+        EntityPersistenceProvider<Integer> ordered = EntityPersistenceProviderManager.getEntityPersistenceProvider("cachetest", "TestEntity", "idx");
+        for (int i = 0; i < 2; i++) {
+            EntityFields ef = new EntityFields();
+            ef.put("description", "insert " + i);
+            ef.put("idx", 2 - i);
+            unordered.insert(ef);
+        }
+        List<Integer> byid = unordered.find();
+        List<Integer> byidx = ordered.find();
+        assertEquals(1, (int) byidx.get(1));
+        assertEquals(byid.get(0), byidx.get(1));
+        assertEquals(byid.get(1), byidx.get(0));
+        assertEquals("insert 0", unordered.get().get(0).get("description"));
+        assertEquals("insert 1", ordered.get().get(0).get("description"));
+        assertEquals("insert 1", ordered.get("description", "insert 1").get(0).get("description"));
+        // and again, from the cache
+        assertEquals(byid, unordered.find());
+        assertEquals(byidx, ordered.find());
+        assertTrue(EntityPersistenceProviderManager.getQueryResultCache("cachetest", "TestEntity").getHits() >= 2);
+    }
+
+    /**
+     * Test that updates made within a transaction are not coalesced, so that
+     * none is left pending to be written after the transaction has ended.
+     */
+    @Test
+    public void testCoalescerBypassedInTransaction() {
+        System.out.println("coalescerBypassedInTransaction");
+        UpdateCoalescer coalescer = new UpdateCoalescer("TestEntity", 60000);
+        CoalescingEntityPersistenceProvider<Integer> coalescing = new CoalescingEntityPersistenceProvider<>(instance, coalescer);
+        Integer pk = instance.getPK(insert("before"));
+        pup.begin();
+        for (String description : new String[]{"first", "second"}) {
+            EntityFields diff = new EntityFields();
+            diff.put("description", description);
+            coalescing.update(pk, diff);
+        }
+        assertFalse(coalescer.isPending());
+        assertEquals(0, coalescer.getUpdates());
+        pup.rollback();
+        assertEquals("before", instance.get(pk).get("description"));
+    }
+
+    /**
+     * Test that a row written within a transaction which is rolled back is
+     * not used to build the fields returned by a later update.
+     */
+    @Test
+    public void testRollbackForgetsSnapshot() {
+        System.out.println("rollbackForgetsSnapshot");
+        LocalH2AutoIDEntityPersistenceProvider epp = create("generatedkeys", "true");
+        EntityFields ef = new EntityFields();
+        ef.put("description", "committed");
+        Integer pk = epp.getPK(epp.insert(ef));
+        pup.begin();
+        EntityFields diff = new EntityFields();
+        diff.put("description", "rolled back");
+        epp.update(pk, diff);
+        pup.rollback();
+        diff = new EntityFields();
+        diff.put("idx", 10);
+        EntityFields updated = epp.update(pk, diff);
+        assertEquals("committed", updated.get("description"));
+        assertEquals(10, updated.get("idx"));
+    }
+
+    /**
+     * Test that an update of a row which has been deleted by another client
+     * fails, rather than being built from the remembered row.
+     */
+    @Test
+    public void testUpdateOfDeletedRow() {
+        System.out.println("updateOfDeletedRow");
+        LocalH2AutoIDEntityPersistenceProvider epp = create("generatedkeys", "true");
+        EntityFields ef = new EntityFields();
+        ef.put("description", "deleted");
+        Integer pk = epp.getPK(epp.insert(ef));
+        instance.delete(pk);
+        EntityFields diff = new EntityFields();
+        diff.put("description", "updated");
+        try {
+            epp.update(pk, diff);
+            fail("LogicException expected");
+        } catch (LogicException ex) {
+        }
+        Map<Integer, EntityFields> diffs = new HashMap<>();
+        diffs.put(pk, diff);
+        try {
+            epp.updateAll(diffs);
+            fail("LogicException expected");
+        } catch (LogicException ex) {
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.h2;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeRecord;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.common.Event;
+import uk.theretiredprogrammer.nbpcglibrary.common.Listener;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.ConnectionPool;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLPersistenceUnitProvider;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.TransactionEventParams;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.TransactionEventParams.TransactionRequest;
+
+/**
+ * The test package for connection (and commit) failure recovery in the
+ * LocalSQLPersistenceUnitProvider, using an in memory H2 database with
+ * injected failures.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class LocalH2ReconnectTest {
+
+    private FaultInjectingConnectionFactory factory;
+    private TestPersistenceUnitProvider instance;
+
+    /**
+     * Constructor
+     */
+    public LocalH2ReconnectTest() {
+    }
+
+    /**
+     * setup test
+     *
+     * @throws Exception if problems
+     */
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        factory = new FaultInjectingConnectionFactory("jdbc:h2:mem:reconnecttest;DB_CLOSE_DELAY=-1");
+        Properties p = new Properties();
+        p.setProperty("reconnectdelay", "1");
+        instance = new TestPersistenceUnitProvider(p, factory);
+        instance.execute("CREATE TABLE TestTable (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(100))");
+        instance.execute("INSERT INTO TestTable (name) VALUES (?)", "test");
+    }
+
+    /**
+     * tear down test
+     *
+     * @throws Exception if problems
+     */
+    @After
+    public void tearDown() throws Exception {
+        instance.execute("DROP TABLE TestTable");
+        instance.disconnect();
+    }
+
+    /**
+     * Test that a read is replayed after the connection is dropped.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testReadReplayed() throws Exception {
+        System.out.println("readReplayed");
+        factory.drop();
+        List<EntityFields> result = instance.query("SELECT * from TestTable");
+        assertEquals(1, result.size());
+        assertEquals(1, instance.getConnectionStatistics().getReplays());
+        assertEquals(1, instance.getConnectionStatistics().getBrokenConnections());
+    }
+
+    /**
+     * Test that a new connection is opened with retries while the database is
+     * unavailable.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testReconnectWithRetries() throws Exception {
+        System.out.println("reconnectWithRetries");
+        factory.drop();
+        factory.refuse(3);
+        List<EntityFields> result = instance.query("SELECT * from TestTable");
+        assertEquals(1, result.size());
+        assertEquals(3, instance.getConnectionStatistics().getConnectFailures());
+    }
+
+    /**
+     * Test that a write is not replayed after the connection is dropped, but
+     * that the next write uses a new connection.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testWriteNotReplayed() throws Exception {
+        System.out.println("writeNotReplayed");
+        factory.drop();
+        try {
+            instance.execute("INSERT INTO TestTable (name) VALUES (?)", "second");
+            fail("Exception should have been thrown in this case.");
+        } catch (SQLException ex) {
+        }
+        assertEquals(0, instance.getConnectionStatistics().getReplays());
+        instance.execute("INSERT INTO TestTable (name) VALUES (?)", "second");
+        assertEquals(2, instance.query("SELECT * from TestTable").size());
+    }
+
+    /**
+     * Test that a read within a transaction is not replayed after the
+     * connection is dropped.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testTransactionNotReplayed() throws Exception {
+        System.out.println("transactionNotReplayed");
+        instance.begin();
+        factory.drop();
+        try {
+            instance.query("SELECT * from TestTable");
+            fail("Exception should have been thrown in this case.");
+        } catch (SQLException ex) {
+        }
+        instance.rollback();
+        assertEquals(0, instance.getConnectionStatistics().getReplays());
+        assertEquals(1, instance.query("SELECT * from TestTable").size());
+    }
+
+    /**
+     * Test that a commit which fails (other than by losing the connection)
+     * rolls the transaction back, and publishes none of its changes.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testCommitFailureRollsBack() throws Exception {
+        System.out.println("commitFailureRollsBack");
+        instance.execute("CREATE TABLE TestEntity (id INT AUTO_INCREMENT PRIMARY KEY, description VARCHAR(100), "
+                + "createdby VARCHAR(20), createdon VARCHAR(14), updatedby VARCHAR(20), updatedon VARCHAR(14))");
+        List<TransactionRequest> events = new ArrayList<>();
+        Listener<TransactionEventParams> listener = new Listener<TransactionEventParams>("transactions") {
+            @Override
+            public void action(TransactionEventParams p) {
+                events.add(p.get());
+            }
+        };
+        instance.addListener(listener, Event.ListenerMode.IMMEDIATE);
+        List<ChangeRecord> published = new ArrayList<>();
+        instance.getChangeFeed().subscribe(published::add);
+        LocalH2AutoIDEntityPersistenceProvider epp = new LocalH2AutoIDEntityPersistenceProvider();
+        epp.init("TestEntity", new Properties(), instance);
+        try {
+            instance.begin();
+            EntityFields ef = new EntityFields();
+            ef.put("description", "uncommitted");
+            epp.insert(ef);
+            factory.failCommits(1);
+            try {
+                instance.commit();
+                fail("Exception should have been thrown in this case.");
+            } catch (LogicException ex) {
+            }
+            assertFalse(instance.isInTransaction());
+            assertEquals(Arrays.asList(TransactionRequest.BEGIN, TransactionRequest.ROLLBACK), events);
+            assertTrue(published.isEmpty());
+            assertEquals(0, instance.query("SELECT * from TestEntity").size());
+        } finally {
+            epp.close();
+            instance.removeListener(listener);
+            instance.execute("DROP TABLE TestEntity");
+        }
+    }
+
+    private static class TestPersistenceUnitProvider extends LocalSQLPersistenceUnitProvider {
+
+        @SuppressWarnings("LeakingThisInConstructor")
+        TestPersistenceUnitProvider(Properties p, FaultInjectingConnectionFactory factory) throws SQLException {
+            super("reconnecttest");
+            setConnectionPool(new ConnectionPool(getName(), p, factory));
+            setDialect(new H2Dialect());
+            setOperational();
+        }
+
+        @Override
+        public String instanceDescription() {
+            return getName();
+        }
+    }
+}
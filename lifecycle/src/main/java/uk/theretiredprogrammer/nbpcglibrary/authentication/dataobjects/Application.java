@@ -146,7 +146,10 @@ public class Application extends Entity<Integer, Application, ApplicationRoot, A
         
         @Override
         protected boolean ruleCheck() {
-            return getParent().getApplications().stream().noneMatch((e) -> (e != Application.this && e.getApplication().equals(application)));
+            // a stored match may have been changed in memory - so then check all applications
+            return epp.exists("application", application, getPK())
+                    ? getParent().getApplications().stream().noneMatch((e) -> (e != Application.this && e.getApplication().equals(application)))
+                    : getParent().getLoadedApplications().stream().noneMatch((e) -> (e != Application.this && e.getApplication().equals(application)));
         }
     }
 
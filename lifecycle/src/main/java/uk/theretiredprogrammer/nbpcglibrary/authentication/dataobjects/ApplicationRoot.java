@@ -135,6 +135,15 @@ public class ApplicationRoot extends CoreEntity {
     public List<Application> getApplications() {        
         return applications.get();
     }
+
+    /**
+     * Get the list of Applications currently held in memory
+     *
+     * @return the list of Applications held in memory
+     */
+    public List<Application> getLoadedApplications() {
+        return applications.getLoaded();
+    }
     
     @Override
     protected final void entityRestoreState() {
@@ -172,7 +172,10 @@ public class User extends Entity<Integer, User, UserRoot, UserField> {
         
         @Override
         protected boolean ruleCheck() {
-            return getParent().getUsers().stream().noneMatch((e) -> (e != User.this && e.getUsername().equals(username)));
+            // a stored match may have been changed in memory - so then check all users
+            return epp.exists("username", username, getPK())
+                    ? getParent().getUsers().stream().noneMatch((e) -> (e != User.this && e.getUsername().equals(username)))
+                    : getParent().getLoadedUsers().stream().noneMatch((e) -> (e != User.this && e.getUsername().equals(username)));
         }
     }
     
@@ -232,7 +235,10 @@ public class User extends Entity<Integer, User, UserRoot, UserField> {
         
         @Override
         protected boolean ruleCheck() {
-            return getParent().getUsers().stream().noneMatch((e) -> (e != User.this && e.getUsercode().equals(usercode)));
+            // a stored match may have been changed in memory - so then check all users
+            return epp.exists("usercode", usercode, getPK())
+                    ? getParent().getUsers().stream().noneMatch((e) -> (e != User.this && e.getUsercode().equals(usercode)))
+                    : getParent().getLoadedUsers().stream().noneMatch((e) -> (e != User.this && e.getUsercode().equals(usercode)));
         }
     }
 
@@ -135,6 +135,15 @@ public class UserRoot extends CoreEntity {
     public List<User> getUsers() {        
         return users.get();
     }
+
+    /**
+     * Get the list of Users currently held in memory
+     *
+     * @return the list of Users held in memory
+     */
+    public List<User> getLoadedUsers() {
+        return users.getLoaded();
+    }
     
     @Override
     protected final void entityRestoreState() {
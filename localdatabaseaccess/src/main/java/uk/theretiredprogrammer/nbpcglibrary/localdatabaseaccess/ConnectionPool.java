@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import uk.theretiredprogrammer.nbpcglibrary.api.HasInstanceDescription;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceTimeoutException;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+
+/**
+ * A bounded pool of JDBC connections.
+ *
+ * The pool is configured from the persistence properties:
+ *
+ * poolminsize - the number of connections kept open (default 1);
+ * poolmaxsize - the maximum number of open connections (default 10 - at
+ * least 2 if sequence values are reserved within transactions, as the
+ * reservation uses a second connection);
+ * poolidletimeout - seconds after which an idle connection above the minimum
+ * is closed (default 600); poolvalidationquery - the query used to check a
+ * connection before reuse (default - use the driver's validation);
+ * poolacquiretimeout - seconds to wait for a free connection (default 30).
+ *
+ * Connections which have failed are discarded when released. New connections
+ * are opened with retries, using exponential backoff with jitter:
+ * reconnectattempts - the number of retries (default 5); reconnectdelay - the
+ * delay before the first retry in ms (default 100), doubling on each retry up
+ * to reconnectmaxdelay (default 2000). replayattempts is the number of times a
+ * read is replayed after a connection failure (default 2).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class ConnectionPool implements HasInstanceDescription {
+
+    /**
+     * Creator of new JDBC connections for the pool.
+     */
+    public interface ConnectionFactory {
+
+        /**
+         * Create a new JDBC connection.
+         *
+         * @return the connection
+         * @throws SQLException if problems
+         */
+        public Connection create() throws SQLException;
+    }
+
+    private static final long VALIDATIONINTERVAL = 5000; // only validate connections idle for longer than this (ms)
+    private static final int VALIDATIONTIMEOUT = 5; // seconds
+
+    private final String name;
+    private final ConnectionFactory factory;
+    private final int minsize;
+    private final int maxsize;
+    private final long idletimeout;
+    private final long acquiretimeout;
+    private final String validationquery;
+    private final int reconnectattempts;
+    private final long reconnectdelay;
+    private final long reconnectmaxdelay;
+    private final int replayattempts;
+    private final ConnectionStatistics statistics = new ConnectionStatistics();
+    private long latency = 0; // smoothed query latency (ns)
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private int opened = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructor - opens the minimum number of connections.
+     *
+     * @param name the pool name (for reporting)
+     * @param p the persistence properties
+     * @param factory the creator of new connections
+     * @throws SQLException if the initial connections cannot be opened
+     */
+    @SuppressWarnings("LeakingThisInConstructor")
+    public ConnectionPool(String name, Properties p, ConnectionFactory factory) throws SQLException {
+        this.name = name;
+        this.factory = factory;
+        minsize = Integer.parseInt(p.getProperty("poolminsize", "1"));
+        maxsize = Math.max(minsize, Integer.parseInt(p.getProperty("poolmaxsize", "10")));
+        idletimeout = Long.parseLong(p.getProperty("poolidletimeout", "600")) * 1000;
+        acquiretimeout = Long.parseLong(p.getProperty("poolacquiretimeout", "30")) * 1000;
+        validationquery = p.getProperty("poolvalidationquery");
+        reconnectattempts = Integer.parseInt(p.getProperty("reconnectattempts", "5"));
+        reconnectdelay = Long.parseLong(p.getProperty("reconnectdelay", "100"));
+        reconnectmaxdelay = Long.parseLong(p.getProperty("reconnectmaxdelay", "2000"));
+        replayattempts = Integer.parseInt(p.getProperty("replayattempts", "2"));
+        LogBuilder.writeConstructorLog("nbpcglib.localdatabaseaccess", this, minsize, maxsize);
+        synchronized (this) {
+            while (opened < minsize) {
+                idle.push(new PooledConnection(this, factory.create()));
+                opened++;
+            }
+        }
+    }
+
+    @Override
+    public String instanceDescription() {
+        return LogBuilder.instanceDescription(this, name);
+    }
+
+    /**
+     * Get the connection failure and recovery counters.
+     *
+     * @return the counters
+     */
+    public ConnectionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Get the smoothed latency of queries executed using this pool.
+     *
+     * @return the latency (ns), or 0 if no queries have been executed
+     */
+    public synchronized long getLatency() {
+        return latency;
+    }
+
+    synchronized void recordLatency(long nanos) {
+        latency = latency == 0 ? nanos : latency - (latency >> 3) + (nanos >> 3); // ewma, weight 1/8
+    }
+
+    /**
+     * Get the number of times a read may be replayed after a connection
+     * failure.
+     *
+     * @return the number of replays
+     */
+    public int getReplayAttempts() {
+        return replayattempts;
+    }
+
+    /**
+     * Get the maximum number of open connections.
+     *
+     * @return the maximum pool size
+     */
+    public int getMaxSize() {
+        return maxsize;
+    }
+
+    /**
+     * Acquire a connection from the pool, waiting if all connections are in
+     * use and the pool is at its maximum size.
+     *
+     * @return the connection
+     * @throws SQLException if a new connection cannot be opened
+     * @throws PersistenceTimeoutException if no connection is available
+     * within the acquire timeout
+     */
+    public PooledConnection acquire() throws SQLException {
+        long deadline = System.currentTimeMillis() + acquiretimeout;
+        while (true) {
+            PooledConnection pc = take(deadline);
+            if (pc == null) {
+                break; // open a new connection
+            }
+            // the validation query is executed outside the pool lock, so a slow
+            // check does not hold up other threads acquiring or releasing
+            if (System.currentTimeMillis() - pc.getLastUsed() < VALIDATIONINTERVAL
+                    || pc.isValid(validationquery, VALIDATIONTIMEOUT)) {
+                return pc;
+            }
+            pc.close();
+            synchronized (this) {
+                opened--;
+                notifyAll();
+            }
+        }
+        try {
+            return connect();
+        } catch (SQLException ex) {
+            synchronized (this) {
+                opened--;
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    // take an idle connection, or return null if a new connection is to be
+    // opened (it is then already counted as opened)
+    private synchronized PooledConnection take(long deadline) throws SQLException {
+        while (true) {
+            if (closed) {
+                throw new SQLException("Connection pool " + name + " is closed");
+            }
+            PooledConnection pc = idle.poll();
+            if (pc != null) {
+                return pc;
+            }
+            if (opened < maxsize) {
+                opened++;
+                return null;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new PersistenceTimeoutException("Timeout acquiring connection from pool " + name);
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while acquiring connection from pool " + name);
+            }
+        }
+    }
+
+    private PooledConnection connect() throws SQLException {
+        int attempt = 0;
+        while (true) {
+            try {
+                return new PooledConnection(this, factory.create());
+            } catch (SQLException ex) {
+                statistics.connectFailure();
+                if (attempt >= reconnectattempts) {
+                    throw ex;
+                }
+                long delay = Math.min(reconnectmaxdelay, reconnectdelay << Math.min(attempt, 20));
+                delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1); // jitter
+                LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(this, "connect")
+                        .addMsg("retry {0} in {1}ms", attempt + 1, delay).addExceptionMessage(ex).write();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+                attempt++;
+            }
+        }
+    }
+
+    /**
+     * Return a connection to the pool.
+     *
+     * @param pc the connection
+     */
+    public synchronized void release(PooledConnection pc) {
+        if (pc.isBroken()) {
+            statistics.brokenConnection();
+            discard(pc);
+            return;
+        }
+        if (closed) {
+            pc.close();
+            opened--;
+            return;
+        }
+        pc.touch();
+        idle.push(pc);
+        closeIdleConnections();
+        notifyAll();
+    }
+
+    /**
+     * Remove a connection from the pool (ie it is broken) and close it.
+     *
+     * @param pc the connection
+     */
+    public synchronized void discard(PooledConnection pc) {
+        pc.close();
+        opened--;
+        notifyAll();
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> it = idle.descendingIterator(); // least recently used first
+        while (it.hasNext() && opened > minsize) {
+            PooledConnection pc = it.next();
+            if (now - pc.getLastUsed() > idletimeout) {
+                it.remove();
+                pc.close();
+                opened--;
+            }
+        }
+    }
+
+    /**
+     * Close the pool - closing all idle connections; connections currently in
+     * use will be closed when they are released.
+     */
+    public synchronized void close() {
+        closed = true;
+        idle.stream().forEach((pc) -> {
+            pc.close();
+            opened--;
+        });
+        idle.clear();
+        notifyAll();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of connection failures and recovery actions for a connection pool
+ * (for monitoring).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class ConnectionStatistics {
+
+    private final AtomicLong connectionfailures = new AtomicLong();
+    private final AtomicLong brokenconnections = new AtomicLong();
+    private final AtomicLong connectfailures = new AtomicLong();
+    private final AtomicLong replays = new AtomicLong();
+
+    /**
+     * Get the number of statements which failed because their connection
+     * failed.
+     *
+     * @return the count
+     */
+    public long getConnectionFailures() {
+        return connectionfailures.get();
+    }
+
+    /**
+     * Get the number of broken connections discarded from the pool.
+     *
+     * @return the count
+     */
+    public long getBrokenConnections() {
+        return brokenconnections.get();
+    }
+
+    /**
+     * Get the number of failed attempts to open a new connection.
+     *
+     * @return the count
+     */
+    public long getConnectFailures() {
+        return connectfailures.get();
+    }
+
+    /**
+     * Get the number of read statements replayed on a new connection after a
+     * connection failure.
+     *
+     * @return the count
+     */
+    public long getReplays() {
+        return replays.get();
+    }
+
+    void connectionFailure() {
+        connectionfailures.incrementAndGet();
+    }
+
+    void brokenConnection() {
+        brokenconnections.incrementAndGet();
+    }
+
+    void connectFailure() {
+        connectfailures.incrementAndGet();
+    }
+
+    void replay() {
+        replays.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "connectionfailures=" + getConnectionFailures() + ", brokenconnections=" + getBrokenConnections()
+                + ", connectfailures=" + getConnectFailures() + ", replays=" + getReplays();
+    }
+}
@@ -17,34 +17,89 @@ package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
 import uk.theretiredprogrammer.nbpcglibrary.annotations.RegisterLog;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeRecord;
+import uk.theretiredprogrammer.nbpcglibrary.api.ConcurrentUpdateException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Condition;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.IdxBlockAllocator;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.Query;
 
 /**
  * EntityPersistenceProvider Class for access localSQL databases
  *
+ * If the persistence property "generatedkeys" is set to true, then inserts and
+ * updates do not re-read the row; the returned fields are built from the
+ * submitted values, the generated key and the last row seen for the key.
+ * Columns which are set by the database (server defaults, triggers) can be
+ * listed (comma separated) in the property "&lt;tablename&gt;.serverdefaults";
+ * only these columns are then re-read.
+ *
+ * If the property "&lt;tablename&gt;.versioncolumn" is set, updates and
+ * deletes are checked against the version of the row last read (optimistic
+ * locking), failing with a ConcurrentUpdateException if the row has since
+ * been changed. The version column is either a counter (set to 1 on insert
+ * and advanced by the database on each update), or a column set on each
+ * update by updateTimestampInfo (eg updatedon). If no row has been read for
+ * the key (or it has been evicted from the rows seen), the update or delete is
+ * not checked against a version - but a counter is still advanced, and an
+ * update or delete of a row which no longer exists still fails with a
+ * ConcurrentUpdateException. Updates of versioned tables are not re-read,
+ * unless the new version of the row is not known.
+ *
+ * Within a transaction of a PersistenceUnitProvider with write behind enabled,
+ * updates and deletes are buffered in the transaction's unit of work rather
+ * than executed immediately (updates only if the updated row can be built
+ * without re-reading it - see above); a ConcurrentUpdateException is then
+ * reported by the commit.
+ *
+ * The rows seen within a transaction are forgotten if the transaction is
+ * rolled back, so that uncommitted values are never used.
+ *
+ * Inserts, updates and deletes are recorded on the PersistenceUnitProvider's
+ * change feed (if active). The before values of updates and deletes are only
+ * included if the row has been seen (generatedkeys or versioncolumn set).
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  * @param <K> the Primary Key Class
  */
 @RegisterLog("nbpcglib.localdatabaseaccess")
 public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPersistenceProvider<K> {
 
+    private static final int MAXINLIST = 500;
+    private static final int MAXSNAPSHOTS = 1000;
+    private static final float LOADFACTOR = (float) 0.9;
+
     private String tablename;
     private LocalSQLPersistenceUnitProvider persistenceUnitProvider;
     private String idx;
+    private boolean generatedkeys;
+    private String versioncolumn;
+    private List<String> serverdefaults;
+    private String idxsequencetable;
+    private IdxBlockAllocator idxallocator;
+    private int idxhighwater = 0;
+    private final Map<Object, EntityFields> snapshots = new SnapshotCache();
 
     @Override
     public void init(String tablename, Properties properties, PersistenceUnitProvider pup) {
-        this.tablename = tablename;
-        this.persistenceUnitProvider = (LocalSQLPersistenceUnitProvider) pup;
-        this.idx = null;
+        init(tablename, null, properties, pup);
     }
 
     @Override
@@ -52,10 +107,38 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
         this.tablename = tablename;
         this.persistenceUnitProvider = (LocalSQLPersistenceUnitProvider) pup;
         this.idx = idx;
+        generatedkeys = Boolean.parseBoolean(properties.getProperty("generatedkeys", "false"));
+        versioncolumn = properties.getProperty(tablename + ".versioncolumn");
+        serverdefaults = new ArrayList<>();
+        for (String column : properties.getProperty(tablename + ".serverdefaults", "").split(",")) {
+            if (!column.trim().isEmpty()) {
+                serverdefaults.add(column.trim());
+            }
+        }
+        // index values are reserved in blocks from the sequence table if one
+        // is defined, otherwise one at a time from the table's current maximum
+        idxsequencetable = properties.getProperty("idxsequencetable");
+        int idxblocksize = Integer.parseInt(properties.getProperty("idxblocksize", idxsequencetable == null ? "1" : "20"));
+        idxallocator = new IdxBlockAllocator((count) -> reserveIdx(count), idxblocksize);
     }
     
     @Override
     public void close(){
+        synchronized (snapshots) {
+            snapshots.clear();
+        }
+    }
+
+    /**
+     * Convert a key returned by the JDBC driver's generated keys into the
+     * type used by this table's primary key. The default implementation
+     * returns the key unchanged.
+     *
+     * @param key the generated key
+     * @return the primary key value
+     */
+    protected Object convertGeneratedKey(Object key) {
+        return key;
     }
 
     @Override
@@ -67,17 +150,36 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     public EntityFields get(K pkey) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", pkey);
         try {
-            List<EntityFields> response = persistenceUnitProvider.query(buildsql("SELECT * from " + tablename + " WHERE id={P}", pkey));
+            List<EntityFields> response = persistenceUnitProvider.query("SELECT * from " + tablename + " WHERE id=?", pkey);
             if (response.size() != 1) {
                 throw new LogicException("Single row expected");
             }
-            return response.get(0);
+            return remember(response.get(0));
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", pkey);
             throw new LogicException(ex.getMessage());
         }
     }
 
+    @Override
+    public Map<K, EntityFields> get(Collection<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", pkeys.size());
+        try {
+            Map<K, EntityFields> rows = new HashMap<>();
+            getRows(pkeys).stream().forEach((ef) -> {
+                rows.put((K) ef.get("id"), remember(ef));
+            });
+            Map<K, EntityFields> result = new LinkedHashMap<>();
+            pkeys.stream().filter((pkey) -> (rows.containsKey(pkey))).forEach((pkey) -> {
+                result.put(pkey, rows.get(pkey));
+            });
+            return result;
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", pkeys.size());
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
     @Override
     public final List<EntityFields> get() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get");
@@ -85,13 +187,41 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
                 ? "SELECT * from " + tablename
                 : "SELECT * from " + tablename + " ORDER BY " + idx;
         try {
-            return persistenceUnitProvider.query(sql);
+            return remember(persistenceUnitProvider.query(sql));
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get");
             throw new LogicException(ex.getMessage());
         }
     }
 
+    @Override
+    public final Stream<EntityFields> stream() {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "stream");
+        String sql = idx == null
+                ? "SELECT * from " + tablename
+                : "SELECT * from " + tablename + " ORDER BY " + idx;
+        try {
+            return persistenceUnitProvider.stream(sql);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "stream");
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final Stream<EntityFields> stream(String parametername, Object parametervalue) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "stream", parametername, parametervalue);
+        String sql = idx == null
+                ? "SELECT * from " + tablename + " where " + parametername + "=?"
+                : "SELECT * from " + tablename + " where " + parametername + "=? ORDER BY " + idx;
+        try {
+            return persistenceUnitProvider.stream(sql, parametervalue);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "stream", parametername, parametervalue);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
     @Override
     public final List<K> find() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "find");
@@ -114,25 +244,205 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     public final List<EntityFields> get(String parametername, Object parametervalue) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", parametername, parametervalue);
         String sql = idx == null
-                ? buildsql("SELECT * from " + tablename + " where " + parametername + "={P}", parametervalue)
-                : buildsql("SELECT * from " + tablename + " where " + parametername + "={P} ORDER BY " + idx, parametervalue);
+                ? "SELECT * from " + tablename + " where " + parametername + "=?"
+                : "SELECT * from " + tablename + " where " + parametername + "=? ORDER BY " + idx;
         try {
-            return persistenceUnitProvider.query(sql);
+            return remember(persistenceUnitProvider.query(sql, parametervalue));
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", parametername, parametervalue);
             throw new LogicException(ex.getMessage());
         }
     }
 
+    @Override
+    public final Page<EntityFields> get(String parametername, Object parametervalue, K afterKey, int limit) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", parametername, parametervalue, afterKey, limit);
+        if (limit < 1) {
+            throw new LogicException("Page limit must be at least 1");
+        }
+        // keyset pagination - seek to the row after afterKey in (idx, id) order
+        StringBuilder sql = new StringBuilder("SELECT * from ").append(tablename);
+        List<Object> parameters = new ArrayList<>();
+        String prefix = " WHERE ";
+        if (parametername != null) {
+            sql.append(prefix).append(parametername).append("=?");
+            parameters.add(parametervalue);
+            prefix = " AND ";
+        }
+        if (afterKey != null) {
+            // the position of afterKey is read first, so that a page requested
+            // after a deleted entity fails rather than appearing to be the end
+            Object afteridx = getAfterIdx(afterKey);
+            if (idx == null) {
+                sql.append(prefix).append("id > ?");
+                parameters.add(afterKey);
+            } else if (afteridx == null) {
+                // null index values are ordered first
+                sql.append(prefix).append("(").append(idx).append(" IS NOT NULL OR id > ?)");
+                parameters.add(afterKey);
+            } else {
+                sql.append(prefix).append("(").append(idx).append(" > ? OR (").append(idx).append(" = ? AND id > ?))");
+                parameters.add(afteridx);
+                parameters.add(afteridx);
+                parameters.add(afterKey);
+            }
+        }
+        sql.append(idx == null ? " ORDER BY id" : " ORDER BY " + idx + ", id");
+        sql.append(persistenceUnitProvider.getDialect().limitClause());
+        // one more row than the limit, to find if there are more pages
+        parameters.add(limit < Integer.MAX_VALUE ? limit + 1 : limit);
+        try {
+            List<EntityFields> rows = remember(persistenceUnitProvider.query(sql.toString(), parameters.toArray()));
+            boolean more = rows.size() > limit;
+            return new Page<>(more ? new ArrayList<>(rows.subList(0, limit)) : rows, more);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", parametername, parametervalue, afterKey, limit);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    // the index value of the entity preceding a page (or its primary key if
+    // the entity is not ordered)
+    private Object getAfterIdx(K afterKey) {
+        try {
+            List<EntityFields> rows = persistenceUnitProvider.query("SELECT " + (idx == null ? "id" : idx) + " from " + tablename + " WHERE id = ?", afterKey);
+            if (rows.isEmpty()) {
+                throw new LogicException("Page requested after an unknown key");
+            }
+            return rows.get(0).values().iterator().next();
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "getAfterIdx", afterKey);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final List<EntityFields> get(Query query) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", query);
+        List<Object> parameters = new ArrayList<>();
+        String sql = buildQuery("*", query, parameters);
+        try {
+            return remember(persistenceUnitProvider.query(sql, parameters.toArray()));
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", sql);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final List<K> find(Query query) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "find", query);
+        List<Object> parameters = new ArrayList<>();
+        String sql = buildQuery("id", query, parameters);
+        List<K> result = new ArrayList<>();
+        try {
+            persistenceUnitProvider.query(sql, parameters.toArray()).stream().forEach((ef) -> {
+                result.add((K) ef.get("id"));
+            });
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "find", sql);
+            throw new LogicException(ex.getMessage());
+        }
+        return result;
+    }
+
+    @Override
+    public final List<EntityFields> get(String parametername, Object parametervalue, Set<String> columns) {
+        return get(new Query(Condition.eq(parametername, parametervalue)), columns);
+    }
+
+    @Override
+    public final List<EntityFields> get(Query query, Set<String> columns) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", query, columns);
+        List<Object> parameters = new ArrayList<>();
+        String sql = buildQuery(columnList(columns), query, parameters);
+        try {
+            return persistenceUnitProvider.query(sql, parameters.toArray()); // partial rows, so not remembered
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", sql);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    private String columnList(Set<String> columns) {
+        TreeSet<String> columnset = new TreeSet<>(columns);
+        columnset.add("id");
+        columnset.stream().forEach((column) -> {
+            Condition.checkColumnName(column);
+        });
+        return String.join(",", columnset);
+    }
+
+    private String buildQuery(String columns, Query query, List<Object> parameters) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(columns).append(" from ").append(tablename);
+        if (query.getWhere() != null) {
+            sql.append(" WHERE ");
+            buildCondition(sql, query.getWhere(), parameters);
+        }
+        if (!query.getOrderBy().isEmpty()) {
+            String prefix = " ORDER BY ";
+            for (Query.OrderBy orderby : query.getOrderBy()) {
+                sql.append(prefix).append(orderby.getColumnName());
+                if (orderby.isDescending()) {
+                    sql.append(" DESC");
+                }
+                prefix = ", ";
+            }
+        } else if (idx != null) {
+            sql.append(" ORDER BY ").append(idx);
+        }
+        return sql.toString();
+    }
+
+    private void buildCondition(StringBuilder sql, Condition condition, List<Object> parameters) {
+        switch (condition.getOperator()) {
+            case AND:
+            case OR:
+                if (condition.getConditions().isEmpty()) {
+                    sql.append(condition.getOperator() == Condition.Operator.AND ? "1=1" : "1=0");
+                    return;
+                }
+                String prefix = "(";
+                for (Condition c : condition.getConditions()) {
+                    sql.append(prefix);
+                    buildCondition(sql, c, parameters);
+                    prefix = " " + condition.getOperator().toSQL() + " ";
+                }
+                sql.append(')');
+                return;
+            case ISNULL:
+            case ISNOTNULL:
+                sql.append(condition.getColumnName()).append(' ').append(condition.getOperator().toSQL());
+                return;
+            case IN:
+                if (condition.getValues().isEmpty()) {
+                    sql.append("1=0");
+                    return;
+                }
+                sql.append(condition.getColumnName()).append(" IN (");
+                String sep = "";
+                for (Object value : condition.getValues()) {
+                    sql.append(sep).append('?');
+                    parameters.add(value);
+                    sep = ",";
+                }
+                sql.append(')');
+                return;
+            default:
+                sql.append(condition.getColumnName()).append(' ').append(condition.getOperator().toSQL()).append(" ?");
+                parameters.add(condition.getValue());
+        }
+    }
+
     @Override
     public final List<K> find(String parametername, Object parametervalue) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "find", parametername, parametervalue);
         String sql = idx == null
-                ? buildsql("SELECT id from " + tablename + " where " + parametername + "={P}", parametervalue)
-                : buildsql("SELECT id from " + tablename + " where " + parametername + "={P} ORDER BY " + idx, parametervalue);
+                ? "SELECT id from " + tablename + " where " + parametername + "=?"
+                : "SELECT id from " + tablename + " where " + parametername + "=? ORDER BY " + idx;
         List<K> result = new ArrayList<>();
         try {
-            persistenceUnitProvider.query(sql).stream().forEach((ef) -> {
+            persistenceUnitProvider.query(sql, parametervalue).stream().forEach((ef) -> {
                 result.add((K) ef.get("id"));
             });
         } catch (SQLException ex) {
@@ -145,11 +455,11 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     @Override
     public final EntityFields getOne(String parametername, Object parametervalue) {
         try {
-            List<EntityFields> get = persistenceUnitProvider.query(buildsql("SELECT * from " + tablename + " where " + parametername + "={P}", parametervalue));
+            List<EntityFields> get = persistenceUnitProvider.query("SELECT * from " + tablename + " where " + parametername + "=?", parametervalue);
             if (get.size() != 1) {
                 throw new LogicException("Single row expected");
             }
-            return get.get(0);
+            return remember(get.get(0));
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "getOne", parametername, parametervalue);
             throw new LogicException(ex.getMessage());
@@ -159,7 +469,7 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     @Override
     public final K findOne(String parametername, Object parametervalue) {
         try {
-            List<EntityFields> find = persistenceUnitProvider.query(buildsql("SELECT id from " + tablename + " where " + parametername + "={P}", parametervalue));
+            List<EntityFields> find = persistenceUnitProvider.query("SELECT id from " + tablename + " where " + parametername + "=?", parametervalue);
             if (find.size() != 1) {
                 throw new LogicException("Single row expected");
             }
@@ -170,42 +480,122 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
         }
     }
 
+    @Override
+    public final long count() {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "count");
+        try {
+            return getCount(persistenceUnitProvider.query("SELECT COUNT(*) from " + tablename));
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "count");
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final long count(String parametername, Object parametervalue) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "count", parametername, parametervalue);
+        try {
+            return getCount(persistenceUnitProvider.query("SELECT COUNT(*) from " + tablename + " where " + parametername + "=?", parametervalue));
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "count", parametername, parametervalue);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    private long getCount(List<EntityFields> response) {
+        if (response.size() != 1) {
+            throw new LogicException("Single row expected");
+        }
+        return ((Number) response.get(0).values().iterator().next()).longValue();
+    }
+
+    @Override
+    public final boolean exists(String parametername, Object parametervalue, K excludingPk) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "exists", parametername, parametervalue, excludingPk);
+        try {
+            List<EntityFields> response = excludingPk == null
+                    ? persistenceUnitProvider.query("SELECT id from " + tablename + " where " + parametername + "=?" + persistenceUnitProvider.getDialect().limitClause(), parametervalue, 1)
+                    : persistenceUnitProvider.query("SELECT id from " + tablename + " where " + parametername + "=? AND id<>?" + persistenceUnitProvider.getDialect().limitClause(), parametervalue, excludingPk, 1);
+            return !response.isEmpty();
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "exists", parametername, parametervalue, excludingPk);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
     @Override
     public final int findNextIdx() {
+        if (idx == null) {
+            throw new LogicException("findNextIdx() should not be called if the entity is not ordered");
+        }
+        return idxallocator.next();
+    }
+
+    @Override
+    public final synchronized int reserveIdx(int count) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "reserveIdx", count);
+        if (idx == null) {
+            throw new LogicException("reserveIdx() should not be called if the entity is not ordered");
+        }
+        String seedsql = "SELECT COALESCE(MAX(" + idx + "),0)+1 from " + tablename;
         try {
-            if (idx == null) {
-                throw new LogicException("findNextIdx() should not be called if the entity is not ordered");
-            }
-            List<EntityFields> findidx = persistenceUnitProvider.query("SELECT max(" + idx + ")+1 as nextidx from " + tablename);
-            if (findidx.size() != 1) {
-                throw new LogicException("Single row expected");
+            int first;
+            if (idxsequencetable != null) {
+                first = persistenceUnitProvider.reserveBlock(idxsequencetable, tablename, count, seedsql);
+            } else {
+                List<EntityFields> findidx = persistenceUnitProvider.queryPrimary(seedsql);
+                if (findidx.size() != 1) {
+                    throw new LogicException("Single row expected");
+                }
+                Object nextidx = findidx.get(0).values().iterator().next();
+                first = Math.max(((Number) nextidx).intValue(), idxhighwater);
             }
-            EntityFields idxrec = findidx.get(0);
-            return ((Long) idxrec.get("nextidx")).intValue();
+            idxhighwater = first + count;
+            return first;
         } catch (SQLException ex) {
-            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "findNextIdx");
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "reserveIdx", count);
             throw new LogicException(ex.getMessage());
         }
     }
 
+    private void allocateIdx(EntityFields values) {
+        if (idx != null && values.get(idx) == null) {
+            values.put(idx, idxallocator.next());
+        }
+    }
+
     @Override
     public final EntityFields insert(EntityFields values) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "insert", values);
         addTimestampInfo(values);
+        allocateIdx(values);
+        initialiseVersion(values);
         try {
-            persistenceUnitProvider.execute(buildsql("INSERT INTO " + tablename + " ({$KEYLIST}) VALUES ({$VALUELIST})", values));
-            List<EntityFields> findpkey = persistenceUnitProvider.query("SELECT LAST_INSERT_ID() as id");
-            if (findpkey.size() != 1) {
-                throw new LogicException("Single row expected");
+            StringBuilder keylist = new StringBuilder();
+            StringBuilder valuelist = new StringBuilder();
+            List<Object> parameters = new ArrayList<>();
+            String prefix = "";
+            for (String key : new TreeSet<>(values.keySet())) {
+                keylist.append(prefix).append(key);
+                valuelist.append(prefix).append('?');
+                parameters.add(values.get(key));
+                prefix = ",";
             }
-            EntityFields pkeyrec = findpkey.get(0);
-            K pkey = (K) pkeyrec.get("id");
-            List<EntityFields> updated = persistenceUnitProvider.query(buildsql("SELECT * FROM " + tablename + " WHERE id = {P}", pkey));
-            if (updated.size() != 1) {
-                throw new LogicException("Single row expected");
+            Object pkey = persistenceUnitProvider.executeInsert("INSERT INTO " + tablename + " (" + keylist + ") VALUES (" + valuelist + ")", parameters.toArray());
+            EntityFields inserted;
+            if (generatedkeys) {
+                inserted = new EntityFields();
+                inserted.putAll(values);
+                inserted.put("id", convertGeneratedKey(pkey));
+                readServerDefaults(inserted, values);
+            } else {
+                inserted = getRow(pkey);
+            }
+            LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "insert", inserted);
+            if (isCapturing()) {
+                persistenceUnitProvider.changed(ChangeRecord.insert(tablename, inserted.get("id"), inserted));
             }
-            LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "insert", updated);
-            return updated.get(0);
+            return remember(inserted);
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "insert", values);
             throw new LogicException(ex.getMessage());
@@ -215,15 +605,26 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     @Override
     public final EntityFields update(K pkey, EntityFields diff) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "update", pkey, diff);
-        updateTimestampInfo(diff);
+        EntityFields before = isCapturing() ? getSnapshot(pkey) : null;
+        WriteStatement ws = updateStatement(pkey, diff);
         try {
-            persistenceUnitProvider.execute(buildsql(buildsql("UPDATE " + tablename + " SET {$KEYVALUELIST} WHERE id= {P}", pkey), diff));
-            List<EntityFields> updated = persistenceUnitProvider.query(buildsql("SELECT * FROM " + tablename + " WHERE id = {P}", pkey));
-            if (updated.size() != 1) {
-                throw new LogicException("Single row expected");
+            EntityFields updated = deferUpdate(ws, diff);
+            if (updated == null) {
+                int count = persistenceUnitProvider.execute(ws.getSql(), ws.getParameters());
+                if (count == 0 && ws.isChecked()) {
+                    throw conflict(pkey);
+                }
+                // a row not updated (eg deleted by another client) is reported by the re-read
+                updated = count != 0 && isSnapshotting() ? merge(ws, diff) : null;
+                if (updated == null) {
+                    updated = getRow(pkey);
+                }
             }
             LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "update", updated);
-            return updated.get(0);
+            if (isCapturing()) {
+                persistenceUnitProvider.changed(ChangeRecord.update(tablename, pkey, before, updated, diff.keySet()));
+            }
+            return remember(updated);
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "update", pkey, diff);
             throw new LogicException(ex.getMessage());
@@ -232,54 +633,419 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
 
     @Override
     public final void delete(K pkey) {
-        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "delete", pkey);
+        delete(pkey, getSnapshotVersion(pkey));
+    }
+
+    @Override
+    public final void delete(K pkey, Object version) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "delete", pkey, version);
+        WriteStatement ws = WriteStatement.delete(tablename, versioncolumn, pkey, version);
         try {
-            persistenceUnitProvider.execute(buildsql("DELETE from " + tablename + " WHERE id = {P}", pkey));
+            if (persistenceUnitProvider.isWritingBehind()) {
+                persistenceUnitProvider.defer(ws);
+            } else if (persistenceUnitProvider.execute(ws.getSql(), ws.getParameters()) == 0 && ws.isChecked()) {
+                throw conflict(pkey);
+            }
+            if (isCapturing()) {
+                persistenceUnitProvider.changed(ChangeRecord.delete(tablename, pkey, getSnapshot(pkey)));
+            }
+            forget(pkey);
         } catch (SQLException ex) {
-            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "delete", pkey);
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "delete", pkey, version);
             throw new LogicException(ex.getMessage());
         }
     }
 
-    private String buildsql(String sql, EntityFields parameters) {
-        if (sql.contains("{$KEYLIST}") || sql.contains("{$VALUELIST}") || sql.contains("{$KEYVALUELIST}")) {
-            // special code to generate and substitute keylists and valuelists
-            String keylist = "";
-            String valuelist = "";
-            String keyvaluelist = "";
-            String prefix = "";
-            for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
-                String fp = format(parameter.getValue());
-                keylist += (prefix + parameter.getKey());
-                valuelist += (prefix + fp);
-                keyvaluelist += (prefix + parameter.getKey() + "=" + fp);
-                prefix = ",";
+    @Override
+    public final String getVersionColumn() {
+        return versioncolumn;
+    }
+
+    @Override
+    public final PersistenceUnitProvider getPersistenceUnitProvider() {
+        return persistenceUnitProvider;
+    }
+
+    @Override
+    public final List<EntityFields> insertAll(List<EntityFields> values) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "insertAll", values.size());
+        try {
+            // group the rows by column set - each group is a single batch
+            Map<String, List<Integer>> groups = new LinkedHashMap<>();
+            values.stream().forEach((ef) -> {
+                addTimestampInfo(ef);
+                allocateIdx(ef);
+                initialiseVersion(ef);
+            });
+            for (int i = 0; i < values.size(); i++) {
+                String keylist = String.join(",", new TreeSet<>(values.get(i).keySet()));
+                List<Integer> group = groups.get(keylist);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(keylist, group);
+                }
+                group.add(i);
+            }
+            Object[] pkeys = new Object[values.size()];
+            for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+                List<String> keys = new ArrayList<>(new TreeSet<>(values.get(group.getValue().get(0)).keySet()));
+                StringBuilder valuelist = new StringBuilder();
+                String prefix = "";
+                for (String key : keys) {
+                    valuelist.append(prefix).append('?');
+                    prefix = ",";
+                }
+                List<Object[]> parameterSets = new ArrayList<>();
+                group.getValue().stream().forEach((i) -> {
+                    EntityFields ef = values.get(i);
+                    Object[] parameters = new Object[keys.size()];
+                    for (int k = 0; k < keys.size(); k++) {
+                        parameters[k] = ef.get(keys.get(k));
+                    }
+                    parameterSets.add(parameters);
+                });
+                List<Object> generated = persistenceUnitProvider.executeInsertBatch("INSERT INTO " + tablename + " (" + group.getKey() + ") VALUES (" + valuelist + ")", parameterSets);
+                for (int i = 0; i < generated.size(); i++) {
+                    pkeys[group.getValue().get(i)] = generated.get(i);
+                }
             }
-            sql = sql.replace("{$KEYLIST}", keylist);
-            sql = sql.replace("{$VALUELIST}", valuelist);
-            sql = sql.replace("{$KEYVALUELIST}", keyvaluelist);
+            List<EntityFields> result = new ArrayList<>();
+            if (generatedkeys) {
+                for (int i = 0; i < pkeys.length; i++) {
+                    EntityFields ef = new EntityFields();
+                    ef.putAll(values.get(i));
+                    ef.put("id", convertGeneratedKey(pkeys[i]));
+                    readServerDefaults(ef, values.get(i));
+                    result.add(remember(ef));
+                }
+                capturedInserts(result);
+                return result;
+            }
+            Map<Long, EntityFields> inserted = new HashMap<>();
+            getRows(Arrays.asList(pkeys)).stream().forEach((ef) -> {
+                inserted.put(((Number) ef.get("id")).longValue(), ef);
+            });
+            for (Object pkey : pkeys) {
+                EntityFields ef = inserted.get(((Number) pkey).longValue());
+                if (ef == null) {
+                    throw new LogicException("Inserted row not found");
+                }
+                result.add(remember(ef));
+            }
+            capturedInserts(result);
+            return result;
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "insertAll", values.size());
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final Map<K, EntityFields> updateAll(Map<K, EntityFields> diffs) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "updateAll", diffs.size());
+        Map<K, EntityFields> befores = new HashMap<>();
+        if (isCapturing()) {
+            diffs.keySet().stream().forEach((pkey) -> {
+                befores.put(pkey, getSnapshot(pkey));
+            });
         }
-        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
-            sql = sql.replace("{" + parameter.getKey() + "}", format(parameter.getValue()));
+        try {
+            // group the rows by column set - each group is a single batch
+            Map<String, List<Object[]>> groups = new LinkedHashMap<>();
+            Map<String, List<K>> groupkeys = new HashMap<>();
+            Set<String> checked = new HashSet<>();
+            Map<K, EntityFields> result = new LinkedHashMap<>();
+            Map<K, WriteStatement> executed = new LinkedHashMap<>();
+            for (Map.Entry<K, EntityFields> e : diffs.entrySet()) {
+                WriteStatement ws = updateStatement(e.getKey(), e.getValue());
+                EntityFields deferred = deferUpdate(ws, e.getValue());
+                if (deferred != null) {
+                    result.put(e.getKey(), remember(deferred));
+                    continue;
+                }
+                executed.put(e.getKey(), ws);
+                List<Object[]> group = groups.get(ws.getSql());
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(ws.getSql(), group);
+                    groupkeys.put(ws.getSql(), new ArrayList<>());
+                }
+                group.add(ws.getParameters());
+                groupkeys.get(ws.getSql()).add(e.getKey());
+                if (ws.isChecked()) {
+                    checked.add(ws.getSql());
+                }
+            }
+            // rows not known to be updated (eg deleted by another client) are re-read
+            Set<K> unconfirmed = new HashSet<>();
+            for (Map.Entry<String, List<Object[]>> group : groups.entrySet()) {
+                if (checked.contains(group.getKey())) {
+                    persistenceUnitProvider.executeCheckedBatch(group.getKey(), group.getValue());
+                } else {
+                    int[] counts = persistenceUnitProvider.executeBatch(group.getKey(), group.getValue());
+                    List<K> keys = groupkeys.get(group.getKey());
+                    for (int i = 0; i < keys.size(); i++) {
+                        if (i >= counts.length || counts[i] <= 0) {
+                            unconfirmed.add(keys.get(i));
+                        }
+                    }
+                }
+            }
+            List<K> reread = new ArrayList<>();
+            for (Map.Entry<K, WriteStatement> e : executed.entrySet()) {
+                K pkey = e.getKey();
+                EntityFields updated = isSnapshotting() && !unconfirmed.contains(pkey) ? merge(e.getValue(), diffs.get(pkey)) : null;
+                if (updated == null) {
+                    reread.add(pkey);
+                } else {
+                    result.put(pkey, remember(updated));
+                }
+            }
+            getRows(reread).stream().forEach((ef) -> {
+                result.put((K) ef.get("id"), remember(ef));
+            });
+            if (result.size() != diffs.size()) {
+                throw new LogicException("Updated row not found");
+            }
+            if (isCapturing()) {
+                result.entrySet().stream().forEach((e) -> {
+                    persistenceUnitProvider.changed(ChangeRecord.update(tablename, e.getKey(), befores.get(e.getKey()), e.getValue(), diffs.get(e.getKey()).keySet()));
+                });
+            }
+            return result;
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "updateAll", diffs.size());
+            throw new LogicException(ex.getMessage());
         }
-        LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "buildsql", sql);
-        return sql;
     }
 
-    private String buildsql(String sql, Object parameter) {
-        sql = sql.replace("{P}", format(parameter));
-        LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "buildsql", sql);
-        return sql;
+    @Override
+    public final void deleteAll(Collection<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "deleteAll", pkeys.size());
+        List<Object[]> parameterSets = new ArrayList<>();
+        List<Object[]> versionedParameterSets = new ArrayList<>();
+        boolean writingbehind = persistenceUnitProvider.isWritingBehind();
+        try {
+            for (K pkey : pkeys) {
+                Object version = getSnapshotVersion(pkey);
+                if (writingbehind) {
+                    persistenceUnitProvider.defer(WriteStatement.delete(tablename, versioncolumn, pkey, version));
+                } else if (version == null) {
+                    parameterSets.add(new Object[]{pkey});
+                } else {
+                    versionedParameterSets.add(new Object[]{pkey, version});
+                }
+            }
+            if (!versionedParameterSets.isEmpty()) {
+                persistenceUnitProvider.executeCheckedBatch("DELETE from " + tablename + " WHERE id = ? AND " + versioncolumn + " = ?", versionedParameterSets);
+            }
+            if (!parameterSets.isEmpty()) {
+                if (versioncolumn != null) {
+                    persistenceUnitProvider.executeCheckedBatch("DELETE from " + tablename + " WHERE id = ?", parameterSets);
+                } else {
+                    persistenceUnitProvider.executeBatch("DELETE from " + tablename + " WHERE id = ?", parameterSets);
+                }
+            }
+            boolean capturing = isCapturing();
+            pkeys.stream().forEach((pkey) -> {
+                if (capturing) {
+                    persistenceUnitProvider.changed(ChangeRecord.delete(tablename, pkey, getSnapshot(pkey)));
+                }
+                forget(pkey);
+            });
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "deleteAll", pkeys.size());
+            throw new LogicException(ex.getMessage());
+        }
     }
 
-    /**
-     * Format a data value for insertion into an SQL string.
-     *
-     * Handles quoting, escaping and specific formated keyword (eg true false
-     * etc)
-     *
-     * @param value the data value
-     * @return the string formated data value
-     */
-    protected abstract String format(Object value);
+    private EntityFields getRow(Object pkey) throws SQLException {
+        List<EntityFields> rows = persistenceUnitProvider.query("SELECT * FROM " + tablename + " WHERE id = ?", pkey);
+        if (rows.size() != 1) {
+            throw new LogicException("Single row expected");
+        }
+        return rows.get(0);
+    }
+
+    // build the updated row from the last row seen, the diff and the new
+    // version - returns null if no row has been seen, or the version advanced
+    // by the database is not known
+    private EntityFields merge(WriteStatement ws, EntityFields diff) throws SQLException {
+        if (ws.isNewVersionUnknown()) {
+            return null;
+        }
+        EntityFields row = merge(ws.getPkey(), diff);
+        Object version = ws.getNewVersion();
+        if (row != null && version != null) {
+            row.put(versioncolumn, version);
+        }
+        return row;
+    }
+
+    // build the updated row from the last row seen and the diff - returns null if no row has been seen
+    private EntityFields merge(Object pkey, EntityFields diff) throws SQLException {
+        EntityFields row;
+        synchronized (snapshots) {
+            EntityFields snapshot = snapshots.get(pkey);
+            if (snapshot == null) {
+                return null;
+            }
+            row = new EntityFields();
+            row.putAll(snapshot);
+        }
+        row.putAll(diff);
+        readServerDefaults(row, diff);
+        return row;
+    }
+
+    // re-read the server default columns which were not part of the submitted values
+    private void readServerDefaults(EntityFields row, EntityFields submitted) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        serverdefaults.stream().filter((column) -> (!submitted.containsKey(column))).forEach((column) -> {
+            columns.add(column);
+        });
+        if (!columns.isEmpty()) {
+            List<EntityFields> rows = persistenceUnitProvider.query("SELECT " + String.join(",", columns) + " FROM " + tablename + " WHERE id = ?", row.get("id"));
+            if (rows.size() != 1) {
+                throw new LogicException("Single row expected");
+            }
+            row.putAll(rows.get(0));
+        }
+    }
+
+    private EntityFields remember(EntityFields row) {
+        if (isSnapshotting()) {
+            EntityFields snapshot = new EntityFields();
+            snapshot.putAll(row);
+            Object pkey = row.get("id");
+            synchronized (snapshots) {
+                snapshots.put(pkey, snapshot);
+            }
+            // a row read or written within a transaction may not survive it
+            persistenceUnitProvider.onRollback(this, pkey, () -> forget(pkey));
+        }
+        return row;
+    }
+
+    private List<EntityFields> remember(List<EntityFields> rows) {
+        rows.stream().forEach((row) -> {
+            remember(row);
+        });
+        return rows;
+    }
+
+    private void forget(Object pkey) {
+        if (isSnapshotting()) {
+            synchronized (snapshots) {
+                snapshots.remove(pkey);
+            }
+        }
+    }
+
+    private EntityFields getSnapshot(Object pkey) {
+        synchronized (snapshots) {
+            return snapshots.get(pkey);
+        }
+    }
+
+    private boolean isCapturing() {
+        return persistenceUnitProvider.getChangeFeed().isActive();
+    }
+
+    private void capturedInserts(List<EntityFields> inserted) {
+        if (isCapturing()) {
+            inserted.stream().forEach((ef) -> {
+                persistenceUnitProvider.changed(ChangeRecord.insert(tablename, ef.get("id"), ef));
+            });
+        }
+    }
+
+    private boolean isSnapshotting() {
+        return generatedkeys || versioncolumn != null;
+    }
+
+    // the version of the row last seen - or null if not versioned or not seen
+    private Object getSnapshotVersion(Object pkey) {
+        if (versioncolumn == null) {
+            return null;
+        }
+        synchronized (snapshots) {
+            EntityFields snapshot = snapshots.get(pkey);
+            return snapshot == null ? null : snapshot.get(versioncolumn);
+        }
+    }
+
+    private void initialiseVersion(EntityFields values) {
+        if (versioncolumn != null && !values.containsKey(versioncolumn)) {
+            values.put(versioncolumn, 1);
+        }
+    }
+
+    private ConcurrentUpdateException conflict(Object pkey) {
+        return new ConcurrentUpdateException("Entity " + tablename + " (" + pkey + ") has been changed or deleted by another user");
+    }
+
+    // an UPDATE statement for a diff, which (if the table is versioned)
+    // advances the version, and only updates the row if its version is the
+    // expected version (if known)
+    private WriteStatement updateStatement(Object pkey, EntityFields diff) {
+        Object expected = versioncolumn == null ? null : diff.remove(versioncolumn);
+        if (versioncolumn != null && expected == null) {
+            expected = getSnapshotVersion(pkey);
+        }
+        updateTimestampInfo(diff);
+        return WriteStatement.update(tablename, versioncolumn, pkey, diff, expected);
+    }
+
+    // buffer an update in the unit of work - returns the updated row, or null
+    // if the update must be executed now (not writing behind, or the updated
+    // row cannot be built without re-reading it)
+    private EntityFields deferUpdate(WriteStatement ws, EntityFields diff) throws SQLException {
+        if (!persistenceUnitProvider.isWritingBehind() || !isSnapshotting() || !serverdefaults.isEmpty()) {
+            return null;
+        }
+        EntityFields updated = merge(ws, diff);
+        if (updated != null) {
+            persistenceUnitProvider.defer(ws);
+        }
+        return updated;
+    }
+
+    private List<EntityFields> getRows(Collection<?> pkeys) throws SQLException {
+        List<EntityFields> rows = new ArrayList<>();
+        List<Object> chunk = new ArrayList<>();
+        for (Object pkey : pkeys) {
+            chunk.add(pkey);
+            if (chunk.size() == MAXINLIST) {
+                rows.addAll(getChunk(chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            rows.addAll(getChunk(chunk));
+        }
+        return rows;
+    }
+
+    private List<EntityFields> getChunk(List<Object> pkeys) throws SQLException {
+        StringBuilder inlist = new StringBuilder();
+        String prefix = "";
+        for (Object pkey : pkeys) {
+            inlist.append(prefix).append('?');
+            prefix = ",";
+        }
+        return persistenceUnitProvider.query("SELECT * FROM " + tablename + " WHERE id IN (" + inlist + ")", pkeys.toArray());
+    }
+
+    private class SnapshotCache extends LinkedHashMap<Object, EntityFields> {
+
+        public SnapshotCache() {
+            super((int) (MAXSNAPSHOTS / LOADFACTOR), LOADFACTOR, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, EntityFields> eldest) {
+            return size() > MAXSNAPSHOTS;
+        }
+    }
 }
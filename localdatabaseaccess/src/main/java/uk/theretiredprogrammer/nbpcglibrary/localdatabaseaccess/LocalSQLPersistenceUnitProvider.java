@@ -15,16 +15,42 @@
  */
 package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import static java.sql.Types.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.logging.Level;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import uk.theretiredprogrammer.nbpcglibrary.api.Cancellation;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeFeed;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeRecord;
+import uk.theretiredprogrammer.nbpcglibrary.api.ConcurrentUpdateException;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceCancelledException;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceStatistics;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceTimeoutException;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
 import uk.theretiredprogrammer.nbpcglibrary.common.Event;
 import uk.theretiredprogrammer.nbpcglibrary.common.Listener;
@@ -37,13 +63,79 @@ import static uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.Transacti
 /**
  * PersistenceUnit Provider for any local SQL database.
  *
+ * Database access is through a pool of connections, so that requests from
+ * different threads are not serialised through a single connection. A
+ * transaction is pinned to a single connection, which is used for all requests
+ * made by the thread which started the transaction until it is committed or
+ * rolled back.
+ *
+ * A connection which fails is discarded, and replaced by a new connection
+ * (see ConnectionPool). Reads made outside a transaction are replayed on the
+ * new connection; writes, and any statement made within a transaction, are
+ * never replayed - the failure is reported to the caller.
+ *
+ * The latency and row count of every statement executed is recorded in the
+ * PersistenceStatistics (with this PersistenceUnitProvider's name as the
+ * source); slow statements are logged with their SQL and parameters.
+ *
+ * Every statement is executed with the query timeout (a streamed query with
+ * the stream timeout, as its cursor stays open while the caller consumes the
+ * rows), and can be cancelled by
+ * the Cancellation current on the calling thread; a statement which times out
+ * fails with a PersistenceTimeoutException, and one which is cancelled fails
+ * with a PersistenceCancelledException.
+ *
+ * If write behind is enabled, the updates and deletes of entities made within
+ * a transaction are buffered in a unit of work (see UnitOfWork) and flushed as
+ * JDBC batches - on commit, or before any other statement is executed in the
+ * transaction (including inserts), so that the transaction always reads its
+ * own writes and the writes are applied in order. Inserts are executed
+ * immediately, as the generated key is required. A buffered write which
+ * fails (eg a ConcurrentUpdateException) is reported by the commit, or by the
+ * statement whose execution flushed it; in either case the transaction has
+ * then been rolled back (so a later commit fails as not in transaction).
+ *
+ * Every committed change made by the entity persistence providers is
+ * published on the change feed; changes made within a transaction are held
+ * until it is committed (and discarded if it is rolled back).
+ *
+ * Reads may be routed to read replicas of the database (see
+ * configureReplicas); writes, and all statements within a transaction, always
+ * use the primary database. After any write, reads are made on the primary
+ * for the read-your-writes window, so that the writer sees its own changes
+ * while the replicas catch up. The window applies to the whole
+ * PersistenceUnitProvider (the session is the client process), and should be
+ * longer than the expected replication lag.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  */
 public abstract class LocalSQLPersistenceUnitProvider implements PersistenceUnitProvider {
 
-    private Connection conn;
+    private static final int DEFAULTFETCHSIZE = 1000;
+    private static final int MAXDECODERCACHE = 200;
+    private static final float LOADFACTOR = (float) 0.9;
+    private static final int LATENCYSAMPLE = 16; // every nth least latency selection is round robin, to refresh latencies
+
+    private ConnectionPool pool;
+    private final List<ConnectionPool> replicas = new ArrayList<>();
+    private final AtomicInteger nextreplica = new AtomicInteger();
+    private boolean leastlatency = false;
+    private long readyourwriteswindow = 5000; // ms
+    private volatile long lastwrite = 0;
+    private SQLDialect dialect = new SQLDialect();
+    private int fetchsize = DEFAULTFETCHSIZE;
+    private int querytimeout = 0; // seconds, 0 = no timeout
+    private int streamtimeout = 0; // seconds, 0 = no timeout
+    private boolean writebehind = false;
+    private final Map<String, RowDecoder> decoders = new DecoderCache();
+    private final ThreadLocal<PooledConnection> transactionConnection = new ThreadLocal<>();
+    private final ThreadLocal<UnitOfWork> unitOfWork = new ThreadLocal<>();
+    private final ThreadLocal<List<ChangeRecord>> transactionChanges = new ThreadLocal<>();
+    private final ThreadLocal<Map<List<Object>, Runnable>> rollbackActions = new ThreadLocal<>();
+    private final ThreadLocal<List<Runnable>> endActions = new ThreadLocal<>();
+    private final ChangeFeed changefeed;
+    private final Map<String, Set<String>> parenttables = new ConcurrentHashMap<>();
     private final Event<TransactionEventParams> transactionEvent;
-    private boolean inTransaction = false;
     private final String name;
     private boolean operational = false;
 
@@ -54,6 +146,7 @@ public abstract class LocalSQLPersistenceUnitProvider implements PersistenceUnit
      */
     public LocalSQLPersistenceUnitProvider(String name) {
         transactionEvent = new Event<>("transactions:" + name);
+        changefeed = new ChangeFeed(name);
         this.name = name;
     }
     
@@ -75,13 +168,150 @@ public abstract class LocalSQLPersistenceUnitProvider implements PersistenceUnit
     }
 
     /**
-     * Set the database connection being used for this PersistenceUnitProvider.
+     * Set the database connection pool being used for this
+     * PersistenceUnitProvider.
+     *
+     * @param pool the connection pool
+     */
+    protected final void setConnectionPool(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Configure the read replicas used for this PersistenceUnitProvider, from
+     * the persistence properties:
+     *
+     * replicas - a comma separated list of the replica connections (default
+     * none); replicaselection - roundrobin or leastlatency (default
+     * roundrobin); readyourwriteswindow - the time after a write during which
+     * reads are made on the primary database, in ms (default 5000).
      *
-     * @param conn the JDBC connection
-     * @throws SQLException if problems in accessing database
+     * Each replica has its own connection pool, configured from the same
+     * connection pool parameters as the primary.
+     *
+     * @param p the persistence properties
+     * @param factory the creator of the connection factory for a replica
+     * connection
+     * @throws SQLException if problems
      */
-    protected final void setConnection(Connection conn) throws SQLException {
-        this.conn = conn;
+    protected final void configureReplicas(Properties p, Function<String, ConnectionPool.ConnectionFactory> factory) throws SQLException {
+        String connections = p.getProperty("replicas", "").trim();
+        if (!connections.isEmpty()) {
+            int i = 0;
+            for (String connection : connections.split(",")) {
+                replicas.add(new ConnectionPool(name + "-replica-" + i++, p, factory.apply(connection.trim())));
+            }
+        }
+        String selection = p.getProperty("replicaselection", "roundrobin");
+        switch (selection) {
+            case "roundrobin":
+                leastlatency = false;
+                break;
+            case "leastlatency":
+                leastlatency = true;
+                break;
+            default:
+                throw new LogicException("Unknown replicaselection: " + selection);
+        }
+        readyourwriteswindow = Long.parseLong(p.getProperty("readyourwriteswindow", "5000"));
+    }
+
+    /**
+     * Get the connection failure and recovery counters (of the primary
+     * database).
+     *
+     * @return the counters
+     */
+    public ConnectionStatistics getConnectionStatistics() {
+        return pool.getStatistics();
+    }
+
+    /**
+     * Set the SQL dialect of the database (default is standard SQL).
+     *
+     * @param dialect the SQL dialect
+     */
+    protected final void setDialect(SQLDialect dialect) {
+        this.dialect = dialect;
+    }
+
+    /**
+     * Get the SQL dialect of the database.
+     *
+     * @return the SQL dialect
+     */
+    public SQLDialect getDialect() {
+        return dialect;
+    }
+
+    /**
+     * Set the fetch size used for streamed queries (the number of rows to be
+     * fetched from the database in each round trip).
+     *
+     * @param fetchsize the fetch size
+     */
+    protected final void setFetchSize(int fetchsize) {
+        this.fetchsize = fetchsize;
+    }
+
+    /**
+     * Set the query timeout - the maximum time for the execution of any
+     * statement.
+     *
+     * @param querytimeout the query timeout (seconds), or 0 if no timeout
+     */
+    protected final void setQueryTimeout(int querytimeout) {
+        this.querytimeout = querytimeout;
+    }
+
+    /**
+     * Set the stream timeout - the maximum time for the execution of a
+     * streamed query (see stream).
+     *
+     * @param streamtimeout the stream timeout (seconds), or 0 if no timeout
+     */
+    protected final void setStreamTimeout(int streamtimeout) {
+        this.streamtimeout = streamtimeout;
+    }
+
+    /**
+     * Set write behind - if enabled, the updates and deletes made within a
+     * transaction are buffered and flushed as batches.
+     *
+     * @param writebehind true if write behind is enabled
+     */
+    protected final void setWriteBehind(boolean writebehind) {
+        this.writebehind = writebehind;
+    }
+
+    /**
+     * Set the size of the change feed's replay buffer.
+     *
+     * @param replaysize the replay buffer size (0 if no replay buffer)
+     */
+    protected final void setChangeReplaySize(int replaysize) {
+        changefeed.setReplaySize(replaysize);
+    }
+
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return changefeed;
+    }
+
+    /**
+     * Record a change made by an entity persistence provider - published on
+     * the change feed immediately, or when the current transaction is
+     * committed.
+     *
+     * @param change the change record
+     */
+    void changed(ChangeRecord change) {
+        List<ChangeRecord> changes = transactionChanges.get();
+        if (changes != null) {
+            changes.add(change);
+        } else {
+            changefeed.publish(change);
+        }
     }
 
     /**
@@ -115,38 +345,74 @@ public abstract class LocalSQLPersistenceUnitProvider implements PersistenceUnit
     }
 
     /**
-     * Mark the start of a Transaction unit.
+     * Mark the start of a Transaction unit (for the current thread).
      */
     public void begin() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "begin");
-        if (inTransaction) {
+        if (isInTransaction()) {
             throw new LogicException("begin() failed - already in transaction");
         } else {
             try {
-                conn.setAutoCommit(false);
+                PooledConnection pc = pool.acquire();
+                try {
+                    pc.getConnection().setAutoCommit(false);
+                } catch (SQLException ex) {
+                    pool.discard(pc);
+                    throw ex;
+                }
+                transactionConnection.set(pc);
+                transactionChanges.set(new ArrayList<>());
+                rollbackActions.set(new LinkedHashMap<>());
+                endActions.set(new ArrayList<>());
+                if (writebehind) {
+                    unitOfWork.set(new UnitOfWork(this));
+                }
             } catch (SQLException ex) {
                 LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "begin")
                         .addExceptionMessage(ex).write();
+                throw new LogicException("begin() failed - " + ex.getMessage());
             }
-            inTransaction = true;
             transactionEvent.fire(new TransactionEventParams(BEGIN));
         }
     }
 
     /**
      * Mark the end of a transaction unit, commit all changes.
+     *
+     * If the commit fails the transaction is rolled back (and the Rollback
+     * event fired), none of its changes are published, and a LogicException
+     * is thrown.
      */
     public void commit() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "commit");
-        if (inTransaction) {
+        PooledConnection pc = transactionConnection.get();
+        if (pc != null) {
             try {
-                conn.commit();
+                flush();
+            } catch (SQLException ex) {
+                // already rolled back by flush
+                throw new LogicException("commit() failed - " + ex.getMessage());
+            }
+            try {
+                pc.getConnection().commit();
             } catch (SQLException ex) {
                 LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "commit")
                         .addExceptionMessage(ex).write();
+                if (dialect.isConnectionFailure(broken(pc, ex))) {
+                    // the transaction is lost with its connection
+                    undo();
+                    endTransaction(pc);
+                    transactionEvent.fire(new TransactionEventParams(ROLLBACK));
+                    throw new LogicException("commit() failed - connection lost - " + ex.getMessage());
+                }
+                // nothing is known to have been committed - the changes are not published
+                rollback();
+                throw new LogicException("commit() failed - " + ex.getMessage());
             }
+            List<ChangeRecord> changes = transactionChanges.get();
+            endTransaction(pc);
+            changefeed.publish(changes);
             transactionEvent.fire(new TransactionEventParams(COMMIT));
-            inTransaction = false;
         } else {
             throw new LogicException("commit() failed - not in transaction");
         }
@@ -157,103 +423,840 @@ public abstract class LocalSQLPersistenceUnitProvider implements PersistenceUnit
      */
     public void rollback() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "rollback");
-        if (inTransaction) {
+        PooledConnection pc = transactionConnection.get();
+        if (pc != null) {
             try {
-                conn.rollback();
+                pc.getConnection().rollback();
             } catch (SQLException ex) {
                 LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "rollback")
                         .addExceptionMessage(ex).write();
             }
+            undo();
+            endTransaction(pc);
             transactionEvent.fire(new TransactionEventParams(ROLLBACK));
-            inTransaction = false;
         } else {
             throw new LogicException("rollback() failed - not in transaction");
         }
     }
 
+    private void endTransaction(PooledConnection pc) {
+        List<Runnable> actions = endActions.get();
+        transactionConnection.remove();
+        unitOfWork.remove();
+        transactionChanges.remove();
+        rollbackActions.remove();
+        endActions.remove();
+        lastwrite = System.currentTimeMillis();
+        try {
+            pc.getConnection().setAutoCommit(true);
+            pool.release(pc);
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "endTransaction")
+                    .addExceptionMessage(ex).write();
+            pool.discard(pc);
+        }
+        actions.stream().forEach((action) -> {
+            try {
+                action.run();
+            } catch (RuntimeException ex) {
+                LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(this, "endTransaction")
+                        .addExceptionMessage(ex).write();
+            }
+        });
+    }
+
+    @Override
+    public void afterTransaction(Runnable action) {
+        List<Runnable> actions = endActions.get();
+        if (actions != null) {
+            actions.add(action);
+        } else {
+            action.run();
+        }
+    }
+
     /**
-     * Test if we are currently within an active transaction unit.
+     * Register an action to be run if the current transaction (if any) is
+     * rolled back - eg to discard state which was derived from the
+     * transaction's uncommitted writes. Only the first action registered for
+     * an owner and key is kept.
      *
-     * @return true if in transaction
+     * @param owner the owner of the action
+     * @param key the key of the action within its owner
+     * @param action the action
      */
+    void onRollback(Object owner, Object key, Runnable action) {
+        Map<List<Object>, Runnable> actions = rollbackActions.get();
+        if (actions != null) {
+            actions.putIfAbsent(Arrays.asList(owner, key), action);
+        }
+    }
+
+    private void undo() {
+        Map<List<Object>, Runnable> actions = rollbackActions.get();
+        if (actions != null) {
+            actions.values().stream().forEach((action) -> {
+                action.run();
+            });
+        }
+    }
+
+    @Override
     public boolean isInTransaction() {
-        return inTransaction;
+        return transactionConnection.get() != null;
     }
 
     /**
-     * Disconnect from the current database connection.
+     * Test if writes are currently being buffered in a unit of work (on the
+     * current thread).
+     *
+     * @return true if writing behind
      */
-    public void disconnect() {
-        try {
-            conn.close();
-        } catch (SQLException ex) {
-            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "disconnect")
-                    .addExceptionMessage(ex).write();
+    public boolean isWritingBehind() {
+        return unitOfWork.get() != null;
+    }
+
+    /**
+     * Buffer a write in the current unit of work. An update following a
+     * buffered delete from the same table first flushes the unit of work, so
+     * that the writes are applied in the order issued.
+     *
+     * @param write the write
+     * @throws SQLException if problems
+     */
+    void defer(WriteStatement write) throws SQLException {
+        UnitOfWork uow = unitOfWork.get();
+        if (uow == null) {
+            throw new LogicException("defer() failed - not writing behind");
+        }
+        if (uow.followsDelete(write)) {
+            flush();
+        }
+        uow.add(write);
+    }
+
+    /**
+     * Execute the writes buffered in the current unit of work (if any).
+     *
+     * If any write fails the transaction is rolled back (the writes are
+     * removed from the unit of work before they are executed, so it could not
+     * safely be committed), and the failure is reported.
+     *
+     * @throws SQLException if problems
+     */
+    public void flush() throws SQLException {
+        UnitOfWork uow = unitOfWork.get();
+        if (uow != null && !uow.isEmpty()) {
+            try {
+                uow.flush();
+            } catch (SQLException | RuntimeException ex) {
+                LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "flush")
+                        .addExceptionMessage(ex).write();
+                rollback();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Get the names of the tables referenced by the foreign keys of a table
+     * (from the database metadata).
+     *
+     * @param tablename the table name
+     * @return the parent table names
+     * @throws SQLException if problems
+     */
+    Set<String> getParentTables(String tablename) throws SQLException {
+        Set<String> parents = parenttables.get(tablename);
+        if (parents == null) {
+            parents = new HashSet<>();
+            PooledConnection pc = acquire();
+            try {
+                DatabaseMetaData md = pc.getConnection().getMetaData();
+                String table = md.storesUpperCaseIdentifiers() ? tablename.toUpperCase()
+                        : md.storesLowerCaseIdentifiers() ? tablename.toLowerCase() : tablename;
+                try (ResultSet rs = md.getImportedKeys(pc.getConnection().getCatalog(), null, table)) {
+                    while (rs.next()) {
+                        parents.add(rs.getString("PKTABLE_NAME"));
+                    }
+                }
+            } catch (SQLException ex) {
+                throw failed(pc, ex);
+            } finally {
+                release(pc);
+            }
+            parenttables.put(tablename, parents);
         }
+        return parents;
+    }
+
+    /**
+     * Disconnect from the database - closing all pooled connections (including
+     * those to the read replicas).
+     */
+    public void disconnect() {
+        pool.close();
+        replicas.forEach((replica) -> replica.close());
     }
     
     /**
      * Execute an Insert, Update or Delete query on the database.
      *
+     * The statement is prepared once (for each distinct sql statement shape)
+     * and then reused, with the parameters being bound to the ? placeholders in
+     * the order given.
+     *
      * @param sql the SQL statement
+     * @param parameters the values to be bound to the statement parameters
      * @return the number of records changed due to the query
      * @throws SQLException if problems
      */
-    public synchronized int execute(String sql) throws SQLException {
-        int res;
-        try (Statement stat = conn.createStatement()) {
-            res = stat.executeUpdate(sql);
+    public int execute(String sql, Object... parameters) throws SQLException {
+        flush();
+        PooledConnection pc = acquire();
+        try {
+            long start = System.nanoTime();
+            PreparedStatement stat = prepare(pc, sql, false, parameters);
+            int count = cancellable(stat, stat::executeUpdate);
+            record("update", start, count, sql, parameters);
+            return count;
+        } catch (SQLException ex) {
+            throw failed(pc, ex);
+        } finally {
+            releaseWrite(pc);
         }
-        return res;
     }
-    
+
+    /**
+     * Execute an Insert query on the database, returning the key generated for
+     * the new row.
+     *
+     * @param sql the SQL statement
+     * @param parameters the values to be bound to the statement parameters
+     * @return the generated key
+     * @throws SQLException if problems
+     */
+    public Object executeInsert(String sql, Object... parameters) throws SQLException {
+        flush();
+        PooledConnection pc = acquire();
+        try {
+            long start = System.nanoTime();
+            PreparedStatement stat = prepare(pc, sql, true, parameters);
+            cancellable(stat, stat::executeUpdate);
+            try (ResultSet rs = stat.getGeneratedKeys()) {
+                if (!rs.next()) {
+                    throw new LogicException("Generated key expected");
+                }
+                record("insert", start, 1, sql, parameters);
+                return rs.getLong(1);
+            }
+        } catch (SQLException ex) {
+            throw failed(pc, ex);
+        } finally {
+            releaseWrite(pc);
+        }
+    }
+
+    /**
+     * Execute an Insert, Update or Delete query on the database, once for each
+     * set of parameters, as a single JDBC batch.
+     *
+     * Unless already within a transaction, the batch is applied atomically.
+     *
+     * @param sql the SQL statement
+     * @param parameterSets the sets of values to be bound to the statement
+     * parameters
+     * @return the number of records changed by each statement execution
+     * @throws SQLException if problems
+     */
+    public int[] executeBatch(String sql, List<Object[]> parameterSets) throws SQLException {
+        flush();
+        PooledConnection pc = acquire();
+        try {
+            long start = System.nanoTime();
+            int[] counts = inBatchTransaction(pc, () -> {
+                PreparedStatement stat = prepareBatch(pc, sql, false, parameterSets);
+                return cancellable(stat, stat::executeBatch);
+            });
+            recordBatch("batch", start, counts.length, sql, parameterSets);
+            return counts;
+        } catch (SQLException ex) {
+            throw failed(pc, ex);
+        } finally {
+            releaseWrite(pc);
+        }
+    }
+
+    /**
+     * Execute an Update or Delete query on the database, once for each set of
+     * parameters, as a single JDBC batch, requiring that each statement
+     * execution changes a row (as when checking a version column).
+     *
+     * Unless already within a transaction, the batch is applied atomically -
+     * it is rolled back if any statement execution changes no rows. Within a
+     * transaction the caller should roll back.
+     *
+     * @param sql the SQL statement
+     * @param parameterSets the sets of values to be bound to the statement
+     * parameters
+     * @return the number of records changed by each statement execution
+     * @throws SQLException if problems
+     * @throws ConcurrentUpdateException if any statement execution changes no
+     * rows
+     */
+    public int[] executeCheckedBatch(String sql, List<Object[]> parameterSets) throws SQLException {
+        flush();
+        PooledConnection pc = acquire();
+        try {
+            long start = System.nanoTime();
+            int[] updated = inBatchTransaction(pc, () -> {
+                PreparedStatement stat = prepareBatch(pc, sql, false, parameterSets);
+                int[] counts = cancellable(stat, stat::executeBatch);
+                for (int count : counts) {
+                    if (count == 0) {
+                        throw new ConcurrentUpdateException("Row has been changed or deleted by another user (" + sql + ")");
+                    }
+                }
+                return counts;
+            });
+            recordBatch("batch", start, updated.length, sql, parameterSets);
+            return updated;
+        } catch (SQLException ex) {
+            throw failed(pc, ex);
+        } finally {
+            releaseWrite(pc);
+        }
+    }
+
+    /**
+     * Execute an Insert query on the database, once for each set of
+     * parameters, as a single JDBC batch, returning the keys generated for the
+     * new rows.
+     *
+     * Unless already within a transaction, the batch is applied atomically.
+     *
+     * @param sql the SQL statement
+     * @param parameterSets the sets of values to be bound to the statement
+     * parameters
+     * @return the generated keys (in the order of the parameter sets)
+     * @throws SQLException if problems
+     */
+    public List<Object> executeInsertBatch(String sql, List<Object[]> parameterSets) throws SQLException {
+        flush();
+        PooledConnection pc = acquire();
+        try {
+            long start = System.nanoTime();
+            List<Object> generated = inBatchTransaction(pc, () -> {
+                List<Object> keys = new ArrayList<>();
+                if (dialect.supportsBatchGeneratedKeys()) {
+                    PreparedStatement stat = prepareBatch(pc, sql, true, parameterSets);
+                    cancellable(stat, stat::executeBatch);
+                    try (ResultSet rs = stat.getGeneratedKeys()) {
+                        while (rs.next()) {
+                            keys.add(rs.getLong(1));
+                        }
+                    }
+                } else {
+                    for (Object[] parameters : parameterSets) {
+                        PreparedStatement stat = prepare(pc, sql, true, parameters);
+                        cancellable(stat, stat::executeUpdate);
+                        try (ResultSet rs = stat.getGeneratedKeys()) {
+                            if (rs.next()) {
+                                keys.add(rs.getLong(1));
+                            }
+                        }
+                    }
+                }
+                if (keys.size() != parameterSets.size()) {
+                    throw new LogicException("Generated key expected for each inserted row");
+                }
+                return keys;
+            });
+            recordBatch("insertbatch", start, generated.size(), sql, parameterSets);
+            return generated;
+        } catch (SQLException ex) {
+            throw failed(pc, ex);
+        } finally {
+            releaseWrite(pc);
+        }
+    }
+
+    /**
+     * Reserve a block of consecutive values from a sequence held in a
+     * sequence table (columns name and nextvalue). If the sequence does not
+     * yet exist, it is created with the first value returned by the seed
+     * query.
+     *
+     * The reservation always uses its own connection and is committed
+     * immediately, so that values are never reissued even if an enclosing
+     * transaction is rolled back. Within a transaction (which holds a
+     * connection of its own) the pool must therefore allow at least two
+     * connections (poolmaxsize - see ConnectionPool); otherwise the
+     * reservation fails rather than waiting for a connection which can never
+     * be released.
+     *
+     * @param sequencetable the sequence table name
+     * @param sequencename the sequence name
+     * @param count the number of values to reserve
+     * @param seedsql the query returning the first value of a new sequence
+     * @return the first value of the reserved block
+     * @throws SQLException if problems
+     */
+    public int reserveBlock(String sequencetable, String sequencename, int count, String seedsql) throws SQLException {
+        if (isInTransaction() && pool.getMaxSize() < 2) {
+            throw new LogicException("reserveBlock() failed - a sequence reservation within a transaction requires poolmaxsize of at least 2");
+        }
+        try {
+            return reserveBlockOnce(sequencetable, sequencename, count, seedsql);
+        } catch (SQLException ex) {
+            if (!dialect.isDuplicateKey(ex)) {
+                throw ex;
+            }
+            // another client created the sequence concurrently - it now exists
+            return reserveBlockOnce(sequencetable, sequencename, count, seedsql);
+        }
+    }
+
+    private int reserveBlockOnce(String sequencetable, String sequencename, int count, String seedsql) throws SQLException {
+        PooledConnection pc = pool.acquire();
+        try {
+            return inBatchTransaction(pc, () -> {
+                if (prepare(pc, "UPDATE " + sequencetable + " SET nextvalue = nextvalue + ? WHERE name = ?", false, count, sequencename).executeUpdate() == 0) {
+                    int first;
+                    try (ResultSet rs = prepare(pc, seedsql, false).executeQuery()) {
+                        first = rs.next() ? rs.getInt(1) : 1;
+                    }
+                    prepare(pc, "INSERT INTO " + sequencetable + " (name, nextvalue) VALUES (?, ?)", false, sequencename, first + count).executeUpdate();
+                    return first;
+                }
+                try (ResultSet rs = prepare(pc, "SELECT nextvalue FROM " + sequencetable + " WHERE name = ?", false, sequencename).executeQuery()) {
+                    if (!rs.next()) {
+                        throw new LogicException("Sequence " + sequencename + " not found");
+                    }
+                    return rs.getInt(1) - count;
+                }
+            });
+        } catch (SQLException ex) {
+            throw failed(pc, ex);
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    private PreparedStatement prepareBatch(PooledConnection pc, String sql, boolean returnkeys, List<Object[]> parameterSets) throws SQLException {
+        PreparedStatement stat = pc.prepare(sql, returnkeys);
+        stat.setQueryTimeout(querytimeout);
+        for (Object[] parameters : parameterSets) {
+            for (int i = 0; i < parameters.length; i++) {
+                setParameter(stat, i + 1, parameters[i]);
+            }
+            stat.addBatch();
+        }
+        return stat;
+    }
+
+    private interface BatchWork<R> {
+
+        public R execute() throws SQLException;
+    }
+
+    private <R> R cancellable(Statement stat, BatchWork<R> work) throws SQLException {
+        Cancellation.checkCurrent("SQL statement");
+        Cancellation.Registration registration = Cancellation.registerCurrent(() -> cancel(stat));
+        try {
+            return work.execute();
+        } finally {
+            registration.close();
+        }
+    }
+
+    private void cancel(Statement stat) {
+        try {
+            stat.cancel();
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(this, "cancel")
+                    .addExceptionMessage(ex).write();
+        }
+    }
+
+    private <R> R inBatchTransaction(PooledConnection pc, BatchWork<R> work) throws SQLException {
+        if (pc == transactionConnection.get()) {
+            return work.execute();
+        }
+        Connection conn = pc.getConnection();
+        conn.setAutoCommit(false);
+        try {
+            R result = work.execute();
+            conn.commit();
+            conn.setAutoCommit(true);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            try {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            } catch (SQLException rex) {
+                // the connection is in an unknown state - do not reuse it
+                ex.addSuppressed(rex);
+                pc.markBroken();
+            }
+            throw ex;
+        }
+    }
+
     /**
      * Execute a query and return the columns returned as a set of EntityFields
+     *
+     * The statement is prepared once (for each distinct sql statement shape)
+     * and then reused, with the parameters being bound to the ? placeholders in
+     * the order given.
+     *
      * @param sql the SQL statement to be executed
+     * @param parameters the values to be bound to the statement parameters
      * @return a list of EntityFields
      * @throws SQLException if problems
      */
-    public synchronized List<EntityFields> query(String sql) throws SQLException {
-        List<EntityFields> efs = new ArrayList<>();
-        try (Statement stat = conn.createStatement()) {
-            ResultSet rs = stat.executeQuery(sql);
-            ResultSetMetaData rsmd = rs.getMetaData();
-            while (rs.next()) {
-                efs.add(createEntityFields(rs,rsmd));
+    public List<EntityFields> query(String sql, Object... parameters) throws SQLException {
+        flush();
+        int attempt = 0;
+        while (true) {
+            PooledConnection pc = acquireRead();
+            try {
+                long start = System.nanoTime();
+                List<EntityFields> efs = new ArrayList<>();
+                PreparedStatement stat = prepare(pc, sql, false, parameters);
+                try (ResultSet rs = cancellable(stat, stat::executeQuery)) {
+                    RowDecoder decoder = getDecoder(sql, rs);
+                    while (rs.next()) {
+                        efs.add(decoder.decode(rs));
+                    }
+                }
+                pc.getPool().recordLatency(System.nanoTime() - start);
+                record("query", start, efs.size(), sql, parameters);
+                return efs;
+            } catch (SQLException ex) {
+                if (!replay(pc, failed(pc, ex), attempt++, "query")) {
+                    throw ex;
+                }
+            } finally {
+                release(pc);
             }
         }
-        return efs;
     }
-    
-    private EntityFields createEntityFields(ResultSet rs, ResultSetMetaData meta) throws SQLException {
-        EntityFields ef = new EntityFields();
-        int colcount = meta.getColumnCount();
-        for (int i = 1; i<= colcount; i++){
-            switch (meta.getColumnType(i)) {
-                case CHAR:
-                case VARCHAR:
-                    ef.put(meta.getColumnName(i), rs.getString(i));
-                    break;
-                case BOOLEAN:
-                case TINYINT:
-                case BIT:
-                    ef.put(meta.getColumnName(i), rs.getBoolean(i));
-                    break;
-                case BIGINT:
-                    ef.put(meta.getColumnName(i), rs.getLong(i));
-                    break;
-                case DECIMAL:
-                    ef.put(meta.getColumnName(i), rs.getBigDecimal(i));
-                    break;
-                default:
-                    int val = rs.getInt(i);
-                    if (rs.wasNull()) {
-                        ef.put(meta.getColumnName(i), null);
-                    } else {
-                        ef.put(meta.getColumnName(i), val);
-                    }
+
+    /**
+     * Execute a query on the primary database (never on a read replica) and
+     * return the columns returned as a set of EntityFields - for reads which
+     * must see all committed writes (eg when allocating new values).
+     *
+     * @param sql the SQL statement to be executed
+     * @param parameters the values to be bound to the statement parameters
+     * @return a list of EntityFields
+     * @throws SQLException if problems
+     */
+    public List<EntityFields> queryPrimary(String sql, Object... parameters) throws SQLException {
+        flush();
+        PooledConnection pc = acquire();
+        try {
+            long start = System.nanoTime();
+            List<EntityFields> efs = new ArrayList<>();
+            PreparedStatement stat = prepare(pc, sql, false, parameters);
+            try (ResultSet rs = cancellable(stat, stat::executeQuery)) {
+                RowDecoder decoder = getDecoder(sql, rs);
+                while (rs.next()) {
+                    efs.add(decoder.decode(rs));
+                }
             }
+            record("query", start, efs.size(), sql, parameters);
+            return efs;
+        } catch (SQLException ex) {
+            throw failed(pc, ex);
+        } finally {
+            release(pc);
+        }
+    }
+
+    /**
+     * Execute a query and return the columns returned as a stream of
+     * EntityFields.
+     *
+     * The rows are read from a forward only cursor as the stream is consumed,
+     * using the configured fetch size. Outside a transaction the cursor holds
+     * its own connection from the pool; within a transaction it uses the
+     * transaction's connection, and no other statements should be executed on
+     * this thread until the stream is closed. The stream must be closed after
+     * use (the cursor is also closed when the last row has been read).
+     *
+     * @param sql the SQL statement to be executed
+     * @param parameters the values to be bound to the statement parameters
+     * @return a stream of EntityFields
+     * @throws SQLException if problems
+     */
+    public Stream<EntityFields> stream(String sql, Object... parameters) throws SQLException {
+        flush();
+        int attempt = 0;
+        while (true) {
+            PooledConnection pc = acquireRead();
+            try {
+                long start = System.nanoTime();
+                Stream<EntityFields> stream = openCursor(pc, sql, parameters);
+                record("stream", start, 0, sql, parameters);
+                return stream;
+            } catch (SQLException ex) {
+                // the connection is marked as broken before it is returned to the pool
+                SQLException failure;
+                try {
+                    failure = failed(pc, ex);
+                } finally {
+                    release(pc);
+                }
+                // only opening the cursor is replayed - rows already consumed cannot be
+                if (!replay(pc, failure, attempt++, "stream")) {
+                    throw ex;
+                }
+            } catch (RuntimeException ex) {
+                release(pc);
+                throw ex;
+            }
+        }
+    }
+
+    private Stream<EntityFields> openCursor(PooledConnection pc, String sql, Object... parameters) throws SQLException {
+        PreparedStatement stat = pc.getConnection().prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        Cancellation.Registration registration = null;
+        try {
+            stat.setFetchSize(fetchsize);
+            stat.setQueryTimeout(streamtimeout);
+            for (int i = 0; i < parameters.length; i++) {
+                setParameter(stat, i + 1, parameters[i]);
+            }
+            Cancellation.checkCurrent("SQL statement");
+            registration = Cancellation.registerCurrent(() -> cancel(stat));
+            Cursor cursor = new Cursor(sql, pc, stat, stat.executeQuery(), registration);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(cursor::close);
+        } catch (SQLException | RuntimeException ex) {
+            if (registration != null) {
+                registration.close();
+            }
+            try {
+                stat.close();
+            } catch (SQLException cex) {
+                ex.addSuppressed(cex);
+            }
+            throw ex;
+        }
+    }
+
+    private class Cursor implements Iterator<EntityFields> {
+
+        private final PooledConnection pc;
+        private final PreparedStatement stat;
+        private final ResultSet rs;
+        private final Cancellation.Registration registration;
+        private final RowDecoder decoder;
+        private boolean hasnext;
+        private boolean closed = false;
+
+        Cursor(String sql, PooledConnection pc, PreparedStatement stat, ResultSet rs, Cancellation.Registration registration) throws SQLException {
+            this.pc = pc;
+            this.stat = stat;
+            this.rs = rs;
+            this.registration = registration;
+            decoder = getDecoder(sql, rs);
+            advance();
+        }
+
+        private void advance() throws SQLException {
+            hasnext = rs.next();
+            if (!hasnext) {
+                close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasnext;
+        }
+
+        @Override
+        public EntityFields next() {
+            if (!hasnext) {
+                throw new NoSuchElementException();
+            }
+            try {
+                EntityFields ef = decoder.decode(rs);
+                advance();
+                return ef;
+            } catch (SQLException ex) {
+                try {
+                    failed(pc, ex);
+                } finally {
+                    close();
+                }
+                throw new LogicException(ex.getMessage());
+            }
+        }
+
+        void close() {
+            if (!closed) {
+                closed = true;
+                hasnext = false;
+                registration.close();
+                try {
+                    rs.close();
+                    stat.close();
+                } catch (SQLException ex) {
+                    LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(LocalSQLPersistenceUnitProvider.this, "stream")
+                            .addExceptionMessage(ex).write();
+                }
+                release(pc);
+            }
+        }
+    }
+
+    private void record(String operation, long start, long rows, String sql, Object... parameters) {
+        PersistenceStatistics.record(name, operation, System.nanoTime() - start, rows, () -> sql + " " + Arrays.toString(parameters));
+    }
+
+    private void recordBatch(String operation, long start, long rows, String sql, List<Object[]> parameterSets) {
+        PersistenceStatistics.record(name, operation, System.nanoTime() - start, rows,
+                () -> sql + " (" + parameterSets.size() + " parameter sets"
+                + (parameterSets.isEmpty() ? ")" : ", first " + Arrays.toString(parameterSets.get(0)) + ")"));
+    }
+
+    // a timed out or cancelled statement is reported as such (and never replayed)
+    private SQLException failed(PooledConnection pc, SQLException ex) {
+        if (Cancellation.isCurrentCancelled()) {
+            throw new PersistenceCancelledException("SQL statement cancelled - " + ex.getMessage());
+        }
+        if (dialect.isTimeout(ex)) {
+            throw new PersistenceTimeoutException("SQL statement timed out - " + ex.getMessage());
+        }
+        return broken(pc, ex);
+    }
+
+    private SQLException broken(PooledConnection pc, SQLException ex) {
+        if (dialect.isConnectionFailure(ex)) {
+            pc.markBroken();
+            pc.getPool().getStatistics().connectionFailure();
+        }
+        return ex;
+    }
+
+    private boolean replay(PooledConnection pc, SQLException ex, int attempt, String method) {
+        if (!pc.isBroken() || pc == transactionConnection.get() || attempt >= pc.getPool().getReplayAttempts()) {
+            return false;
+        }
+        pc.getPool().getStatistics().replay();
+        LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(this, method)
+                .addMsg("replaying after connection failure").addExceptionMessage(ex).write();
+        return true;
+    }
+
+    private PooledConnection acquire() throws SQLException {
+        PooledConnection pc = transactionConnection.get();
+        return pc != null ? pc : pool.acquire();
+    }
+
+    private PooledConnection acquireRead() throws SQLException {
+        PooledConnection pc = transactionConnection.get();
+        if (pc != null) {
+            return pc;
+        }
+        if (replicas.isEmpty() || System.currentTimeMillis() - lastwrite < readyourwriteswindow) {
+            return pool.acquire();
+        }
+        ConnectionPool replica = selectReplica();
+        try {
+            return replica.acquire();
+        } catch (SQLException | PersistenceTimeoutException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(this, "acquireRead")
+                    .addMsg("replica {0} unavailable - reading from primary", replica.instanceDescription())
+                    .addExceptionMessage(ex).write();
+            return pool.acquire();
+        }
+    }
+
+    private ConnectionPool selectReplica() {
+        int n = nextreplica.getAndIncrement() & Integer.MAX_VALUE;
+        if (!leastlatency || n % LATENCYSAMPLE == 0) {
+            return replicas.get(n % replicas.size());
+        }
+        return replicas.stream().min(Comparator.comparingLong(ConnectionPool::getLatency)).get();
+    }
+
+    private void release(PooledConnection pc) {
+        if (pc != transactionConnection.get()) {
+            pc.getPool().release(pc);
+        }
+    }
+
+    private void releaseWrite(PooledConnection pc) {
+        if (pc != transactionConnection.get()) {
+            lastwrite = System.currentTimeMillis();
+            pool.release(pc);
+        }
+    }
+
+    private PreparedStatement prepare(PooledConnection pc, String sql, boolean returnkeys, Object... parameters) throws SQLException {
+        PreparedStatement stat = pc.prepare(sql, returnkeys);
+        stat.setQueryTimeout(querytimeout);
+        for (int i = 0; i < parameters.length; i++) {
+            setParameter(stat, i + 1, parameters[i]);
+        }
+        return stat;
+    }
+
+    /**
+     * Bind a data value to a statement parameter, using the setter appropriate
+     * to the value's type.
+     *
+     * @param stat the prepared statement
+     * @param index the parameter index (1 based)
+     * @param value the data value
+     * @throws SQLException if problems
+     */
+    protected void setParameter(PreparedStatement stat, int index, Object value) throws SQLException {
+        if (value == null) {
+            stat.setNull(index, NULL);
+        } else if (value instanceof String) {
+            stat.setString(index, (String) value);
+        } else if (value instanceof Boolean) {
+            stat.setBoolean(index, (Boolean) value);
+        } else if (value instanceof Integer) {
+            stat.setInt(index, (Integer) value);
+        } else if (value instanceof Long) {
+            stat.setLong(index, (Long) value);
+        } else if (value instanceof BigDecimal) {
+            stat.setBigDecimal(index, (BigDecimal) value);
+        } else if (value instanceof Double) {
+            stat.setDouble(index, (Double) value);
+        } else {
+            throw new LogicException("Unknown Object type in LocalSQLPersistenceUnitProvider:setParameter()");
+        }
+    }
+
+    private RowDecoder getDecoder(String sql, ResultSet rs) throws SQLException {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        synchronized (decoders) {
+            RowDecoder decoder = decoders.get(sql);
+            if (decoder == null || decoder.getColumnCount() != rsmd.getColumnCount()) {
+                decoder = new RowDecoder(rsmd, dialect);
+                decoders.put(sql, decoder);
+            }
+            return decoder;
+        }
+    }
+
+    private class DecoderCache extends LinkedHashMap<String, RowDecoder> {
+
+        public DecoderCache() {
+            super((int) (MAXDECODERCACHE / LOADFACTOR), LOADFACTOR, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RowDecoder> eldest) {
+            return size() > MAXDECODERCACHE;
         }
-        return ef;
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import uk.theretiredprogrammer.nbpcglibrary.api.HasInstanceDescription;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+
+/**
+ * A JDBC connection managed by a ConnectionPool, together with its cache of
+ * prepared statements.
+ *
+ * A PooledConnection is only ever used by one thread at a time (the thread
+ * which has acquired it from the pool).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class PooledConnection implements HasInstanceDescription {
+
+    private static final int MAXSTATEMENTCACHE = 200;
+    private static final float LOADFACTOR = (float) 0.9;
+
+    private final ConnectionPool pool;
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statementcache = new StatementCache();
+    private long lastused;
+    private boolean broken = false;
+
+    /**
+     * Constructor.
+     *
+     * @param pool the pool which manages this connection
+     * @param conn the JDBC connection
+     */
+    PooledConnection(ConnectionPool pool, Connection conn) {
+        this.pool = pool;
+        this.conn = conn;
+        lastused = System.currentTimeMillis();
+    }
+
+    @Override
+    public String instanceDescription() {
+        return LogBuilder.instanceDescription(this, Integer.toString(System.identityHashCode(conn)));
+    }
+
+    /**
+     * Get the underlying JDBC connection.
+     *
+     * @return the connection
+     */
+    public Connection getConnection() {
+        return conn;
+    }
+
+    /**
+     * Get a prepared statement for the given sql statement - reusing a
+     * previously prepared statement if available.
+     *
+     * @param sql the SQL statement
+     * @param returnkeys true if the statement is to return generated keys
+     * @return the prepared statement (with parameters cleared)
+     * @throws SQLException if problems
+     */
+    public PreparedStatement prepare(String sql, boolean returnkeys) throws SQLException {
+        String key = returnkeys ? "KEYS:" + sql : sql;
+        PreparedStatement stat = statementcache.get(key);
+        if (stat == null) {
+            LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "prepare", sql);
+            stat = returnkeys
+                    ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                    : conn.prepareStatement(sql);
+            statementcache.put(key, stat);
+        } else {
+            stat.clearParameters();
+        }
+        return stat;
+    }
+
+    /**
+     * Test if this connection is still usable.
+     *
+     * @param validationquery the validation query to be used, or null if the
+     * driver's own validation is to be used
+     * @param timeout the validation timeout (seconds)
+     * @return true if valid
+     */
+    boolean isValid(String validationquery, int timeout) {
+        try {
+            if (validationquery == null) {
+                return conn.isValid(timeout);
+            }
+            try (Statement stat = conn.createStatement()) {
+                stat.setQueryTimeout(timeout);
+                try (ResultSet rs = stat.executeQuery(validationquery)) {
+                    return rs.next();
+                }
+            }
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(this, "isValid")
+                    .addExceptionMessage(ex).write();
+            return false;
+        }
+    }
+
+    /**
+     * Mark this connection as broken (its connection has failed) - it will be
+     * discarded rather than reused when released to the pool.
+     */
+    void markBroken() {
+        broken = true;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    long getLastUsed() {
+        return lastused;
+    }
+
+    void touch() {
+        lastused = System.currentTimeMillis();
+    }
+
+    /**
+     * Close all prepared statements and the connection.
+     */
+    void close() {
+        statementcache.values().stream().forEach((stat) -> {
+            closeStatement(stat);
+        });
+        statementcache.clear();
+        try {
+            conn.close();
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(this, "close")
+                    .addExceptionMessage(ex).write();
+        }
+    }
+
+    private void closeStatement(PreparedStatement stat) {
+        try {
+            stat.close();
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(this, "closeStatement")
+                    .addExceptionMessage(ex).write();
+        }
+    }
+
+    private class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+
+        public StatementCache() {
+            super((int) (MAXSTATEMENTCACHE / LOADFACTOR), LOADFACTOR, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > MAXSTATEMENTCACHE) {
+                closeStatement(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import static java.sql.Types.*;
+import java.time.format.DateTimeFormatter;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+
+/**
+ * Decoder of result set rows into EntityFields.
+ *
+ * The column names and the extractor for each column are determined once from
+ * the result set metadata, and then reused for every row of every result set
+ * with the same shape.
+ *
+ * Temporal columns are returned as strings in the SQL string formats used by
+ * Timestamp (yyyyMMddHHmmss) and DateOnly (yyyyMMdd).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class RowDecoder {
+
+    private static final DateTimeFormatter TIMESTAMPFORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private static final DateTimeFormatter DATEFORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private interface Extractor {
+
+        public Object extract(ResultSet rs, int column) throws SQLException;
+    }
+
+    private final String[] names;
+    private final Extractor[] extractors;
+
+    /**
+     * Constructor.
+     *
+     * @param meta the result set metadata
+     * @throws SQLException if problems
+     */
+    public RowDecoder(ResultSetMetaData meta) throws SQLException {
+        this(meta, new SQLDialect());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param meta the result set metadata
+     * @param dialect the SQL dialect (used to normalise the column names)
+     * @throws SQLException if problems
+     */
+    public RowDecoder(ResultSetMetaData meta, SQLDialect dialect) throws SQLException {
+        int colcount = meta.getColumnCount();
+        names = new String[colcount];
+        extractors = new Extractor[colcount];
+        for (int i = 0; i < colcount; i++) {
+            names[i] = dialect.columnName(meta.getColumnName(i + 1)).intern();
+            extractors[i] = getExtractor(meta.getColumnType(i + 1));
+        }
+    }
+
+    /**
+     * Get the number of columns decoded.
+     *
+     * @return the column count
+     */
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    /**
+     * Decode the current row of the result set.
+     *
+     * @param rs the result set
+     * @return the row as EntityFields
+     * @throws SQLException if problems
+     */
+    public EntityFields decode(ResultSet rs) throws SQLException {
+        EntityFields ef = new EntityFields();
+        for (int i = 0; i < names.length; i++) {
+            ef.put(names[i], extractors[i].extract(rs, i + 1));
+        }
+        return ef;
+    }
+
+    private Extractor getExtractor(int type) {
+        switch (type) {
+            case CHAR:
+            case VARCHAR:
+            case LONGVARCHAR:
+            case NCHAR:
+            case NVARCHAR:
+            case LONGNVARCHAR:
+            case CLOB:
+            case TIME:
+                return (rs, i) -> rs.getString(i);
+            case BOOLEAN:
+            case TINYINT:
+            case BIT:
+                return (rs, i) -> rs.getBoolean(i);
+            case BIGINT:
+                return (rs, i) -> rs.getLong(i);
+            case DECIMAL:
+            case NUMERIC:
+                return (rs, i) -> rs.getBigDecimal(i);
+            case DOUBLE:
+            case FLOAT:
+            case REAL:
+                return (rs, i) -> {
+                    double val = rs.getDouble(i);
+                    return rs.wasNull() ? null : val;
+                };
+            case TIMESTAMP:
+            case TIMESTAMP_WITH_TIMEZONE:
+                return (rs, i) -> {
+                    Timestamp val = rs.getTimestamp(i);
+                    return val == null ? null : val.toLocalDateTime().format(TIMESTAMPFORMAT);
+                };
+            case DATE:
+                return (rs, i) -> {
+                    Date val = rs.getDate(i);
+                    return val == null ? null : val.toLocalDate().format(DATEFORMAT);
+                };
+            default:
+                return (rs, i) -> {
+                    int val = rs.getInt(i);
+                    return rs.wasNull() ? null : val;
+                };
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * The SQL dialect of a database - the points at which the SQL generated by
+ * the LocalSQL providers, or the handling of generated keys, differs between
+ * databases.
+ *
+ * Data values are always bound to statement parameters and column names in
+ * queries are checked to be plain identifiers, so no escaping is required.
+ *
+ * The default implementation is standard SQL as accepted by MySQL and H2.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class SQLDialect {
+
+    /**
+     * Get the clause limiting the number of rows returned by a query (with a
+     * single ? parameter for the limit).
+     *
+     * @return the limit clause
+     */
+    public String limitClause() {
+        return " LIMIT ?";
+    }
+
+    /**
+     * Get the entity field name of a column returned in a result set. The
+     * default implementation returns the column name unchanged.
+     *
+     * @param columnname the column name from the result set metadata
+     * @return the field name
+     */
+    public String columnName(String columnname) {
+        return columnname;
+    }
+
+    /**
+     * Test if the database driver returns the generated keys for all rows of
+     * a batched insert. If not, batched inserts of rows with generated keys
+     * are executed as single inserts (within a single transaction).
+     *
+     * @return true if generated keys are returned for batches
+     */
+    public boolean supportsBatchGeneratedKeys() {
+        return true;
+    }
+
+    /**
+     * Test if an exception was caused by the insertion of a duplicate key.
+     *
+     * @param ex the exception
+     * @return true if caused by a duplicate key
+     */
+    public boolean isDuplicateKey(SQLException ex) {
+        String state = ex.getSQLState();
+        return state != null && state.startsWith("23");
+    }
+
+    /**
+     * Test if an exception was caused by a statement timeout (or
+     * cancellation).
+     *
+     * @param ex the exception
+     * @return true if caused by a timeout
+     */
+    public boolean isTimeout(SQLException ex) {
+        String state = ex.getSQLState();
+        return ex instanceof SQLTimeoutException || "57014".equals(state) || "70100".equals(state);
+    }
+
+    /**
+     * Test if an exception was caused by the failure of the database
+     * connection (after which the connection cannot be used again).
+     *
+     * @param ex the exception
+     * @return true if caused by a connection failure
+     */
+    public boolean isConnectionFailure(SQLException ex) {
+        if (ex instanceof SQLRecoverableException || ex instanceof SQLNonTransientConnectionException
+                || ex instanceof SQLTransientConnectionException) {
+            return true;
+        }
+        String state = ex.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The writes (updates and deletes) buffered within a transaction, to be
+ * flushed as JDBC batches.
+ *
+ * Repeated writes to the same row are collapsed into a single statement. On
+ * flush, the tables are ordered by their foreign key dependencies: updates are
+ * applied to parent tables before child tables, and deletes are applied to
+ * child tables before parent tables. Updates to a table are batched by
+ * statement shape; deletes from a table are applied in the order issued
+ * (batching consecutive deletes of the same shape), so that rows of a self
+ * referencing table are deleted children first. As updates are applied before
+ * deletes, an update following a buffered delete from the same table must not
+ * be buffered with it (see followsDelete), else it could be applied before the
+ * delete (eg taking a unique value of the deleted row).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+class UnitOfWork {
+
+    private final LocalSQLPersistenceUnitProvider pup;
+    private final Map<List<Object>, WriteStatement> writes = new LinkedHashMap<>();
+    private final Set<String> deletedtables = new HashSet<>();
+
+    /**
+     * Constructor.
+     *
+     * @param pup the PersistenceUnitProvider executing the writes
+     */
+    UnitOfWork(LocalSQLPersistenceUnitProvider pup) {
+        this.pup = pup;
+    }
+
+    /**
+     * Add a write, collapsing it into any earlier write to the same row.
+     *
+     * @param write the write
+     */
+    void add(WriteStatement write) {
+        List<Object> row = Arrays.asList(write.getTableName(), write.getPkey());
+        WriteStatement earlier = writes.get(row);
+        writes.put(row, earlier == null ? write : earlier.collapse(write));
+        if (write.isDelete()) {
+            deletedtables.add(write.getTableName());
+        }
+    }
+
+    /**
+     * Test if a write is an update of a table from which a delete is buffered
+     * (so the buffered writes must be flushed before it is added).
+     *
+     * @param write the write
+     * @return true if an update following a buffered delete
+     */
+    boolean followsDelete(WriteStatement write) {
+        return !write.isDelete() && deletedtables.contains(write.getTableName());
+    }
+
+    /**
+     * Test if there are any buffered writes.
+     *
+     * @return true if no buffered writes
+     */
+    boolean isEmpty() {
+        return writes.isEmpty();
+    }
+
+    /**
+     * Discard all buffered writes.
+     */
+    void clear() {
+        writes.clear();
+        deletedtables.clear();
+    }
+
+    /**
+     * Execute all buffered writes.
+     *
+     * @throws SQLException if problems
+     */
+    void flush() throws SQLException {
+        if (writes.isEmpty()) {
+            return;
+        }
+        // taken before execution, as the batches are executed through the
+        // provider, which flushes before every statement
+        List<WriteStatement> pending = new ArrayList<>(writes.values());
+        clear();
+        Map<String, Map<String, List<WriteStatement>>> updates = new LinkedHashMap<>();
+        Map<String, List<WriteStatement>> deletes = new LinkedHashMap<>();
+        for (WriteStatement write : pending) {
+            updates.computeIfAbsent(write.getTableName(), (t) -> new LinkedHashMap<>());
+            deletes.computeIfAbsent(write.getTableName(), (t) -> new ArrayList<>());
+            if (write.isDelete()) {
+                deletes.get(write.getTableName()).add(write);
+            } else {
+                updates.get(write.getTableName()).computeIfAbsent(write.getSql(), (s) -> new ArrayList<>()).add(write);
+            }
+        }
+        List<String> tables = dependencyOrder(updates.keySet());
+        for (String table : tables) {
+            for (List<WriteStatement> batch : updates.get(table).values()) {
+                execute(batch);
+            }
+        }
+        Collections.reverse(tables);
+        for (String table : tables) {
+            List<WriteStatement> run = new ArrayList<>();
+            for (WriteStatement delete : deletes.get(table)) {
+                if (!run.isEmpty() && !run.get(0).getSql().equals(delete.getSql())) {
+                    execute(run);
+                    run.clear();
+                }
+                run.add(delete);
+            }
+            execute(run);
+        }
+    }
+
+    // execute a batch of writes of the same shape
+    private void execute(List<WriteStatement> batch) throws SQLException {
+        if (!batch.isEmpty()) {
+            List<Object[]> parameterSets = new ArrayList<>();
+            batch.stream().forEach((write) -> {
+                parameterSets.add(write.getParameters());
+            });
+            WriteStatement first = batch.get(0);
+            if (first.isChecked()) {
+                pup.executeCheckedBatch(first.getSql(), parameterSets);
+            } else {
+                pup.executeBatch(first.getSql(), parameterSets);
+            }
+        }
+    }
+
+    // parent tables first - tables with circular dependencies are taken in the
+    // order in which they were first written
+    private List<String> dependencyOrder(Set<String> tablenames) throws SQLException {
+        Map<String, Set<String>> parents = new LinkedHashMap<>();
+        for (String table : tablenames) {
+            parents.put(table, pup.getParentTables(table));
+        }
+        List<String> ordered = new ArrayList<>();
+        Set<String> remaining = new LinkedHashSet<>(tablenames);
+        while (!remaining.isEmpty()) {
+            String next = remaining.stream().filter((table) -> parents.get(table).stream()
+                    .noneMatch((parent) -> !parent.equalsIgnoreCase(table) && remaining.stream().anyMatch(parent::equalsIgnoreCase)))
+                    .findFirst().orElse(remaining.iterator().next());
+            ordered.add(next);
+            remaining.remove(next);
+        }
+        return ordered;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+
+/**
+ * An UPDATE or DELETE of a single row, identified by its primary key.
+ *
+ * For a versioned table the statement is checked - it must change the row. If
+ * the expected version of the row is known, it only changes the row if the
+ * version column still holds the expected value. An update which does not set
+ * the version column itself (as a timestamp would be) advances it in the
+ * database, so that the version always changes even if the expected version
+ * is not known.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+final class WriteStatement {
+
+    private final String tablename;
+    private final String versioncolumn;
+    private final Object pkey;
+    private final EntityFields values;
+    private final Object expected;
+    private final int increment;
+    private final String sql;
+    private final Object[] parameters;
+
+    private WriteStatement(String tablename, String versioncolumn, Object pkey, EntityFields values, Object expected, int increment, String sql, Object[] parameters) {
+        this.tablename = tablename;
+        this.versioncolumn = versioncolumn;
+        this.pkey = pkey;
+        this.values = values;
+        this.expected = expected;
+        this.increment = increment;
+        this.sql = sql;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Create an UPDATE statement.
+     *
+     * @param tablename the table name
+     * @param versioncolumn the version column (or null if not versioned)
+     * @param pkey the primary key of the row
+     * @param values the values to be updated
+     * @param expected the expected version (or null if not known)
+     * @return the statement
+     */
+    static WriteStatement update(String tablename, String versioncolumn, Object pkey, EntityFields values, Object expected) {
+        return update(tablename, versioncolumn, pkey, values, expected,
+                versioncolumn == null || values.containsKey(versioncolumn) ? 0 : 1);
+    }
+
+    private static WriteStatement update(String tablename, String versioncolumn, Object pkey, EntityFields values, Object expected, int increment) {
+        StringBuilder keyvaluelist = new StringBuilder();
+        List<Object> params = new ArrayList<>();
+        String prefix = "";
+        for (String key : new TreeSet<>(values.keySet())) {
+            keyvaluelist.append(prefix).append(key).append("=?");
+            params.add(values.get(key));
+            prefix = ",";
+        }
+        if (increment > 0) {
+            keyvaluelist.append(prefix).append(versioncolumn).append("=COALESCE(").append(versioncolumn).append(",0)+?");
+            params.add(increment);
+        }
+        params.add(pkey);
+        if (expected != null) {
+            params.add(expected);
+        }
+        return new WriteStatement(tablename, versioncolumn, pkey, values, expected, increment,
+                "UPDATE " + tablename + " SET " + keyvaluelist + " WHERE id=?" + (expected != null ? " AND " + versioncolumn + "=?" : ""),
+                params.toArray());
+    }
+
+    /**
+     * Create a DELETE statement.
+     *
+     * @param tablename the table name
+     * @param versioncolumn the version column (or null if not versioned)
+     * @param pkey the primary key of the row
+     * @param expected the expected version (or null if not known)
+     * @return the statement
+     */
+    static WriteStatement delete(String tablename, String versioncolumn, Object pkey, Object expected) {
+        return versioncolumn == null || expected == null
+                ? new WriteStatement(tablename, versioncolumn, pkey, null, null, 0,
+                        "DELETE from " + tablename + " WHERE id = ?", new Object[]{pkey})
+                : new WriteStatement(tablename, versioncolumn, pkey, null, expected, 0,
+                        "DELETE from " + tablename + " WHERE id = ? AND " + versioncolumn + " = ?", new Object[]{pkey, expected});
+    }
+
+    /**
+     * Collapse a later write to the same row into this write, giving the
+     * single statement with the combined effect. The combined statement is
+     * checked against the expected version of this (the earlier) write, as
+     * that is the version held in entity storage.
+     *
+     * @param later the later write
+     * @return the combined statement
+     */
+    WriteStatement collapse(WriteStatement later) {
+        if (isDelete()) {
+            throw new LogicException("Entity " + tablename + " (" + pkey + ") has already been deleted");
+        }
+        if (later.isDelete()) {
+            return delete(tablename, versioncolumn, pkey, expected);
+        }
+        EntityFields combined = new EntityFields();
+        combined.putAll(values);
+        combined.putAll(later.values);
+        return update(tablename, versioncolumn, pkey, combined, expected,
+                versioncolumn == null || combined.containsKey(versioncolumn) ? 0 : increment + later.increment);
+    }
+
+    String getTableName() {
+        return tablename;
+    }
+
+    Object getPkey() {
+        return pkey;
+    }
+
+    boolean isDelete() {
+        return values == null;
+    }
+
+    boolean isChecked() {
+        return versioncolumn != null;
+    }
+
+    /**
+     * Get the version of the row after this statement has been executed, if
+     * it is known.
+     *
+     * @return the new version, or null if not known (or not advanced by the
+     * database)
+     */
+    Object getNewVersion() {
+        if (increment == 0 || expected == null) {
+            return null;
+        }
+        return expected instanceof Long ? (Long) expected + increment : ((Number) expected).intValue() + increment;
+    }
+
+    /**
+     * Test if the version of the row is advanced by the database, and is not
+     * known.
+     *
+     * @return true if the new version is not known
+     */
+    boolean isNewVersionUnknown() {
+        return increment > 0 && expected == null;
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    Object[] getParameters() {
+        return parameters;
+    }
+}
@@ -17,21 +17,41 @@ package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import uk.theretiredprogrammer.nbpcglibrary.api.Cancellation;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeFeed;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeRecord;
+import uk.theretiredprogrammer.nbpcglibrary.api.ConcurrentUpdateException;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceCancelledException;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceTimeoutException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Query;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonConversionException;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
 
@@ -39,6 +59,19 @@ import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
  * EntityPersistenceProvider Class for access local Json File based persistent
  * storage
  *
+ * If the property "&lt;tablename&gt;.versioncolumn" is set, updates and
+ * deletes which supply the version of the entity as last read are rejected
+ * with a ConcurrentUpdateException if the entity has since been changed. The
+ * version column is either a counter (set to 1 on insert and advanced on each
+ * update), or a column set on each update by updateTimestampInfo.
+ *
+ * The in-memory table is guarded by a read/write lock. A request which cannot
+ * obtain the lock within the lock timeout (property "locktimeout", in ms,
+ * default 30000) fails with a PersistenceTimeoutException.
+ *
+ * Inserts, updates and deletes are published on the PersistenceUnitProvider's
+ * change feed (if active) as they are made, with their before values.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  * @param <K> the Primary Key class
  */
@@ -47,15 +80,25 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
     private LocalJsonPersistenceUnitProvider pup;
     private String name;
     private String idx;
+    private String versioncolumn;
     private int nextid;
     private int nextidx;
     private final Map<K, EntityFields> tablerecords = new HashMap<>();
     private boolean dirty = false;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long locktimeout;
 
     @Override
     public void init(String tablename, Properties properties, PersistenceUnitProvider pup) throws IOException {
-        this.idx = null;
+        init(tablename, null, properties, pup);
+    }
+
+    @Override
+    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        this.idx = idx;
         this.pup = (LocalJsonPersistenceUnitProvider) pup;
+        versioncolumn = properties.getProperty(tablename + ".versioncolumn");
+        locktimeout = Long.parseLong(properties.getProperty("locktimeout", "30000"));
         JsonObject tableJson = this.pup.load(tablename);
         try {
             this.nextid = JsonUtil.getObjectKeyIntegerValue(tableJson, "nextid");
@@ -74,17 +117,43 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
         }
     }
     
-    @Override
-    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) throws IOException {
-        this.idx = idx;
-        this.init(tablename, properties, pup);
-    }
-    
     @Override
     public void close() {
         persist();
     }
     
+    private <R> R readLocked(Supplier<R> operation) {
+        return locked(lock.readLock(), operation);
+    }
+
+    private <R> R writeLocked(Supplier<R> operation) {
+        return locked(lock.writeLock(), operation);
+    }
+
+    private void writeLocked(Runnable operation) {
+        locked(lock.writeLock(), () -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    private <R> R locked(Lock l, Supplier<R> operation) {
+        Cancellation.checkCurrent("Access to table " + name);
+        try {
+            if (!l.tryLock(locktimeout, TimeUnit.MILLISECONDS)) {
+                throw new PersistenceTimeoutException("Timeout waiting for lock on table " + name);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceCancelledException("Interrupted while waiting for lock on table " + name);
+        }
+        try {
+            return operation.get();
+        } finally {
+            l.unlock();
+        }
+    }
+
     private EntityFields makeEntityFields(JsonObject record) throws JsonConversionException {
         EntityFields entity = new EntityFields();
         for (Map.Entry<String, JsonValue> field : record.entrySet()) {
@@ -97,27 +166,29 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
      * Persist the in-memory data (to json file)
      */
     public void persist() {
-        if (dirty) {
-            try {
-                JsonObjectBuilder job = Json.createObjectBuilder();
-                job.add("name", name);
-                job.add("nextid", nextid);
-                job.add("nextidx", nextidx);
-                JsonArrayBuilder rab = Json.createArrayBuilder();
-                tablerecords.values().stream().forEach((ef) -> {
-                    try {
-                        rab.add(createJsonRecord(ef));
-                    } catch (JsonConversionException ex) {
-                        throw new LogicException("Illegal Java Object presented as field value");
-                    }
-                });
-                job.add("entities", rab.build());
-                pup.persist(job.build());
-                dirty = false;
-            } catch (IOException ex) {
-                throw new LogicException("IO failure when persisting table");
+        writeLocked(() -> {
+            if (dirty) {
+                try {
+                    JsonObjectBuilder job = Json.createObjectBuilder();
+                    job.add("name", name);
+                    job.add("nextid", nextid);
+                    job.add("nextidx", nextidx);
+                    JsonArrayBuilder rab = Json.createArrayBuilder();
+                    tablerecords.values().stream().forEach((ef) -> {
+                        try {
+                            rab.add(createJsonRecord(ef));
+                        } catch (JsonConversionException ex) {
+                            throw new LogicException("Illegal Java Object presented as field value");
+                        }
+                    });
+                    job.add("entities", rab.build());
+                    pup.persist(job.build());
+                    dirty = false;
+                } catch (IOException ex) {
+                    throw new LogicException("IO failure when persisting table");
+                }
             }
-        }
+        });
     }
 
     private JsonObject createJsonRecord(EntityFields ef) throws JsonConversionException {
@@ -135,48 +206,201 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
 
     @Override
     public EntityFields get(K pkey) {
-        LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "get", pkey);
-        return tablerecords.get(pkey);
+        return readLocked(() -> {
+            LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "get", pkey);
+            return tablerecords.get(pkey);
+        });
+    }
+
+    @Override
+    public Map<K, EntityFields> get(Collection<K> pkeys) {
+        return readLocked(() -> {
+            LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "get", pkeys.size());
+            Map<K, EntityFields> efs = new LinkedHashMap<>();
+            pkeys.stream().forEach((pkey) -> {
+                EntityFields ef = tablerecords.get(pkey);
+                if (ef != null) {
+                    efs.put(pkey, copy(ef));
+                }
+            });
+            return efs;
+        });
     }
 
     @Override
     public final List<EntityFields> get() {
-        List<EntityFields> efs = new ArrayList<>();
-        tablerecords.values().stream().forEach((ef) -> {
-            efs.add(copy(ef));
+        return readLocked(() -> {
+            List<EntityFields> efs = new ArrayList<>();
+            tablerecords.values().stream().forEach((ef) -> {
+                efs.add(copy(ef));
+            });
+            return efs;
         });
-        return efs;
+    }
+
+    @Override
+    public final Stream<EntityFields> stream() {
+        return get().stream(); // copied under the lock, so not changed while streamed
+    }
+
+    @Override
+    public final Stream<EntityFields> stream(String parametername, Object parametervalue) {
+        return get(parametername, parametervalue).stream();
     }
 
     @Override
     public final List<K> find() {
-        List<K> pks = new ArrayList<>();
-        tablerecords.keySet().stream().forEach((key) -> {
-            pks.add(key);
+        return readLocked(() -> {
+            List<K> pks = new ArrayList<>();
+            tablerecords.keySet().stream().forEach((key) -> {
+                pks.add(key);
+            });
+            return pks;
         });
-        return pks;
     }
 
     @Override
     public final List<EntityFields> get(String parametername, Object parametervalue) {
-        List<EntityFields> efs = new ArrayList<>();
-        tablerecords.values().stream().forEach((ef) -> {
-            if (ef.get(parametername).equals(parametervalue)) {
+        return readLocked(() -> {
+            List<EntityFields> efs = new ArrayList<>();
+            tablerecords.values().stream().forEach((ef) -> {
+                if (ef.get(parametername).equals(parametervalue)) {
+                    efs.add(copy(ef));
+                }
+            });
+            return efs;
+        });
+    }
+
+    @Override
+    public final List<EntityFields> get(Query query) {
+        return readLocked(() -> {
+            List<EntityFields> efs = new ArrayList<>();
+            select(query).stream().forEach((ef) -> {
                 efs.add(copy(ef));
-            }
+            });
+            return efs;
+        });
+    }
+
+    @Override
+    public final List<K> find(Query query) {
+        return readLocked(() -> {
+            List<K> pks = new ArrayList<>();
+            select(query).stream().forEach((ef) -> {
+                pks.add(getPK(ef));
+            });
+            return pks;
+        });
+    }
+
+    @Override
+    public final List<EntityFields> get(String parametername, Object parametervalue, Set<String> columns) {
+        return readLocked(() -> {
+            List<EntityFields> efs = new ArrayList<>();
+            tablerecords.values().stream().forEach((ef) -> {
+                if (ef.get(parametername).equals(parametervalue)) {
+                    efs.add(copy(ef, columns));
+                }
+            });
+            return efs;
+        });
+    }
+
+    @Override
+    public final List<EntityFields> get(Query query, Set<String> columns) {
+        return readLocked(() -> {
+            List<EntityFields> efs = new ArrayList<>();
+            select(query).stream().forEach((ef) -> {
+                efs.add(copy(ef, columns));
+            });
+            return efs;
+        });
+    }
+
+    private List<EntityFields> select(Query query) {
+        List<EntityFields> efs = new ArrayList<>();
+        tablerecords.values().stream().filter((ef) -> (query.test(ef))).forEach((ef) -> {
+            efs.add(ef);
         });
+        if (!query.getOrderBy().isEmpty()) {
+            Collections.sort(efs, (ef1, ef2) -> {
+                for (Query.OrderBy orderby : query.getOrderBy()) {
+                    int c = compareValues(ef1.get(orderby.getColumnName()), ef2.get(orderby.getColumnName()));
+                    if (c != 0) {
+                        return orderby.isDescending() ? -c : c;
+                    }
+                }
+                return 0;
+            });
+        } else if (idx != null) {
+            Collections.sort(efs, (ef1, ef2) -> compareKeys(ef1, ef2));
+        }
         return efs;
     }
 
+    @SuppressWarnings("unchecked")
+    private int compareValues(Object v1, Object v2) {
+        if (v1 == null || v2 == null) {
+            return v1 == null ? (v2 == null ? 0 : -1) : 1; // nulls first
+        }
+        return ((Comparable<Object>) v1).compareTo(v2);
+    }
+
     @Override
-    public final List<K> find(String parametername, Object parametervalue) {
-        List<K> pks = new ArrayList<>();
-        tablerecords.entrySet().stream().forEach((e) -> {
-            if (e.getValue().get(parametername).equals(parametervalue)) {
-                pks.add(e.getKey());
+    public final Page<EntityFields> get(String parametername, Object parametervalue, K afterKey, int limit) {
+        if (limit < 1) {
+            throw new LogicException("Page limit must be at least 1");
+        }
+        return readLocked(() -> {
+            List<EntityFields> efs = new ArrayList<>();
+            tablerecords.values().stream().forEach((ef) -> {
+                if (parametername == null || ef.get(parametername).equals(parametervalue)) {
+                    efs.add(ef);
+                }
+            });
+            Comparator<EntityFields> order = (ef1, ef2) -> compareKeys(ef1, ef2);
+            Collections.sort(efs, order);
+            int start = 0;
+            if (afterKey != null) {
+                EntityFields after = tablerecords.get(afterKey);
+                if (after == null) {
+                    throw new LogicException("Page requested after an unknown key");
+                }
+                int pos = Collections.binarySearch(efs, after, order);
+                start = pos >= 0 ? pos + 1 : -pos - 1;
             }
+            int end = start + Math.min(limit, efs.size() - start);
+            List<EntityFields> page = new ArrayList<>();
+            efs.subList(start, end).stream().forEach((ef) -> {
+                page.add(copy(ef));
+            });
+            return new Page<>(page, end < efs.size());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareKeys(EntityFields ef1, EntityFields ef2) {
+        if (idx != null) {
+            int c = compareValues(ef1.get(idx), ef2.get(idx));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return ((Comparable<Object>) getPK(ef1)).compareTo(getPK(ef2));
+    }
+
+    @Override
+    public final List<K> find(String parametername, Object parametervalue) {
+        return readLocked(() -> {
+            List<K> pks = new ArrayList<>();
+            tablerecords.entrySet().stream().forEach((e) -> {
+                if (e.getValue().get(parametername).equals(parametervalue)) {
+                    pks.add(e.getKey());
+                }
+            });
+            return pks;
         });
-        return pks;
     }
 
     @Override
@@ -197,21 +421,59 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
         return find.get(0);
     }
 
+    @Override
+    public final long count() {
+        return readLocked(() -> tablerecords.size());
+    }
+
+    @Override
+    public final long count(String parametername, Object parametervalue) {
+        return readLocked(() -> tablerecords.values().stream().filter((ef) -> (Objects.equals(ef.get(parametername), parametervalue))).count());
+    }
+
+    @Override
+    public final boolean exists(String parametername, Object parametervalue, K excludingPk) {
+        return readLocked(() -> {
+            return tablerecords.entrySet().stream().anyMatch((e) -> (!e.getKey().equals(excludingPk)
+                    && Objects.equals(e.getValue().get(parametername), parametervalue)));
+        });
+    }
+
     @Override
     public final int findNextIdx() {
-        dirty = true;
-        return nextidx++;
+        return reserveIdx(1);
+    }
+
+    @Override
+    public final int reserveIdx(int count) {
+        return writeLocked(() -> {
+            // the counter is held in memory and persisted with the table, so a
+            // block costs no more than a single value
+            dirty = true;
+            int first = nextidx;
+            nextidx += count;
+            return first;
+        });
     }
 
     @Override
     public final EntityFields insert(EntityFields values) {
-        dirty = true;
-        EntityFields entity = new EntityFields();
-        entity.putAll(values);
-        autoGenPrimaryKeyHook(entity);
-        addTimestampInfo(entity);
-        tablerecords.put(getPK(entity), entity);
-        return copy(entity);
+        return writeLocked(() -> {
+            dirty = true;
+            EntityFields entity = new EntityFields();
+            entity.putAll(values);
+            autoGenPrimaryKeyHook(entity);
+            addTimestampInfo(entity);
+            if (idx != null && entity.get(idx) == null) {
+                entity.put(idx, reserveIdx(1));
+            }
+            if (versioncolumn != null && !entity.containsKey(versioncolumn)) {
+                entity.put(versioncolumn, 1);
+            }
+            tablerecords.put(getPK(entity), entity);
+            changed(() -> ChangeRecord.insert(name, getPK(entity), entity));
+            return copy(entity);
+        });
     }
 
     /**
@@ -226,17 +488,137 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
 
     @Override
     public final EntityFields update(K pkey, EntityFields diffs) {
-        dirty = true;
-        EntityFields entity = tablerecords.get(pkey);
-        entity.putAll(diffs);
-        updateTimestampInfo(entity);
-        return copy(entity);
+        return writeLocked(() -> {
+            Object expected = versioncolumn == null ? null : diffs.remove(versioncolumn);
+            checkVersion(pkey, expected);
+            EntityFields entity = tablerecords.get(pkey);
+            if (entity == null) {
+                throw new ConcurrentUpdateException("Entity " + name + " (" + pkey + ") has been deleted by another user");
+            }
+            dirty = true;
+            EntityFields before = pup.getChangeFeed().isActive() ? copy(entity) : null;
+            entity.putAll(diffs);
+            if (versioncolumn == null) {
+                updateTimestampInfo(entity);
+            } else {
+                Object version = entity.get(versioncolumn);
+                updateTimestampInfo(entity);
+                if (Objects.equals(version, entity.get(versioncolumn))) {
+                    entity.put(versioncolumn, version == null ? 1 : ((Number) version).intValue() + 1);
+                }
+            }
+            changed(() -> ChangeRecord.update(name, pkey, before, entity, changedFields(before, entity)));
+            return copy(entity);
+        });
     }
     
     @Override
     public final void delete(K pkey) {
-        dirty = true;
-        tablerecords.remove(pkey);
+        writeLocked(() -> {
+            dirty = true;
+            EntityFields before = tablerecords.remove(pkey);
+            if (before != null) {
+                changed(() -> ChangeRecord.delete(name, pkey, before));
+            }
+        });
+    }
+
+    @Override
+    public final void delete(K pkey, Object version) {
+        writeLocked(() -> {
+            checkVersion(pkey, version);
+            delete(pkey);
+        });
+    }
+
+    @Override
+    public final String getVersionColumn() {
+        return versioncolumn;
+    }
+
+    @Override
+    public final PersistenceUnitProvider getPersistenceUnitProvider() {
+        return pup;
+    }
+
+    private void checkVersion(K pkey, Object expected) {
+        if (versioncolumn != null && expected != null) {
+            EntityFields entity = tablerecords.get(pkey);
+            if (entity == null || !sameVersion(entity.get(versioncolumn), expected)) {
+                throw new ConcurrentUpdateException("Entity " + name + " (" + pkey + ") has been changed or deleted by another user");
+            }
+        }
+    }
+
+    private boolean sameVersion(Object v1, Object v2) {
+        return v1 instanceof Number && v2 instanceof Number
+                ? ((Number) v1).longValue() == ((Number) v2).longValue()
+                : Objects.equals(v1, v2);
+    }
+
+    @Override
+    public final List<EntityFields> insertAll(List<EntityFields> values) {
+        return writeLocked(() -> {
+            List<EntityFields> efs = new ArrayList<>();
+            values.stream().forEach((ef) -> {
+                efs.add(insert(ef));
+            });
+            persist();
+            return efs;
+        });
+    }
+
+    @Override
+    public final Map<K, EntityFields> updateAll(Map<K, EntityFields> diffs) {
+        return writeLocked(() -> {
+            // check all versions before any update, so that a conflict changes nothing
+            diffs.entrySet().stream().forEach((e) -> {
+                checkVersion(e.getKey(), versioncolumn == null ? null : e.getValue().get(versioncolumn));
+            });
+            Map<K, EntityFields> efs = new LinkedHashMap<>();
+            diffs.entrySet().stream().forEach((e) -> {
+                efs.put(e.getKey(), update(e.getKey(), e.getValue()));
+            });
+            persist();
+            return efs;
+        });
+    }
+
+    @Override
+    public final void deleteAll(Collection<K> pkeys) {
+        writeLocked(() -> {
+            pkeys.stream().forEach((pkey) -> {
+                delete(pkey);
+            });
+            persist();
+        });
+    }
+
+    private void changed(Supplier<ChangeRecord> change) {
+        ChangeFeed feed = pup.getChangeFeed();
+        if (feed.isActive()) {
+            feed.publish(change.get());
+        }
+    }
+
+    private Set<String> changedFields(EntityFields before, EntityFields after) {
+        if (before == null) {
+            return after.keySet();
+        }
+        Set<String> changed = new TreeSet<>();
+        after.keySet().stream().filter((field) -> !Objects.equals(before.get(field), after.get(field))).forEach((field) -> {
+            changed.add(field);
+        });
+        return changed;
+    }
+
+    private EntityFields copy(EntityFields ef, Set<String> columns) {
+        EntityFields efc = new EntityFields();
+        efc.put("id", ef.get("id"));
+        columns.stream().filter((column) -> (ef.containsKey(column))).forEach((column) -> {
+            efc.put(column, ef.get(column));
+        });
+        return efc;
     }
 
     private EntityFields copy(EntityFields ef) {
@@ -21,16 +21,27 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Properties;
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import javax.json.JsonWriter;
 import javax.json.stream.JsonParsingException;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeFeed;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceStatistics;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 
 /**
  * Class implementing Local access to Json Data.
  *
+ * The latency of every table load and persist is recorded in the
+ * PersistenceStatistics (with this PersistenceUnitProvider's name as the
+ * source).
+ *
+ * Changes are published on the change feed as they are made to the in-memory
+ * tables (the replay buffer size is set by the property changereplaysize,
+ * default 0).
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  */
 public class LocalJsonPersistenceUnitProvider implements PersistenceUnitProvider {
@@ -39,6 +50,7 @@ public class LocalJsonPersistenceUnitProvider implements PersistenceUnitProvider
     private final File databasefolder;
     private File dbfile;
     private final boolean operational;
+    private final ChangeFeed changefeed;
 
     /**
      * Constructor.
@@ -49,6 +61,8 @@ public class LocalJsonPersistenceUnitProvider implements PersistenceUnitProvider
         dbpath = (String) p.get("connection");
         databasefolder = new File(dbpath);
         operational = databasefolder.isDirectory();
+        changefeed = new ChangeFeed(getName());
+        changefeed.setReplaySize(Integer.parseInt(p.getProperty("changereplaysize", "0")));
     }
 
     /**
@@ -59,6 +73,7 @@ public class LocalJsonPersistenceUnitProvider implements PersistenceUnitProvider
      * @throws IOException if problems reading or parsing data
      */
     public JsonObject load(String tablename) throws IOException {
+        long start = System.nanoTime();
         dbfile = new File(databasefolder, tablename);
         if (!dbfile.canWrite()) {
             throw new IOException("Table file missing - " + tablename);
@@ -71,6 +86,7 @@ public class LocalJsonPersistenceUnitProvider implements PersistenceUnitProvider
         } catch (JsonParsingException ex) {
             throw new IOException("Json Parsing Exception - " + ex.getMessage());
         }
+        PersistenceStatistics.record(getName(), tablename + "/load", System.nanoTime() - start, rows(jo), () -> "load " + tablename);
         return jo;
     }
 
@@ -81,9 +97,16 @@ public class LocalJsonPersistenceUnitProvider implements PersistenceUnitProvider
      * @throws IOException if problem writing the data
      */
     public void persist(JsonObject tableobject) throws IOException {
+        long start = System.nanoTime();
         try (JsonWriter jsonWriter = Json.createWriter(new FileWriter(dbfile))) {
             jsonWriter.writeObject(tableobject);
         }
+        PersistenceStatistics.record(getName(), dbfile.getName() + "/persist", System.nanoTime() - start, rows(tableobject), () -> "persist " + dbfile.getName());
+    }
+
+    private int rows(JsonObject tableobject) {
+        JsonArray entities = tableobject.getJsonArray("entities");
+        return entities == null ? 0 : entities.size();
     }
 
     @Override
@@ -96,6 +119,21 @@ public class LocalJsonPersistenceUnitProvider implements PersistenceUnitProvider
         return "local-json";
     }
 
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return changefeed;
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return false;
+    }
+
+    @Override
+    public void afterTransaction(Runnable action) {
+        action.run();
+    }
+
     @Override
     public String instanceDescription() {
         return LogBuilder.instanceDescription(this, dbpath);
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+
+/**
+ * Test of asynchronous access, over a local Json persistence unit.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class AsyncTest {
+
+    private LocalJsonAutoIDEntityPersistenceProvider epp;
+    private ThreadPoolExecutor executor;
+    private AsyncEntityPersistenceProvider<Integer> instance;
+
+    /**
+     * Setup the test - a Data table with one entity, and an executor with a
+     * single thread and a queue of one request.
+     *
+     * @throws IOException if problems
+     */
+    @Before
+    public void setUp() throws IOException {
+        File dbdir = new File(System.getProperty("java.io.tmpdir"), "JsonAsyncTestDatabase");
+        if (!dbdir.exists()) {
+            dbdir.mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(new File(dbdir, "Data"))) {
+            out.write("{\"name\":\"Data\",\"nextid\":1,\"nextidx\":1,\"entities\":[]}".getBytes(StandardCharsets.UTF_8));
+        }
+        Properties p = new Properties();
+        p.setProperty("connection", dbdir.getAbsolutePath());
+        epp = new LocalJsonAutoIDEntityPersistenceProvider();
+        epp.init("Data", p, new LocalJsonPersistenceUnitProvider(p));
+        EntityFields ef = new EntityFields();
+        ef.put("description", "inserted");
+        epp.insert(ef);
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1), new ThreadPoolExecutor.AbortPolicy());
+        instance = new AsyncEntityPersistenceProvider<>(epp, executor);
+    }
+
+    /**
+     * Tear down the test
+     */
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        epp.close();
+    }
+
+    /**
+     * Test that a request is executed on the executor.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGetAsync() throws Exception {
+        System.out.println("Test async get");
+        assertEquals("inserted", instance.getAsync(1).get(5, TimeUnit.SECONDS).get("description"));
+    }
+
+    /**
+     * Test that a request which the executor cannot accept completes its
+     * future exceptionally (rather than being executed by the caller).
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testRejectedRequest() throws Exception {
+        System.out.println("Test async rejection");
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // one request executing, one queued
+            for (int i = 0; i < 2; i++) {
+                executor.execute(() -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                    }
+                });
+            }
+            CompletableFuture<EntityFields> rejected = instance.getAsync(1);
+            assertTrue(rejected.isCompletedExceptionally());
+            try {
+                rejected.get();
+                fail("ExecutionException expected");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof RejectedExecutionException);
+            }
+        } finally {
+            release.countDown();
+        }
+    }
+}
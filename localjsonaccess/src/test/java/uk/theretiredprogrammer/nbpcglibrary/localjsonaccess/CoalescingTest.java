@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import uk.theretiredprogrammer.nbpcglibrary.api.CoalescingEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.ConcurrentUpdateException;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
+import uk.theretiredprogrammer.nbpcglibrary.api.UpdateCoalescer;
+
+/**
+ * Test of update coalescing, over a local Json persistence unit.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class CoalescingTest {
+
+    private static final long WINDOW = 50; // ms
+
+    private File dbdir;
+    private LocalJsonAutoIDEntityPersistenceProvider epp;
+    private UpdateCoalescer coalescer;
+    private CoalescingEntityPersistenceProvider<Integer> instance;
+
+    /**
+     * Setup the test - an empty Data table, with updates coalesced.
+     *
+     * @throws IOException if problems
+     */
+    @Before
+    public void setUp() throws IOException {
+        dbdir = new File(System.getProperty("java.io.tmpdir"), "JsonCoalescingTestDatabase");
+        if (!dbdir.exists()) {
+            dbdir.mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(new File(dbdir, "Data"))) {
+            out.write("{\"name\":\"Data\",\"nextid\":1,\"nextidx\":1,\"entities\":[]}".getBytes(StandardCharsets.UTF_8));
+        }
+        Properties p = new Properties();
+        p.setProperty("connection", dbdir.getAbsolutePath());
+        epp = new LocalJsonAutoIDEntityPersistenceProvider();
+        epp.init("Data", p, new LocalJsonPersistenceUnitProvider(p));
+        coalescer = new UpdateCoalescer("Data", WINDOW);
+        instance = new CoalescingEntityPersistenceProvider<>(epp, coalescer);
+    }
+
+    /**
+     * Tear down the test
+     */
+    @After
+    public void tearDown() {
+        epp.close();
+    }
+
+    private EntityFields description(String description) {
+        EntityFields ef = new EntityFields();
+        ef.put("description", description);
+        return ef;
+    }
+
+    /**
+     * Test that a burst of updates is written as the first update and a
+     * single pending update, which is written before a read.
+     */
+    @Test
+    public void testBurstCoalesced() {
+        System.out.println("Test update coalescing");
+        Integer pk = instance.getPK(instance.insert(description("inserted")));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("update " + i, instance.update(pk, description("update " + i)).get("description"));
+        }
+        assertEquals("update 4", instance.get(pk).get("description"));
+        assertEquals(5, coalescer.getUpdates());
+        assertEquals(2, coalescer.getWrites());
+    }
+
+    /**
+     * Test that a pending update which fails when its window closes is
+     * reported by the next update of the entity.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void testExpiryFailureReported() throws InterruptedException {
+        System.out.println("Test coalesced update failure");
+        Integer pk = instance.getPK(instance.insert(description("inserted")));
+        instance.update(pk, description("written"));
+        instance.update(pk, description("pending"));
+        // deleted by another user, so that the pending update fails
+        epp.delete(pk);
+        Thread.sleep(WINDOW * 10);
+        try {
+            instance.update(pk, description("next"));
+            fail("ConcurrentUpdateException expected");
+        } catch (ConcurrentUpdateException ex) {
+        }
+        // reported once only
+        coalescer.flush();
+    }
+
+    /**
+     * Test that re-initialising the persistence properties writes the pending
+     * updates, and replaces the coalescers and query caches.
+     *
+     * @throws IOException if problems
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReinitialisation() throws IOException {
+        System.out.println("Test coalescing re-initialisation");
+        Properties p = new Properties();
+        p.setProperty("key", "jsoncoalescing");
+        p.setProperty("connection", dbdir.getAbsolutePath());
+        p.setProperty("persistenceunitprovidertype", "local-json");
+        p.setProperty("entitypersistenceprovidertype", "local-json");
+        p.setProperty("coalescewindow", "60000");
+        p.setProperty("Data.querycache", "true");
+        EntityPersistenceProviderManager.init(p);
+        EntityPersistenceProvider<Integer> before = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsoncoalescing", "Data");
+        Integer pk = before.getPK(before.insert(description("inserted")));
+        before.update(pk, description("written"));
+        before.update(pk, description("pending"));
+        assertEquals(1, before.count());
+        UpdateCoalescer pending = EntityPersistenceProviderManager.getUpdateCoalescer("jsoncoalescing", "Data");
+        assertNotNull(EntityPersistenceProviderManager.getQueryResultCache("jsoncoalescing", "Data"));
+        //
+        EntityPersistenceProviderManager.init(p);
+        assertFalse(pending.isPending());
+        assertNull(EntityPersistenceProviderManager.getUpdateCoalescer("jsoncoalescing", "Data"));
+        assertNull(EntityPersistenceProviderManager.getQueryResultCache("jsoncoalescing", "Data"));
+        EntityPersistenceProvider<Integer> after = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsoncoalescing", "Data");
+        assertEquals("pending", after.get(pk).get("description"));
+        EntityPersistenceProviderManager.close();
+    }
+}
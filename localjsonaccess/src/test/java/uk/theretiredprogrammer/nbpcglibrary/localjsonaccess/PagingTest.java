@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+
+/**
+ * Test of paging, over a local Json persistence unit.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class PagingTest {
+
+    private LocalJsonAutoIDEntityPersistenceProvider instance;
+
+    /**
+     * Setup the test - an ordered Data table, with an entity without an index
+     * value.
+     *
+     * @throws IOException if problems
+     */
+    @Before
+    public void setUp() throws IOException {
+        File dbdir = new File(System.getProperty("java.io.tmpdir"), "JsonPagingTestDatabase");
+        if (!dbdir.exists()) {
+            dbdir.mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(new File(dbdir, "Data"))) {
+            out.write(("{\"name\":\"Data\",\"nextid\":4,\"nextidx\":3,\"entities\":["
+                    + "{\"id\":1,\"idx\":2,\"description\":\"second\"},"
+                    + "{\"id\":2,\"description\":\"unordered\"},"
+                    + "{\"id\":3,\"idx\":1,\"description\":\"first\"}]}").getBytes(StandardCharsets.UTF_8));
+        }
+        Properties p = new Properties();
+        p.setProperty("connection", dbdir.getAbsolutePath());
+        instance = new LocalJsonAutoIDEntityPersistenceProvider();
+        instance.init("Data", "idx", p, new LocalJsonPersistenceUnitProvider(p));
+    }
+
+    /**
+     * Tear down the test
+     */
+    @After
+    public void tearDown() {
+        instance.close();
+    }
+
+    /**
+     * Test that pages are in index order, with entities without an index value
+     * first.
+     */
+    @Test
+    public void testNullIndexFirst() {
+        System.out.println("Test paging with a null index");
+        List<Integer> paged = new ArrayList<>();
+        Integer after = null;
+        Page<EntityFields> page;
+        do {
+            page = instance.get(null, null, after, 1);
+            page.getItems().stream().forEach((ef) -> {
+                paged.add(instance.getPK(ef));
+            });
+            after = paged.get(paged.size() - 1);
+        } while (page.hasMore());
+        assertEquals(Arrays.asList(2, 3, 1), paged);
+    }
+
+    /**
+     * Test the page limits - an unlimited page, and an invalid limit.
+     */
+    @Test
+    public void testLimits() {
+        System.out.println("Test paging limits");
+        Page<EntityFields> page = instance.get(null, null, 3, Integer.MAX_VALUE);
+        assertEquals(1, page.getItems().size());
+        assertFalse(page.hasMore());
+        for (int limit : new int[]{0, -1}) {
+            try {
+                instance.get(null, null, null, limit);
+                fail("LogicException expected");
+            } catch (LogicException ex) {
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014-2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+
+/**
+ * Test of a table sharded by key range across two local Json persistence
+ * units.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class ShardingTest {
+
+    private File dbdir;
+
+    /**
+     * Setup the test - a Data table in each shard, with ids allocated from 1
+     * and from 1000, and an Ordered table in each shard, with the second shard
+     * holding an entity with a higher index value than the first shard will
+     * allocate.
+     */
+    @Before
+    public void setUp() {
+        dbdir = new File(System.getProperty("java.io.tmpdir"), "JsonShardedTestDatabase");
+        try {
+            createTable(new File(dbdir, "a"), "Data", 1, 1, "");
+            createTable(new File(dbdir, "b"), "Data", 1000, 1, "");
+            createTable(new File(dbdir, "a"), "Ordered", 1, 1, "");
+            createTable(new File(dbdir, "b"), "Ordered", 1001, 50, "{\"id\":1000,\"idx\":49,\"description\":\"held by b\"}");
+        } catch (IOException ex) {
+            fail("Could not create test database - " + ex.getMessage());
+        }
+    }
+
+    private void createTable(File dir, String name, int nextid, int nextidx, String entities) throws IOException {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(new File(dir, name))) {
+            out.write(("{\"name\":\"" + name + "\",\"nextid\":" + nextid + ",\"nextidx\":" + nextidx
+                    + ",\"entities\":[" + entities + "]}").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private Properties shardedProperties(String key) {
+        Properties p = new Properties();
+        p.setProperty("key", key);
+        p.setProperty("persistenceunitprovidertype", "sharded");
+        p.setProperty("entitypersistenceprovidertype", "sharded");
+        p.setProperty("shards", "a,b");
+        for (String shard : Arrays.asList("a", "b")) {
+            p.setProperty("shard." + shard + ".connection", new File(dbdir, shard).getAbsolutePath());
+            p.setProperty("shard." + shard + ".persistenceunitprovidertype", "local-json");
+            p.setProperty("shard." + shard + ".entitypersistenceprovidertype", "local-json");
+        }
+        return p;
+    }
+
+    /**
+     * Tear down the test
+     */
+    @After
+    public void tearDown() {
+        dbdir = null;
+    }
+
+    /**
+     * Insert entities into each shard in turn, and read them back by key and
+     * by scatter-gather.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testKeyRangeSharding() {
+        System.out.println("Test Sharded Json Access");
+        try {
+            Properties p = shardedProperties("jsonsharded");
+            p.setProperty("Data.shards", "a,b");
+            p.setProperty("Data.shardranges", "0,1000");
+            EntityPersistenceProviderManager.init(p);
+            EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonsharded", "Data");
+            System.out.println("Instance Description: " + epp.instanceDescription());
+            //
+            for (int i = 0; i < 4; i++) {
+                EntityFields ef = new EntityFields();
+                ef.put("description", "insert " + i);
+                System.out.println("insert(...) returns " + epp.insert(ef));
+            }
+            assertEquals(4, epp.count());
+            List<Integer> pks = epp.find();
+            System.out.println("find(): " + pks);
+            assertTrue(pks.containsAll(Arrays.asList(1, 2, 1000, 1001)));
+            assertEquals("insert 1", epp.get(1000).get("description"));
+            assertEquals(1001, (int) epp.findOne("description", "insert 3"));
+            assertEquals(2, epp.get(Arrays.asList(1001, 2)).size());
+            //
+            EntityFields diff = new EntityFields();
+            diff.put("description", "updated");
+            epp.update(1001, diff);
+            assertEquals(1, epp.count("description", "updated"));
+            epp.delete(1);
+            assertEquals(3, epp.get().size());
+            //
+            Page<EntityFields> page = epp.get(null, null, null, 2);
+            assertEquals(2, page.getItems().size());
+            page = epp.get(null, null, (Integer) page.getItems().get(1).get("id"), 2);
+            assertEquals(1, page.getItems().size());
+            System.out.println("Test Sharded Json Access completed");
+        } catch (IOException ex) {
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Insert entities into an ordered table through the first shard, and check
+     * that their index values follow the index values held by the second
+     * shard.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOrderedSharding() {
+        System.out.println("Test Sharded Json Index Allocation");
+        try {
+            Properties p = shardedProperties("jsonshardedordered");
+            p.setProperty("Ordered.shards", "a,b");
+            p.setProperty("Ordered.shardranges", "0,1000");
+            p.setProperty("Ordered.insertshard", "a");
+            EntityPersistenceProviderManager.init(p);
+            EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonshardedordered", "Ordered", "idx");
+            //
+            EntityFields ef = new EntityFields();
+            ef.put("description", "insert 0");
+            EntityFields inserted = epp.insert(ef);
+            System.out.println("insert(...) returns " + inserted);
+            assertEquals(1, inserted.get("id"));
+            assertTrue((Integer) inserted.get("idx") > 49);
+            ef = new EntityFields();
+            ef.put("description", "insert 1");
+            inserted = epp.insert(ef);
+            System.out.println("insert(...) returns " + inserted);
+            assertTrue((Integer) inserted.get("idx") > 50);
+            assertTrue(epp.findNextIdx() > (Integer) inserted.get("idx"));
+            assertEquals(Arrays.asList(1000, 1, 2), epp.find());
+            System.out.println("Test Sharded Json Index Allocation completed");
+        } catch (IOException ex) {
+            fail(ex.getMessage());
+        }
+    }
+}
@@ -35,6 +35,11 @@ public class LocalMySQLAutoIDEntityPersistenceProvider extends LocalMySQLEntityP
     public void autoGenPrimaryKeyHook(EntityFields ef) {
     }
 
+    @Override
+    protected Object convertGeneratedKey(Object key) {
+        return ((Number) key).intValue();
+    }
+
     @Override
     public void addTimestampInfo(EntityFields ef) {
         String user = Settings.get("Usercode", "????");
@@ -15,37 +15,17 @@
  */
 package uk.theretiredprogrammer.nbpcglibrary.mysql;
 
-import java.math.BigDecimal;
-import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
 import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLEntityPersistenceProvider;
 
 /**
+ * EntityPersistenceProvider Class for access to local MySQL databases.
+ *
+ * Data values are bound to prepared statement parameters by the
+ * PersistenceUnitProvider, so no MySQL specific quoting or escaping is
+ * required.
  *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  * @param <K> the primary key class
  */
 public abstract class LocalMySQLEntityPersistenceProvider<K> extends LocalSQLEntityPersistenceProvider<K> {
-    
-    @Override
-    protected String format(Object value) {
-        if (value == null ) {
-            return "NULL";
-        }
-        if (value instanceof String){
-            return "'" + ((String) value).replace("\\", "\\\\").replace("'", "\\'").replace("\n","\\n") + "'";
-        }
-        if (value instanceof Boolean){
-            return ((Boolean)value).toString();
-        }
-        if (value instanceof Integer){
-            return ((Integer) value).toString();
-        }
-        if (value instanceof Long){
-            return ((Long) value).toString();
-        }
-        if (value instanceof BigDecimal){
-            return ((BigDecimal) value).toPlainString();
-        }
-        throw new LogicException("Unknown Object type in LocalMySQLEntityPersistenceProvider:format()");
-    }
 }
@@ -21,6 +21,7 @@ import java.util.Properties;
 import java.util.logging.Level;
 import uk.theretiredprogrammer.nbpcglibrary.annotations.RegisterLog;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.ConnectionPool;
 import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLPersistenceUnitProvider;
 
 /**
@@ -34,14 +35,30 @@ public class LocalMySQLPersistenceUnitProvider extends LocalSQLPersistenceUnitPr
     /**
      * Constructor
      * 
-     * @param p the db connection parameters
+     * @param p the db connection parameters (including the connection pool
+     * parameters - see ConnectionPool, and the fetchsize used for streamed
+     * queries - the connection should include useCursorFetch=true for MySQL
+     * to honour this), the querytimeout in seconds (default 30), the
+     * streamtimeout for streamed queries in seconds (default 0 - no timeout),
+     * writebehind (default false - see LocalSQLPersistenceUnitProvider), the change feed
+     * changereplaysize (default 0), and the read
+     * replica parameters - see
+     * LocalSQLPersistenceUnitProvider.configureReplicas (replicas share the
+     * user and password)
      */
     @SuppressWarnings("LeakingThisInConstructor")
     public LocalMySQLPersistenceUnitProvider(Properties p) {
         super("local-mysql-"+p.getProperty("key"));
         try {
             Class.forName("com.mysql.jdbc.Driver");
-            setConnection(DriverManager.getConnection(p.getProperty("connection"), p.getProperty("user"), p.getProperty("password")));
+            setConnectionPool(new ConnectionPool(getName(), p,
+                    () -> DriverManager.getConnection(p.getProperty("connection"), p.getProperty("user"), p.getProperty("password"))));
+            configureReplicas(p, (connection) -> () -> DriverManager.getConnection(connection, p.getProperty("user"), p.getProperty("password")));
+            setFetchSize(Integer.parseInt(p.getProperty("fetchsize", "1000")));
+            setQueryTimeout(Integer.parseInt(p.getProperty("querytimeout", "30")));
+            setStreamTimeout(Integer.parseInt(p.getProperty("streamtimeout", "0")));
+            setWriteBehind(Boolean.parseBoolean(p.getProperty("writebehind", "false")));
+            setChangeReplaySize(Integer.parseInt(p.getProperty("changereplaysize", "0")));
             setOperational();
         } catch (ClassNotFoundException | SQLException ex) {
              LogBuilder.create("nbpcglibrary.mysql", Level.SEVERE).addConstructorName(this, p)
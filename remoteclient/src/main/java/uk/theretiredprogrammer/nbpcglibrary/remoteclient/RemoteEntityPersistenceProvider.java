@@ -17,20 +17,39 @@ package uk.theretiredprogrammer.nbpcglibrary.remoteclient;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeFeed;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeRecord;
+import uk.theretiredprogrammer.nbpcglibrary.api.ConcurrentUpdateException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Condition;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.IdxBlockAllocator;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.Query;
 import uk.theretiredprogrammer.nbpcglibrary.common.Settings;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonConversionException;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
@@ -38,6 +57,10 @@ import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
 /**
  * EntityPersistenceProvider Class for accessing remote entities.
  *
+ * Inserts, updates and deletes are published on the PersistenceUnitProvider's
+ * change feed (if active) once confirmed by the server; the before values are
+ * not known.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  * @param <K> the Primary Key Class
  */
@@ -46,12 +69,14 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
     private String entityname;
     private RemotePersistenceUnitProvider persistenceUnitProvider;
     private String idx;
+    private int fetchsize;
+    private int idxblocksize;
+    private String versioncolumn;
+    private IdxBlockAllocator idxallocator;
 
     @Override
     public void init(String entityname, Properties properties, PersistenceUnitProvider pup) {
-        this.entityname = entityname;
-        this.persistenceUnitProvider = (RemotePersistenceUnitProvider) pup;
-        idx = null;
+        init(entityname, null, properties, pup);
     }
 
     @Override
@@ -59,6 +84,13 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
         this.entityname = entityname;
         this.persistenceUnitProvider = (RemotePersistenceUnitProvider) pup;
         this.idx = idx;
+        fetchsize = Integer.parseInt(properties.getProperty("fetchsize", "1000"));
+        versioncolumn = properties.getProperty(entityname + ".versioncolumn");
+        // an idxblocksize of 1 (the default) uses the original findnextidx
+        // command; blocks use the reserveidx command, so are only available
+        // from servers implementing it
+        idxblocksize = Integer.parseInt(properties.getProperty("idxblocksize", "1"));
+        idxallocator = new IdxBlockAllocator((count) -> reserveIdx(count), idxblocksize);
     }
 
     @Override
@@ -92,6 +124,91 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
         }
     }
 
+    @Override
+    public final Stream<EntityFields> stream() {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "stream");
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new PageIterator(null, null), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public final Stream<EntityFields> stream(String parametername, Object parametervalue) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "stream", parametername, parametervalue.toString());
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new PageIterator(parametername, parametervalue), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    // reads the entities a page (of fetchsize entities) at a time as the stream is consumed
+    private class PageIterator implements Iterator<EntityFields> {
+
+        private final String parametername;
+        private final Object parametervalue;
+        private Iterator<EntityFields> page;
+        private boolean more = true;
+        private K lastkey = null;
+
+        PageIterator(String parametername, Object parametervalue) {
+            this.parametername = parametername;
+            this.parametervalue = parametervalue;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while ((page == null || !page.hasNext()) && more) {
+                Page<EntityFields> p = get(parametername, parametervalue, lastkey, fetchsize);
+                List<EntityFields> items = p.getItems();
+                more = p.hasMore() && !items.isEmpty();
+                if (!items.isEmpty()) {
+                    lastkey = (K) items.get(items.size() - 1).get("id");
+                }
+                page = items.iterator();
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public EntityFields next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+    }
+
+    @Override
+    public final synchronized Page<EntityFields> get(String parametername, Object parametervalue, K afterKey, int limit) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "get", parametername, parametervalue, afterKey, limit);
+        if (limit < 1) {
+            throw new LogicException("Page limit must be at least 1");
+        }
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            if (parametername != null) {
+                job.add("field", parametername);
+                JsonUtil.insertValue(job, "value", parametervalue);
+            }
+            if (idx != null) {
+                job.add("orderby", idx);
+            }
+            job.add("pagesize", limit);
+            if (afterKey != null) {
+                JsonObjectBuilder pjob = Json.createObjectBuilder();
+                addPK(pjob, afterKey);
+                job.add("after", pjob.build().get("pkey"));
+            }
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, parametername == null ? "getall" : "getbyfield", job.build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote get(field,value,after,limit) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            List<EntityFields> list = new ArrayList<>();
+            for (JsonValue j : reply.getJsonArray("entities")) {
+                list.add(makeEntityFields((JsonObject) j));
+            }
+            boolean more = reply.getBoolean("more", false) || list.size() > limit;
+            return new Page<>(list.size() > limit ? new ArrayList<>(list.subList(0, limit)) : list, more);
+        } catch (IOException ex) {
+            throw new LogicException("Remote get(field,value,after,limit) failed: " + ex.getMessage());
+        }
+    }
+
     @Override
     public final synchronized EntityFields get(K pkey) {
         LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "get", pkey);
@@ -108,6 +225,36 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
         }
     }
 
+    @Override
+    public final synchronized Map<K, EntityFields> get(Collection<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "get", pkeys.size());
+        try {
+            JsonArrayBuilder jab = Json.createArrayBuilder();
+            pkeys.stream().forEach((pkey) -> {
+                JsonObjectBuilder pjob = Json.createObjectBuilder();
+                addPK(pjob, pkey);
+                jab.add(pjob.build().get("pkey"));
+            });
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "getmany",
+                    Json.createObjectBuilder().add("pkeys", jab.build()).build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote get(pkeys) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            Map<K, EntityFields> rows = new HashMap<>();
+            for (JsonValue j : reply.getJsonArray("entities")) {
+                JsonObject entity = (JsonObject) j;
+                rows.put(getPK(entity.get("id")), makeEntityFields(entity));
+            }
+            Map<K, EntityFields> result = new LinkedHashMap<>();
+            pkeys.stream().filter((pkey) -> (rows.containsKey(pkey))).forEach((pkey) -> {
+                result.put(pkey, rows.get(pkey));
+            });
+            return result;
+        } catch (IOException ex) {
+            throw new LogicException("Remote get(pkeys) failed: " + ex.getMessage());
+        }
+    }
+
     /**
      * Add the primary key to the JsonObject
      *
@@ -170,6 +317,143 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
         }
     }
 
+    @Override
+    public final synchronized List<EntityFields> get(Query query) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "get", query);
+        try {
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "getbyquery", createQuery(query).build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote get(query) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            List<EntityFields> list = new ArrayList<>();
+            for (JsonValue j : reply.getJsonArray("entities")) {
+                list.add(makeEntityFields((JsonObject) j));
+            }
+            return list;
+        } catch (IOException ex) {
+            throw new LogicException("Remote get(query) failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final synchronized List<K> find(Query query) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "find", query);
+        try {
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "findbyquery", createQuery(query).build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote find(query) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            List<K> list = new ArrayList<>();
+            reply.getJsonArray("pkeys").stream().forEach((j) -> {
+                list.add(getPK(j));
+            });
+            return list;
+        } catch (IOException ex) {
+            throw new LogicException("Remote find(query) failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final synchronized List<EntityFields> get(String parametername, Object parametervalue, Set<String> columns) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "get", parametername, parametervalue, columns);
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder()
+                    .add("field", parametername);
+            JsonUtil.insertValue(job, "value", parametervalue);
+            if (idx != null) {
+                job.add("orderby", idx);
+            }
+            return getProjection("getbyfield", job, columns, "get(field,value,columns)");
+        } catch (JsonConversionException ex) {
+            throw new LogicException("Remote get(field,value,columns) failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final synchronized List<EntityFields> get(Query query, Set<String> columns) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "get", query, columns);
+        try {
+            return getProjection("getbyquery", createQuery(query), columns, "get(query,columns)");
+        } catch (JsonConversionException ex) {
+            throw new LogicException("Remote get(query,columns) failed: " + ex.getMessage());
+        }
+    }
+
+    // the requested columns are sent as the "fields" parameter (the primary key is always returned)
+    private List<EntityFields> getProjection(String action, JsonObjectBuilder job, Set<String> columns, String method) {
+        try {
+            JsonArrayBuilder fields = Json.createArrayBuilder();
+            columns.stream().forEach((column) -> {
+                fields.add(column);
+            });
+            job.add("fields", fields);
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, action, job.build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote " + method + " failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            List<EntityFields> list = new ArrayList<>();
+            for (JsonValue j : reply.getJsonArray("entities")) {
+                list.add(makeEntityFields((JsonObject) j));
+            }
+            return list;
+        } catch (IOException ex) {
+            throw new LogicException("Remote " + method + " failed: " + ex.getMessage());
+        }
+    }
+
+    // the query is sent as a filter document - "where" (the condition) and "order" (list of column/descending)
+    private JsonObjectBuilder createQuery(Query query) throws JsonConversionException {
+        JsonObjectBuilder job = Json.createObjectBuilder();
+        if (query.getWhere() != null) {
+            job.add("where", createCondition(query.getWhere()));
+        }
+        if (!query.getOrderBy().isEmpty()) {
+            JsonArrayBuilder jab = Json.createArrayBuilder();
+            query.getOrderBy().stream().forEach((orderby) -> {
+                jab.add(Json.createObjectBuilder()
+                        .add("field", orderby.getColumnName())
+                        .add("descending", orderby.isDescending()));
+            });
+            job.add("order", jab);
+        } else if (idx != null) {
+            job.add("orderby", idx);
+        }
+        return job;
+    }
+
+    private JsonObject createCondition(Condition condition) throws JsonConversionException {
+        JsonObjectBuilder job = Json.createObjectBuilder()
+                .add("operator", condition.getOperator().name().toLowerCase());
+        switch (condition.getOperator()) {
+            case AND:
+            case OR:
+                JsonArrayBuilder conditions = Json.createArrayBuilder();
+                for (Condition c : condition.getConditions()) {
+                    conditions.add(createCondition(c));
+                }
+                job.add("conditions", conditions);
+                break;
+            case ISNULL:
+            case ISNOTNULL:
+                job.add("field", condition.getColumnName());
+                break;
+            case IN:
+                job.add("field", condition.getColumnName());
+                JsonArrayBuilder values = Json.createArrayBuilder();
+                for (Object value : condition.getValues()) {
+                    JsonObjectBuilder vjob = Json.createObjectBuilder();
+                    JsonUtil.insertValue(vjob, "value", value);
+                    values.add(vjob.build().get("value"));
+                }
+                job.add("values", values);
+                break;
+            default:
+                job.add("field", condition.getColumnName());
+                JsonUtil.insertValue(job, "value", condition.getValue());
+        }
+        return job.build();
+    }
+
     @Override
     public final synchronized List<K> find(String parametername, Object parametervalue) {
         LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "find", parametername, parametervalue.toString());
@@ -240,20 +524,92 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
     }
 
     @Override
-    public final synchronized int findNextIdx() {
+    public final synchronized long count() {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "count");
+        try {
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "count", Json.createObjectBuilder().build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote count() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            return reply.getJsonNumber("count").longValue();
+        } catch (IOException ex) {
+            throw new LogicException("Remote count() failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final synchronized long count(String parametername, Object parametervalue) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "count", parametername, parametervalue);
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder()
+                    .add("field", parametername);
+            JsonUtil.insertValue(job, "value", parametervalue);
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "countbyfield", job.build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote count(field,value) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            return reply.getJsonNumber("count").longValue();
+        } catch (IOException ex) {
+            throw new LogicException("Remote count(field,value) failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final synchronized boolean exists(String parametername, Object parametervalue, K excludingPk) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "exists", parametername, parametervalue, excludingPk);
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder()
+                    .add("field", parametername);
+            JsonUtil.insertValue(job, "value", parametervalue);
+            if (excludingPk != null) {
+                JsonObjectBuilder pjob = Json.createObjectBuilder();
+                addPK(pjob, excludingPk);
+                job.add("excluding", pjob.build().get("pkey"));
+            }
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "exists", job.build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote exists(field,value,excluding) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            return reply.getBoolean("exists");
+        } catch (IOException ex) {
+            throw new LogicException("Remote exists(field,value,excluding) failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final int findNextIdx() {
         LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "findNextIdx");
         if (idx == null) {
             throw new LogicException("findNextIdx() should not be called if the entity is not ordered");
         }
+        return idxallocator.next();
+    }
+
+    @Override
+    public final int reserveIdx(int count) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "reserveIdx", count);
+        if (idx == null) {
+            throw new LogicException("reserveIdx() should not be called if the entity is not ordered");
+        }
         try {
             JsonObjectBuilder job = Json.createObjectBuilder();
-            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "findnextidx", job.build());
+            // findnextidx is also used to read the next value (count 0) - the
+            // value is then reserved, and the next reservation starts later
+            if (idxblocksize == 1 && count <= 1) {
+                JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "findnextidx", job.build());
+                if (!reply.getBoolean("success")) {
+                    throw new LogicException("Remote findNextIdx() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+                }
+                return reply.getInt("nextidx");
+            }
+            job.add("count", count);
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "reserveidx", job.build());
             if (!reply.getBoolean("success")) {
-                throw new LogicException("Remote findNextIdx() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+                throw new LogicException("Remote reserveIdx() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
             }
-            return reply.getInt("nextidx");
+            return reply.getInt("first");
         } catch (IOException ex) {
-            throw new LogicException("Remote findNextIdx() failed: " + ex.getMessage());
+            throw new LogicException("Remote reserveIdx() failed: " + ex.getMessage());
         }
     }
 
@@ -269,6 +625,7 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
                 throw new LogicException("Remote insert(values) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
             }
             EntityFields res = makeEntityFields(reply.getJsonObject("entity"));
+            changed(() -> ChangeRecord.insert(entityname, res.get("id"), res));
             LogBuilder.writeExitingLog("nbpcglib.RemoteEntityPersistenceProvider", this, "insert", res);
             return res;
         } catch (IOException ex) {
@@ -301,10 +658,12 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
             addPK(job, pkey);
             addEntity(job, diff);
             JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "update", job.build());
+            checkConflict(reply, pkey);
             if (!reply.getBoolean("success")) {
                 throw new LogicException("Remote update(pkey,values) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
             }
             EntityFields res = makeEntityFields(reply.getJsonObject("entity"));
+            changed(() -> ChangeRecord.update(entityname, pkey, null, res, diff.keySet()));
             LogBuilder.writeExitingLog("nbpcglib.RemoteEntityPersistenceProvider", this, "update", res);
             return res;
         } catch (IOException ex) {
@@ -314,16 +673,142 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
 
     @Override
     public final synchronized void delete(K pkey) {
-        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "delete", pkey);
+        delete(pkey, null);
+    }
+
+    @Override
+    public final synchronized void delete(K pkey, Object version) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "delete", pkey, version);
         try {
             JsonObjectBuilder job = Json.createObjectBuilder();
             addPK(job, pkey);
+            if (versioncolumn != null && version != null) {
+                JsonUtil.insertValue(job, "version", version);
+            }
             JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "delete", job.build());
+            checkConflict(reply, pkey);
             if (!reply.getBoolean("success")) {
                 throw new LogicException("Remote delete() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
             }
+            changed(() -> ChangeRecord.delete(entityname, pkey, null));
         } catch (IOException ex) {
             throw new LogicException("Remote delete(pkey) failed: " + ex.getMessage());
         }
     }
+
+    @Override
+    public final String getVersionColumn() {
+        return versioncolumn;
+    }
+
+    @Override
+    public final PersistenceUnitProvider getPersistenceUnitProvider() {
+        return persistenceUnitProvider;
+    }
+
+    // a versioned update or delete is rejected by the server with a conflict reply
+    private void checkConflict(JsonObject reply, Object pkey) {
+        if (!reply.getBoolean("success") && reply.getBoolean("conflict", false)) {
+            throw new ConcurrentUpdateException("Entity " + entityname + " (" + pkey + ") has been changed or deleted by another user");
+        }
+    }
+
+    @Override
+    public final synchronized List<EntityFields> insertAll(List<EntityFields> values) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "insertAll", values.size());
+        try {
+            JsonArrayBuilder commands = Json.createArrayBuilder();
+            for (EntityFields ef : values) {
+                JsonObjectBuilder job = createCommand("create")
+                        .add("user", Settings.get("Usercode", "????"));
+                addEntity(job, ef);
+                commands.add(job.build());
+            }
+            List<EntityFields> list = new ArrayList<>();
+            for (JsonValue j : executeCommands(commands.build(), values.size(), "insertAll(values)")) {
+                list.add(makeEntityFields(((JsonObject) j).getJsonObject("entity")));
+            }
+            list.stream().forEach((ef) -> {
+                changed(() -> ChangeRecord.insert(entityname, ef.get("id"), ef));
+            });
+            return list;
+        } catch (IOException ex) {
+            throw new LogicException("Remote insertAll(values) failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final synchronized Map<K, EntityFields> updateAll(Map<K, EntityFields> diffs) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "updateAll", diffs.size());
+        try {
+            JsonArrayBuilder commands = Json.createArrayBuilder();
+            List<K> pkeys = new ArrayList<>();
+            for (Map.Entry<K, EntityFields> e : diffs.entrySet()) {
+                JsonObjectBuilder job = createCommand("update")
+                        .add("user", Settings.get("Usercode", "????"));
+                addPK(job, e.getKey());
+                addEntity(job, e.getValue());
+                commands.add(job.build());
+                pkeys.add(e.getKey());
+            }
+            Map<K, EntityFields> map = new LinkedHashMap<>();
+            JsonArray replies = executeCommands(commands.build(), diffs.size(), "updateAll(diffs)");
+            for (int i = 0; i < replies.size(); i++) {
+                map.put(pkeys.get(i), makeEntityFields(replies.getJsonObject(i).getJsonObject("entity")));
+            }
+            map.entrySet().stream().forEach((e) -> {
+                changed(() -> ChangeRecord.update(entityname, e.getKey(), null, e.getValue(), diffs.get(e.getKey()).keySet()));
+            });
+            return map;
+        } catch (IOException ex) {
+            throw new LogicException("Remote updateAll(diffs) failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final synchronized void deleteAll(Collection<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "deleteAll", pkeys.size());
+        try {
+            JsonArrayBuilder commands = Json.createArrayBuilder();
+            for (K pkey : pkeys) {
+                JsonObjectBuilder job = createCommand("delete");
+                addPK(job, pkey);
+                commands.add(job.build());
+            }
+            executeCommands(commands.build(), pkeys.size(), "deleteAll(pkeys)");
+            pkeys.stream().forEach((pkey) -> {
+                changed(() -> ChangeRecord.delete(entityname, pkey, null));
+            });
+        } catch (IOException ex) {
+            throw new LogicException("Remote deleteAll(pkeys) failed: " + ex.getMessage());
+        }
+    }
+
+    private void changed(Supplier<ChangeRecord> change) {
+        ChangeFeed feed = persistenceUnitProvider.getChangeFeed();
+        if (feed.isActive()) {
+            feed.publish(change.get());
+        }
+    }
+
+    private JsonObjectBuilder createCommand(String action) {
+        return Json.createObjectBuilder()
+                .add("table", entityname)
+                .add("action", action);
+    }
+
+    private JsonArray executeCommands(JsonArray commands, int count, String method) throws IOException {
+        JsonArray replies = persistenceUnitProvider.executeMultipleCommands(commands);
+        if (replies.size() != count) {
+            throw new LogicException("Remote " + method + " failed: reply expected for each command");
+        }
+        for (JsonValue j : replies) {
+            JsonObject reply = (JsonObject) j;
+            checkConflict(reply, reply.get("pkey"));
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote " + method + " failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+        }
+        return replies;
+    }
 }
@@ -16,6 +16,7 @@
 package uk.theretiredprogrammer.nbpcglibrary.remoteclient;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Properties;
 import javax.json.Json;
 import javax.json.JsonArray;
@@ -23,6 +24,7 @@ import javax.json.JsonObject;
 import javax.json.JsonReader;
 import javax.json.JsonStructure;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
@@ -31,6 +33,11 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import uk.theretiredprogrammer.nbpcglibrary.api.Cancellation;
+import uk.theretiredprogrammer.nbpcglibrary.api.ChangeFeed;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceCancelledException;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceStatistics;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceTimeoutException;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonConversionException;
@@ -40,6 +47,22 @@ import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
  * Abstract Class implementing ersistenceUnitProvide over an Http based
  * protocol.
  *
+ * The latency of every command sent is recorded in the PersistenceStatistics
+ * (with this PersistenceUnitProvider's name as the source); slow commands are
+ * logged with their full command text.
+ *
+ * Requests are made with timeouts, configured from the connection
+ * properties: connecttimeout - the time to establish a connection in ms
+ * (default 10000); sockettimeout - the maximum time waiting for response data
+ * in ms (default 30000). A request can be cancelled by the Cancellation
+ * current on the calling thread. A request which times out fails with a
+ * PersistenceTimeoutException, and one which is cancelled fails with a
+ * PersistenceCancelledException.
+ *
+ * Changes made through this client are published on the change feed when the
+ * server confirms them (the replay buffer size is set by the property
+ * changereplaysize, default 0); changes made by other clients are not seen.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  */
 public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
@@ -47,6 +70,7 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
     private final CloseableHttpClient httpclient;
     private final String url;
     private final boolean operational;
+    private final ChangeFeed changefeed;
 
     /**
      * Constructor.
@@ -55,8 +79,14 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
      */
     public RemotePersistenceUnitProvider(Properties p) {
         url = p.getProperty("connection", "");
-        httpclient = HttpClients.createDefault();
+        httpclient = HttpClients.custom().setDefaultRequestConfig(RequestConfig.custom()
+                .setConnectTimeout(Integer.parseInt(p.getProperty("connecttimeout", "10000")))
+                .setConnectionRequestTimeout(Integer.parseInt(p.getProperty("connecttimeout", "10000")))
+                .setSocketTimeout(Integer.parseInt(p.getProperty("sockettimeout", "30000")))
+                .build()).build();
         operational = pingUrl();
+        changefeed = new ChangeFeed(url);
+        changefeed.setReplaySize(Integer.parseInt(p.getProperty("changereplaysize", "0")));
     }
 
     /**
@@ -71,9 +101,12 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
      * executing the command
      */
     public synchronized JsonObject executeSingleCommand(String tablename, String action, JsonObject request) throws IOException {
+        long start = System.nanoTime();
         JsonStructure res = null;
         HttpPost httpPost = new HttpPost(url+tablename+"/"+action);
         httpPost.setEntity(new StringEntity(request.toString(), APPLICATION_JSON));
+        Cancellation.checkCurrent("Remote command");
+        Cancellation.Registration registration = Cancellation.registerCurrent(httpPost::abort);
         try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
             if (response.getStatusLine().getStatusCode() == 200) {
                 HttpEntity responsebody = response.getEntity();
@@ -82,8 +115,14 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
                 }
                 EntityUtils.consume(responsebody);
             }
+        } catch (IOException ex) {
+            throw failed(ex);
+        } finally {
+            registration.close();
         }
         if (res instanceof JsonObject) {
+            PersistenceStatistics.record(getName(), tablename + "/" + action, System.nanoTime() - start, 1,
+                    () -> tablename + "/" + action + " " + request.toString());
             return (JsonObject) res;
         } else {
             throw new JsonConversionException();
@@ -94,15 +133,22 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
      * Execute Multiple Commands - send multiple commands in a single message to
      * be executed by remote data source.
      *
+     * Each command object carries the table and action names (as the "table"
+     * and "action" keys) in addition to the command parameters; the replies are
+     * returned in the same order as the commands.
+     *
      * @param request the set of command objects
      * @return the set of response objects
      * @throws IOException if problems with parsing command data or problems
      * executing the command
      */
     public synchronized JsonArray executeMultipleCommands(JsonArray request) throws IOException {
+        long start = System.nanoTime();
         JsonStructure res = null;
         HttpPost httpPost = new HttpPost(url);
         httpPost.setEntity(new StringEntity(request.toString(), APPLICATION_JSON));
+        Cancellation.checkCurrent("Remote command");
+        Cancellation.Registration registration = Cancellation.registerCurrent(httpPost::abort);
         try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
             if (response.getStatusLine().getStatusCode() == 200) {
                 HttpEntity responsebody = response.getEntity();
@@ -111,14 +157,30 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
                 }
                 EntityUtils.consume(responsebody);
             }
+        } catch (IOException ex) {
+            throw failed(ex);
+        } finally {
+            registration.close();
         }
         if (res instanceof JsonArray) {
+            PersistenceStatistics.record(getName(), "multiple", System.nanoTime() - start, request.size(),
+                    () -> request.toString());
             return (JsonArray) res;
         } else {
             throw new JsonConversionException();
         }
     }
 
+    private IOException failed(IOException ex) {
+        if (Cancellation.isCurrentCancelled()) {
+            throw new PersistenceCancelledException("Remote command cancelled - " + ex.getMessage());
+        }
+        if (ex instanceof InterruptedIOException) { // includes connect and socket timeouts
+            throw new PersistenceTimeoutException("Remote command timed out - " + ex.getMessage());
+        }
+        return ex;
+    }
+
     private boolean pingUrl() {
         try {
             JsonStructure response = get();
@@ -156,6 +218,21 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
         return url;
     }
 
+    @Override
+    public ChangeFeed getChangeFeed() {
+        return changefeed;
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return false;
+    }
+
+    @Override
+    public void afterTransaction(Runnable action) {
+        action.run();
+    }
+
     @Override
     public String instanceDescription() {
         return LogBuilder.instanceDescription(this, getName());